@@ -0,0 +1,70 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Throughput of the Scanner, Parser and Resolver on a generated program of
+ * `functions` functions, about 14 lines each. Each stage starts from the
+ * previous stage's output, prepared once per trial. parseExpressions()
+ * parses `functions` lines of nothing but long expressions instead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrontEndBenchmark {
+    @Param({"100", "1000"})
+    int functions;
+
+    private String source;
+    private Tokens tokens;
+    private Tokens expressionTokens;
+    private List<Stmt> statements;
+
+    @Setup
+    public void setUp() {
+        source = Sources.program(functions);
+        tokens = new Scanner(source).scanTokens();
+        statements = new Parser(tokens).parse();
+        expressionTokens = new Scanner(Sources.expressions(functions)).scanTokens();
+        new Parser(expressionTokens).parse();
+        if (Lox.hadError) throw new IllegalStateException("The generated program does not parse.");
+    }
+
+    @Benchmark
+    public Tokens scan() {
+        return new Scanner(source).scanTokens();
+    }
+
+    @Benchmark
+    public List<Stmt> parse() {
+        return new Parser(tokens).parse();
+    }
+
+    @Benchmark
+    public List<Stmt> parseExpressions() {
+        return new Parser(expressionTokens).parse();
+    }
+
+    /* Resolving a tree again records the same slots and depths on it. */
+    @Benchmark
+    public List<Stmt> resolve() {
+        new Resolver().resolve(statements);
+        return statements;
+    }
+}
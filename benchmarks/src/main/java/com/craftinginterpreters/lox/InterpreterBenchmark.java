@@ -0,0 +1,67 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Throughput of the tree walker on small programs, each stressing one hot
+ * path (see Sources.interpreted): variable access as a global, in a block's
+ * Environment, in a frame slot or through an upvalue; calls; making and
+ * calling closures; string concatenation; and a bare `while` loop. The
+ * program is front-ended once per trial, as `jlox` would run it. runFlat
+ * runs the same program flattened, on the FlatInterpreter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+    private static final Token RESULT = new Token(TokenType.IDENTIFIER, "result", null, 1);
+
+    @Param({"globals", "blocks", "locals", "upvalues", "calls", "closures", "strings", "loops"})
+    String program;
+
+    private List<Stmt> statements;
+    private Interpreter interpreter;
+    private FlatTree tree;
+    private Interpreter flatGlobals;   // Only for its globals.
+    private FlatInterpreter flat;
+
+    @Setup
+    public void setUp() {
+        statements = Lox.parse(Sources.interpreted(program));
+        if (statements == null) throw new IllegalStateException(program + " does not compile.");
+        interpreter = new Interpreter();
+        tree = FlatCompiler.compile(statements);
+        flatGlobals = new Interpreter();
+        flat = new FlatInterpreter(flatGlobals);
+    }
+
+    @Benchmark
+    public Object run() {
+        interpreter.interpret(statements);
+        if (Lox.hadRuntimeError) throw new IllegalStateException(program + " failed.");
+        return interpreter.globals.get(RESULT);
+    }
+
+    @Benchmark
+    public Object runFlat() {
+        flat.interpret(tree);
+        if (Lox.hadRuntimeError) throw new IllegalStateException(program + " failed.");
+        return flatGlobals.globals.get(RESULT);
+    }
+}
@@ -0,0 +1,301 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Runs the Lox programs in resources/macro end to end, as jlox would:
+ * scanning, parsing, resolving, optimizing and interpreting each one.
+ * Each program runs in JVMs of its own, so what the JIT learns from one
+ * never speeds up or slows down another. In each JVM it is timed over
+ * several runs after warming up, and its wall time and the bytes it
+ * allocated are the medians over all the JVMs' runs, since one JVM can
+ * compile a program better than the next. The results can be saved as
+ * JSON and later runs compared with them. Any program slower, or
+ * allocating more, than the baseline by more than the threshold fails the
+ * run.
+ *
+ * Usage: MacroBenchmark [--forks n] [--warmup n] [--iterations n]
+ *                       [--threshold percent] [--baseline file] [--save file]
+ *                       [program...]
+ */
+public final class MacroBenchmark {
+    static final String[] PROGRAMS = {
+        "fib", "binary_trees", "string_equality", "numeric", "scopes", "arguments"
+    };
+
+    /* One program's measurements: medians over the timed runs. */
+    private static class Result {
+        final String name;
+        final double millis;
+        final long bytes;               // -1 where the JVM cannot count allocations.
+
+        Result(String name, double millis, long bytes) {
+            this.name = name;
+            this.millis = millis;
+            this.bytes = bytes;
+        }
+    }
+
+    private int forks = 3;
+    private int warmup = 10;
+    private int iterations = 15;
+    private double threshold = 10;      // Percent.
+    private String baseline = null;
+    private String save = null;
+    private String measuring = null;    // Set in a forked JVM, to the program it measures.
+    private final List<String> programs = new ArrayList<>();
+
+    private MacroBenchmark() {}
+
+    public static void main(String[] args) throws IOException {
+        MacroBenchmark benchmark = new MacroBenchmark();
+        if (!benchmark.parseArguments(args)) {
+            System.err.println("Usage: MacroBenchmark [--forks n] [--warmup n] [--iterations n]" +
+                    " [--threshold percent] [--baseline file] [--save file] [program...]");
+            System.exit(64);
+        }
+        System.exit((benchmark.measuring != null ? benchmark.measure() : benchmark.run()) ? 0 : 1);
+    }
+
+    private boolean parseArguments(String[] args) {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--forks":      forks = Integer.parseInt(args[++i]); break;
+                    case "--warmup":     warmup = Integer.parseInt(args[++i]); break;
+                    case "--iterations": iterations = Integer.parseInt(args[++i]); break;
+                    case "--threshold":  threshold = Double.parseDouble(args[++i]); break;
+                    case "--baseline":   baseline = args[++i]; break;
+                    case "--save":       save = args[++i]; break;
+                    case "--measure":    measuring = args[++i]; break;
+                    default:
+                        if (!Arrays.asList(PROGRAMS).contains(args[i])) return false;
+                        programs.add(args[i]);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException error) {
+            return false;
+        }
+
+        if (programs.isEmpty()) programs.addAll(Arrays.asList(PROGRAMS));
+        if (measuring != null && !Arrays.asList(PROGRAMS).contains(measuring)) return false;
+        return forks > 0 && iterations > 0 && warmup >= 0;
+    }
+
+    /* Measures every program; returns false if any regressed or failed. */
+    private boolean run() throws IOException {
+        Map<String, Result> base = baseline == null ? new HashMap<String, Result>() : load(baseline);
+        List<Result> results = new ArrayList<>();
+        boolean passed = true;
+
+        System.out.printf("%-16s %10s %12s %10s %10s%n",
+                "program", "millis", "bytes", "vs millis", "vs bytes");
+        for (String name : programs) {
+            Result result = measureInForks(name);
+            if (result == null) {
+                passed = false;
+                continue;
+            }
+            results.add(result);
+
+            Result old = base.get(name);
+            String timeChange = old == null ? "" : change(result.millis, old.millis);
+            String bytesChange = old == null || old.bytes < 0 || result.bytes < 0
+                    ? "" : change(result.bytes, old.bytes);
+            boolean regressed = old != null && (regressed(result.millis, old.millis) ||
+                    (old.bytes >= 0 && result.bytes >= 0 && regressed(result.bytes, old.bytes)));
+            System.out.printf("%-16s %10.2f %12d %10s %10s%s%n", name, result.millis, result.bytes,
+                    timeChange, bytesChange, regressed ? "  REGRESSED" : "");
+            if (regressed) passed = false;
+        }
+
+        if (save != null) write(save, results);
+        if (!passed) {
+            System.out.println("Failed: a program regressed by more than " + threshold + "%, or did not run.");
+        }
+        return passed;
+    }
+
+    /* Returns a program's medians over all its forks' runs, or null if it failed. */
+    private Result measureInForks(String name) throws IOException {
+        double[] millis = new double[forks * iterations];
+        long[] bytes = new long[forks * iterations];
+        for (int i = 0; i < forks; i++) {
+            String[] runs = fork(name);
+            if (runs == null || runs.length != 2 * iterations) return null;
+            for (int j = 0; j < iterations; j++) {
+                millis[i * iterations + j] = Double.parseDouble(runs[2 * j]);
+                bytes[i * iterations + j] = Long.parseLong(runs[2 * j + 1]);
+            }
+        }
+
+        Arrays.sort(millis);
+        Arrays.sort(bytes);
+        return new Result(name, millis[millis.length / 2], bytes[bytes.length / 2]);
+    }
+
+    /* Measures a program in a new JVM; returns each run's time and allocation, or null. */
+    private String[] fork(String name) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                MacroBenchmark.class.getName(), "--measure", name,
+                "--warmup", String.valueOf(warmup), "--iterations", String.valueOf(iterations))
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        String output = new String(readAll(process.getInputStream()), StandardCharsets.UTF_8).trim();
+        try {
+            if (process.waitFor() != 0) return null;
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        return output.split("\\s+");
+    }
+
+    /*
+     * In a forked JVM: runs the program warmup + iterations times, printing
+     * each timed run's milliseconds and bytes for fork(). Fails if the
+     * program does, or if its output varies.
+     */
+    private boolean measure() throws IOException {
+        String name = measuring;
+        String source = read(name);
+        com.sun.management.ThreadMXBean threads = threads();
+        long thread = Thread.currentThread().getId();
+
+        double[] millis = new double[iterations];
+        long[] bytes = new long[iterations];
+        String expected = null;
+        for (int i = -warmup; i < iterations; i++) {
+            System.gc();    // So no run pays for collecting the last one's garbage.
+            long allocated = threads == null ? 0 : threads.getThreadAllocatedBytes(thread);
+            long start = System.nanoTime();
+            String output = execute(source);
+            long end = System.nanoTime();
+            allocated = threads == null ? -1 : threads.getThreadAllocatedBytes(thread) - allocated;
+
+            if (output == null || (expected != null && !output.equals(expected))) {
+                System.err.println(name + " failed" + (output == null ? "." : ": its output changed."));
+                return false;
+            }
+            expected = output;
+            if (i < 0) continue;
+            millis[i] = (end - start) / 1e6;
+            bytes[i] = allocated;
+        }
+
+        for (int i = 0; i < iterations; i++) {
+            System.out.println(String.format(Locale.ROOT, "%.3f %d", millis[i], bytes[i]));
+        }
+        return true;
+    }
+
+    /* Runs source through Lox's pipeline; returns what it printed, or null on an error. */
+    private static String execute(String source) {
+        Lox.hadError = false;
+        Lox.hadRuntimeError = false;
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed, true));
+        try {
+            List<Stmt> statements = Lox.parse(source);
+            if (statements == null) return null;
+            new Interpreter().interpret(statements);
+        } finally {
+            System.setOut(out);
+        }
+        if (Lox.hadRuntimeError) return null;
+        return new String(printed.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /* HotSpot's bean counts bytes allocated per thread; others may not. */
+    private static com.sun.management.ThreadMXBean threads() {
+        try {
+            com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+            if (!threads.isThreadAllocatedMemorySupported()) return null;
+            threads.setThreadAllocatedMemoryEnabled(true);
+            return threads;
+        } catch (ClassCastException | UnsupportedOperationException error) {
+            return null;
+        }
+    }
+
+    private boolean regressed(double now, double before) {
+        return now > before * (1 + threshold / 100);
+    }
+
+    private static String change(double now, double before) {
+        return String.format(Locale.ROOT, "%+.1f%%", (now - before) / before * 100);
+    }
+
+    private static String read(String name) throws IOException {
+        try (InputStream in = MacroBenchmark.class.getResourceAsStream("/macro/" + name + ".lox")) {
+            return new String(readAll(in), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int count; (count = in.read(buffer)) != -1; ) {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void write(String path, List<Result> results) throws IOException {
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"forks\": ").append(forks).append(",\n");
+        json.append("  \"warmup\": ").append(warmup).append(",\n");
+        json.append("  \"iterations\": ").append(iterations).append(",\n");
+        json.append("  \"results\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            json.append(String.format(Locale.ROOT, "    {\"name\": \"%s\", \"millis\": %.3f, \"bytes\": %d}%s%n",
+                    result.name, result.millis, result.bytes, i < results.size() - 1 ? "," : ""));
+        }
+        json.append("  ]\n}\n");
+        Files.write(Paths.get(path), json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /* Reads the results back from a file written by write(), keyed by program. */
+    private static Map<String, Result> load(String path) throws IOException {
+        String json = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+        Map<String, Result> results = new HashMap<>();
+        Matcher entry = Pattern.compile("\\{[^{}]*\"name\"[^{}]*\\}").matcher(json);
+        while (entry.find()) {
+            String object = entry.group();
+            String name = field(object, "name");
+            String millis = field(object, "millis");
+            String bytes = field(object, "bytes");
+            if (name == null || millis == null) continue;
+            results.put(name, new Result(name, Double.parseDouble(millis),
+                    bytes == null ? -1 : Long.parseLong(bytes)));
+        }
+        return results;
+    }
+
+    private static String field(String object, String key) {
+        Matcher value = Pattern.compile("\"" + key + "\"\\s*:\\s*(\"([^\"]*)\"|[-+0-9.eE]+)")
+                .matcher(object);
+        if (!value.find()) return null;
+        return value.group(2) != null ? value.group(2) : value.group(1);
+    }
+}
@@ -0,0 +1,108 @@
+package com.craftinginterpreters.lox;
+
+/* Lox programs for the benchmarks. */
+final class Sources {
+    private Sources() {}
+
+    /*
+     * A program of `functions` similar functions, using every kind of token
+     * and statement, for the front end. It is never run.
+     */
+    static String program(int functions) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < functions; i++) {
+            source.append("// Function ").append(i).append(".\n")
+                  .append("fun f").append(i).append("(a, b) {\n")
+                  .append("  var total = 0;\n")
+                  .append("  var text = \"item ").append(i).append("\";\n")
+                  .append("  while (a < b and total <= 1000) {\n")
+                  .append("    if (a != ").append(i).append(" or !false) total = total + a * 2 - b / 3;\n")
+                  .append("    else { text = text + \"!\"; }\n")
+                  .append("    a = a + 1;\n")
+                  .append("  }\n")
+                  .append("  fun inner(x) { return x + total; }\n")
+                  .append("  for (var j = 0; j < 3; j = j + 1) total = inner(-j);\n")
+                  .append("  return total >= 0 and text or nil;\n")
+                  .append("}\n")
+                  .append("print f").append(i).append("(1, 10.5);\n");
+        }
+        return source.toString();
+    }
+
+    /* `lines` statements of nested arithmetic, comparisons, logic and calls, for the parser. */
+    static String expressions(int lines) {
+        StringBuilder source = new StringBuilder("var a = 1;\nvar b = 2;\nfun f(x, y) { return x; }\n");
+        for (int i = 0; i < lines; i++) {
+            source.append("print (a + ").append(i).append(" * (b - -a) / 2 >= f(a, b * 3) + (a - (b + ")
+                  .append(i).append("))) == !(a < b or b <= a and a != f(f(1, 2), -b)) or a * b - a / b;\n");
+        }
+        return source.toString();
+    }
+
+    /* A program exercising one of the interpreter's hot paths, leaving its answer in `result`. */
+    static String interpreted(String name) {
+        switch (name) {
+            case "globals":
+                return "var result = 0;\n" +
+                       "var i = 0;\n" +
+                       "while (i < 10000) { result = result + i; i = i + 1; }\n";
+            case "blocks":
+                return "var result;\n" +
+                       "{\n" +
+                       "  var total = 0;\n" +
+                       "  var i = 0;\n" +
+                       "  while (i < 10000) { total = total + i; i = i + 1; }\n" +
+                       "  result = total;\n" +
+                       "}\n";
+            case "locals":
+                return "fun run() {\n" +
+                       "  var total = 0;\n" +
+                       "  var i = 0;\n" +
+                       "  while (i < 10000) { total = total + i; i = i + 1; }\n" +
+                       "  return total;\n" +
+                       "}\n" +
+                       "var result = run();\n";
+            case "upvalues":
+                return "fun run() {\n" +
+                       "  var total = 0;\n" +
+                       "  var i = 0;\n" +
+                       "  fun step() { total = total + i; i = i + 1; }\n" +
+                       "  while (i < 10000) step();\n" +
+                       "  return total;\n" +
+                       "}\n" +
+                       "var result = run();\n";
+            case "calls":
+                return "fun fib(n) {\n" +
+                       "  if (n < 2) return n;\n" +
+                       "  return fib(n - 1) + fib(n - 2);\n" +
+                       "}\n" +
+                       "var result = fib(18);\n";
+            case "closures":
+                return "fun adder(n) {\n" +
+                       "  fun add(x) { return x + n; }\n" +
+                       "  return add;\n" +
+                       "}\n" +
+                       "fun run() {\n" +
+                       "  var total = 0;\n" +
+                       "  for (var i = 0; i < 10000; i = i + 1) total = adder(i)(total);\n" +
+                       "  return total;\n" +
+                       "}\n" +
+                       "var result = run();\n";
+            case "strings":
+                return "fun run() {\n" +
+                       "  var text = \"\";\n" +
+                       "  for (var i = 0; i < 1000; i = i + 1) text = text + \"ab\";\n" +
+                       "  return text;\n" +
+                       "}\n" +
+                       "var result = run();\n";
+            case "loops":
+                return "fun run() {\n" +
+                       "  var i = 0;\n" +
+                       "  while (i < 100000) i = i + 1;\n" +
+                       "  return i;\n" +
+                       "}\n" +
+                       "var result = run();\n";
+        }
+        throw new IllegalArgumentException("No benchmark program called " + name + ".");
+    }
+}
@@ -0,0 +1,68 @@
+#!/bin/bash
+# Runs the regression scripts in test/lox against every engine.
+#
+# Each NAME.lox must give, under the tree walker, the output in NAME.out
+# (stdout, then a last line "exit N" with the exit code) and NAME.err
+# (stderr). Every other engine, and a JAR built by loxc, must then give
+# exactly what the tree walker gave. Build with `mvn compile` first.
+#
+# Usage: test/run.sh [NAME.lox...]
+# Prints each mismatch as a diff and exits with 1 if there was any.
+
+test=$(cd "$(dirname "$0")" && pwd)
+classes="$test/../tree-walker-interpreter/target/classes"
+engines=(--vm --nodes --closures --flat --jit --memo --cache=CACHE --cache=CACHE loxc)
+
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+
+# run ENGINE SCRIPT OUT: writes stdout, "exit N" and stderr to OUT.out and OUT.err.
+run() {
+    local engine=$1 script=$2 out=$3
+    if [ "$engine" = loxc ]; then
+        java -cp "$classes" com.craftinginterpreters.lox.Loxc "$script" "$work/script.jar" \
+            > "$out.out" 2> "$out.err"
+        local status=$?
+        if [ $status -eq 0 ]; then
+            timeout 120 java -jar "$work/script.jar" > "$out.out" 2> "$out.err"
+            status=$?
+        fi
+        echo "exit $status" >> "$out.out"
+        return
+    fi
+
+    local flags=()
+    [ "$engine" != "" ] && flags=("${engine/CACHE/$work/cache}")
+    timeout 120 java -cp "$classes" com.craftinginterpreters.lox.Lox "${flags[@]}" "$script" \
+        > "$out.out" 2> "$out.err"
+    echo "exit $?" >> "$out.out"
+}
+
+# same EXPECTED ACTUAL LABEL: compares two runs' output, reporting a mismatch.
+same() {
+    if diff "$1.out" "$2.out" > "$work/diff" && diff "$1.err" "$2.err" >> "$work/diff"; then
+        return 0
+    fi
+    echo "FAIL $3"
+    head -20 "$work/diff"
+    failed=$((failed + 1))
+}
+
+cd "$test/lox" || exit 1
+scripts=("$@")
+[ ${#scripts[@]} -eq 0 ] && scripts=(*.lox)
+
+failed=0
+for script in "${scripts[@]}"; do
+    name=${script%.lox}
+    run "" "$script" "$work/tree"
+    same "$name" "$work/tree" "$script"
+
+    for engine in "${engines[@]}"; do
+        run "$engine" "$script" "$work/engine"
+        same "$work/tree" "$work/engine" "$script ${engine/=CACHE/}"
+    done
+done
+
+echo "${#scripts[@]} scripts, $failed failures."
+[ $failed -eq 0 ]
@@ -0,0 +1,413 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Translates a whole resolved program into the Java source of one class,
+ * for loxc. Variables keep the tree walker's model: globals by name, locals
+ * by (depth, slot) in Environments, and captured ones in Cells. Those
+ * Environments are held in Java locals named after their scope depth, so
+ * closures behave exactly as they do when interpreted. Each Lox function
+ * becomes a static method, wrapped at run time in a CompiledFunction.
+ *
+ * Nothing may outgrow the JVM's 64 KB limits. Long runs of statements are
+ * moved into helper methods, and tokens, literals and capture lists go into
+ * a ScriptConstants resource rather than the class's constant pool.
+ */
+class AotCompiler implements Expr.Visitor<String>, Stmt.Visitor<Void> {
+    static final String CLASS_NAME = "LoxScript";
+
+    /*
+     * How much source one method may hold before statements move to a
+     * helper. Generated lines compile to less than one byte of bytecode per
+     * character, so this leaves ample room below the 64 KB limit.
+     */
+    private static final int METHOD_LIMIT = 16000;
+
+    private final List<String> methods = new ArrayList<>();
+    private int functionCount = 0;
+    private int helperCount = 0;
+    private int tempCount = 0;      // Temporaries are numbered across the whole class.
+
+    // Constants, by their index in ScriptConstants.
+    private final List<Token> tokens = new ArrayList<>();
+    private final List<Object> values = new ArrayList<>();
+    private final Map<Object, Integer> valueIndex = new HashMap<>();
+    private final List<int[]> cellParams = new ArrayList<>();
+    private final List<Cell.Capture[]> captures = new ArrayList<>();
+
+    // State of the method being generated.
+    private StringBuilder out;
+    private int indent;
+    private int depth;              // Scope depth; env0 is the global environment.
+    private boolean inFunction;     // Whether a `return` may end the method.
+
+    /* Returns the source of com.craftinginterpreters.lox.LoxScript; its constants() come after. */
+    String compile(List<Stmt> statements) {
+        out = new StringBuilder();
+        indent = 2;
+        depth = 0;
+        inFunction = false;
+        statements(statements);
+        methods.add(0, method("static void run(Environment env0)"));
+
+        StringBuilder source = new StringBuilder();
+        source.append("package com.craftinginterpreters.lox;\n\n")
+              .append("import static com.craftinginterpreters.lox.LoxRuntime.*;\n\n")
+              .append("final class ").append(CLASS_NAME).append(" {\n")
+              .append("    private static final Interpreter interpreter = new Interpreter();\n")
+              .append("    private static final Environment globals = interpreter.globals;\n")
+              .append("    private static final ScriptConstants constants =\n")
+              .append("            ScriptConstants.load(").append(CLASS_NAME).append(".class);\n")
+              .append("    private static final Token[] T = constants.tokens;\n")
+              .append("    private static final Object[] K = constants.values;\n")
+              .append("    private static final int[][] P = constants.cellParams;\n")
+              .append("    private static final Cell.Capture[][] C = constants.captures;\n")
+              .append('\n')
+              .append("    public static void main(String[] args) {\n")
+              .append("        try {\n")
+              .append("            run(globals);\n")
+              .append("        } catch (RuntimeError error) {\n")
+              .append("            Lox.runtimeError(error);\n")
+              .append("            System.exit(70);\n")
+              .append("        }\n")
+              .append("    }\n");
+        for (String method : methods) {
+            source.append('\n').append(method);
+        }
+        return source.append("}\n").toString();
+    }
+
+    /* The constants the compiled class loads, to be stored as its resource. */
+    ScriptConstants constants() {
+        return new ScriptConstants(tokens.toArray(new Token[0]), values.toArray(),
+                cellParams.toArray(new int[0][]), captures.toArray(new Cell.Capture[0][]));
+    }
+
+    /* A block without a scope of its own keeps using the enclosing Environment. */
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        line("{");
+        indent++;
+        if (stmt.scoped) {
+            depth++;
+            line("Environment env" + depth + " = new Environment(env" + (depth - 1) + ");");
+        }
+        statements(stmt.statements);
+        if (stmt.scoped) depth--;
+        indent--;
+        line("}");
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        line("discard(" + expression(stmt.expression) + ");");
+        return null;
+    }
+
+    /* Generates the body as its own method, then creates the function value here. */
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        String name = "fn_" + stmt.name.lexeme + "_" + functionCount++;
+
+        StringBuilder enclosing = out;
+        int enclosingIndent = indent;
+        boolean enclosingInFunction = inFunction;
+        out = new StringBuilder();
+        indent = 2;
+        inFunction = true;
+
+        depth++;
+        statements(stmt.body);
+        line("return null;");
+        methods.add(method("private static Object " + name + "(Environment env" + depth + ")"));
+        depth--;
+
+        out = enclosing;
+        indent = enclosingIndent;
+        inFunction = enclosingInFunction;
+
+        String function = "new CompiledFunction(" +
+                JavaSourceCompiler.quote(stmt.name.lexeme) + ", " + stmt.params.size() +
+                ", " + cellParams(stmt.cellParams) +
+                ", env" + depth + ".capture(" + captures(stmt.captures) + "), " +
+                CLASS_NAME + "::" + name + ")";
+        if (stmt.captured) {
+            // The function may capture itself, so its Cell must exist first.
+            String cell = "cell" + functionCount++;
+            line("Cell " + cell + " = new Cell(null);");
+            line("env" + depth + ".define(" + stmt.slot + ", " + cell + ");");
+            line(cell + ".value = " + function + ";");
+            return null;
+        }
+        define(stmt.name, stmt.slot, false, function);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        line("if (truthy(" + expression(stmt.condition) + ")) {");
+        branch(stmt.thenBranch);
+        if (stmt.elseBranch != null) {
+            line("} else {");
+            branch(stmt.elseBranch);
+        }
+        line("}");
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        line("print(" + expression(stmt.expression) + ");");
+        return null;
+    }
+
+    /* `if (true)` keeps javac from rejecting any statements that follow as unreachable. */
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        String value = stmt.value == null ? "null" : expression(stmt.value);
+        line("if (true) return " + value + ";");
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        define(stmt.name, stmt.slot, stmt.captured,
+                stmt.initializer == null ? "null" : expression(stmt.initializer));
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        line("while (truthy(" + expression(stmt.condition) + ")) {");
+        branch(stmt.body);
+        line("}");
+        return null;
+    }
+
+    @Override
+    public String visitAssignExpr(Expr.Assign expr) {
+        String value = compile(expr.value);
+        if (expr.upvalue != -1) {
+            return "assignUpvalue(env" + depth + ", " + expr.upvalue + ", " + value + ")";
+        }
+        if (expr.depth == -1) {
+            return "assign(globals, " + token(expr.name) + ", " + value + ")";
+        }
+        if (expr.captured) {
+            return "assignCell(env" + depth + ", " + expr.depth + ", " + expr.slot + ", " + value + ")";
+        }
+        return "assignAt(env" + depth + ", " + expr.depth + ", " + expr.slot + ", " + value + ")";
+    }
+
+    @Override
+    public String visitBinaryExpr(Expr.Binary expr) {
+        String operands = compile(expr.left) + ", " + compile(expr.right);
+        String operator = token(expr.operator);
+
+        switch (expr.operator.type) {
+            case GREATER:       return "greater(" + operands + ", " + operator + ")";
+            case GREATER_EQUAL: return "greaterEqual(" + operands + ", " + operator + ")";
+            case LESS:          return "less(" + operands + ", " + operator + ")";
+            case LESS_EQUAL:    return "lessEqual(" + operands + ", " + operator + ")";
+            case MINUS:         return "subtract(" + operands + ", " + operator + ")";
+            case PLUS:          return "add(" + operands + ", " + operator + ")";
+            case SLASH:         return "divide(" + operands + ", " + operator + ")";
+            case STAR:          return "multiply(" + operands + ", " + operator + ")";
+            case BANG_EQUAL:    return "!equal(" + operands + ")";
+            case EQUAL_EQUAL:   return "equal(" + operands + ")";
+        }
+
+        // Unreachable.
+        return null;
+    }
+
+    @Override
+    public String visitCallExpr(Expr.Call expr) {
+        StringBuilder call = new StringBuilder("call(interpreter, ");
+        call.append(compile(expr.callee)).append(", ").append(token(expr.paren));
+        for (Expr argument : expr.arguments) {
+            call.append(", ").append(compile(argument));
+        }
+        return call.append(")").toString();
+    }
+
+    @Override
+    public String visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    /* Numbers and strings are constants, so a number is boxed once rather than on every evaluation. */
+    @Override
+    public String visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        if (value instanceof Boolean) {
+            return (boolean)value ? "Boolean.TRUE" : "Boolean.FALSE";
+        }
+        if (value == null) return "null";
+
+        Integer index = valueIndex.get(value);
+        if (index == null) {
+            index = values.size();
+            values.add(value);
+            valueIndex.put(value, index);
+        }
+        return "K[" + index + "]";
+    }
+
+    /* The left operand is kept in a temporary so it is not evaluated twice. */
+    @Override
+    public String visitLogicalExpr(Expr.Logical expr) {
+        String left = compile(expr.left);
+        String right = compile(expr.right);
+        String temp = "t" + tempCount++;
+        String test = "truthy(" + temp + " = " + left + ")";
+        if (expr.operator.type == TokenType.OR) {
+            return "(" + test + " ? " + temp + " : " + right + ")";
+        }
+        return "(!" + test + " ? " + temp + " : " + right + ")";
+    }
+
+    @Override
+    public String visitUnaryExpr(Expr.Unary expr) {
+        String right = compile(expr.right);
+        switch (expr.operator.type) {
+            case BANG:
+                // Mirrors the tree walker, which yields the operand's truthiness.
+                return "truthy(" + right + ")";
+            case MINUS:
+                return "negate(" + right + ", " + token(expr.operator) + ")";
+        }
+
+        // Unreachable.
+        return null;
+    }
+
+    @Override
+    public String visitVariableExpr(Expr.Variable expr) {
+        if (expr.upvalue != -1) {
+            return "env" + depth + ".getUpvalue(" + expr.upvalue + ")";
+        }
+        if (expr.depth == -1) {
+            return "globals.get(" + token(expr.name) + ")";
+        }
+        if (expr.captured) {
+            return "env" + depth + ".getCell(" + expr.depth + ", " + expr.slot + ")";
+        }
+        return "env" + depth + ".getAt(" + expr.depth + ", " + expr.slot + ")";
+    }
+
+    private String compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    /*
+     * Compiles the expression of the statement about to be emitted, first
+     * declaring the temporaries it uses. So each statement's code stands on
+     * its own, and can be moved into a helper method.
+     */
+    private String expression(Expr expr) {
+        int first = tempCount;
+        String code = compile(expr);
+        for (int i = first; i < tempCount; i++) {
+            line("Object t" + i + " = null;");
+        }
+        return code;
+    }
+
+    /*
+     * Emits statements in order. If they would make the method too large,
+     * runs of them go into helper methods instead, which take the current
+     * Environment and hand back the value of any `return` they run.
+     */
+    private void statements(List<Stmt> statements) {
+        StringBuilder enclosing = out;
+        List<String> code = new ArrayList<>();
+        int length = 0;
+        for (Stmt statement : statements) {
+            out = new StringBuilder();
+            statement.accept(this);
+            code.add(out.toString());
+            length += out.length();
+        }
+        out = enclosing;
+
+        if (length <= METHOD_LIMIT) {
+            for (String statement : code) out.append(statement);
+            return;
+        }
+
+        StringBuilder helper = new StringBuilder();
+        for (String statement : code) {
+            if (helper.length() > 0 && helper.length() + statement.length() > METHOD_LIMIT) {
+                callHelper(helper);
+                helper = new StringBuilder();
+            }
+            helper.append(statement);
+        }
+        callHelper(helper);
+    }
+
+    private void callHelper(StringBuilder body) {
+        String name = "part" + helperCount++;
+        String environment = "env" + depth;
+        methods.add("    private static Object " + name + "(Environment " + environment + ") {\n" +
+                body + "        return NO_RETURN;\n    }\n");
+        if (inFunction) {
+            line("{ Object returned = " + name + "(" + environment + "); " +
+                    "if (returned != NO_RETURN) return returned; }");
+        } else {
+            line(name + "(" + environment + ");");
+        }
+    }
+
+    /* Emits a branch or loop body inside braces, where a new Java block is always legal. */
+    private void branch(Stmt stmt) {
+        indent++;
+        stmt.accept(this);
+        indent--;
+    }
+
+    /* Binds a declaration like Interpreter.define(): by name at the top level, else by slot. */
+    private void define(Token name, int slot, boolean captured, String value) {
+        if (depth == 0) {
+            line("env0.define(" + JavaSourceCompiler.quote(name.lexeme) + ", " + value + ");");
+        } else if (captured) {
+            line("env" + depth + ".define(" + slot + ", new Cell(" + value + "));");
+        } else {
+            line("env" + depth + ".define(" + slot + ", " + value + ");");
+        }
+    }
+
+    /* Refers to the slots of a function's captured parameters, as a constant. */
+    private String cellParams(int[] slots) {
+        cellParams.add(slots);
+        return "P[" + (cellParams.size() - 1) + "]";
+    }
+
+    /* Refers to where a function finds its upvalues, as a constant. */
+    private String captures(Cell.Capture[] captures) {
+        this.captures.add(captures);
+        return "C[" + (this.captures.size() - 1) + "]";
+    }
+
+    /* Refers to a constant Token, so runtime errors report the same line and lexeme. */
+    private String token(Token token) {
+        tokens.add(token);
+        return "T[" + (tokens.size() - 1) + "]";
+    }
+
+    /* Wraps the generated statements in a method. */
+    private String method(String signature) {
+        return "    " + signature + " {\n" + out + "    }\n";
+    }
+
+    private void line(String text) {
+        for (int i = 0; i < indent; i++) out.append("    ");
+        out.append(text).append('\n');
+    }
+}
@@ -0,0 +1,507 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+/*
+ * Compiles resolved statements into bytecode for the VM.
+ * The Resolver has already reported scoping errors, so this pass only lays out
+ * stack slots and upvalues.
+ */
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAX_OPERAND = 0xffffff;
+
+    /* A local variable living in the current function's stack window. */
+    private static class Local {
+        final String name;
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    /* A variable captured from an enclosing function. */
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    /* Compilation state for the function currently being compiled. */
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final VMFunction function;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        int stackDepth = 0;
+
+        FunctionState(FunctionState enclosing, VMFunction function) {
+            this.enclosing = enclosing;
+            this.function = function;
+        }
+    }
+
+    private final VM vm;
+    private FunctionState current = null;
+    private int line = 1;   // Line attributed to emitted instructions.
+
+    BytecodeCompiler(VM vm) {
+        this.vm = vm;
+    }
+
+    /* Compiles a whole program into the body of an implicit script function. */
+    VMFunction compile(List<Stmt> statements) {
+        beginFunction(new VMFunction(null, 0));
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        return endFunction();
+    }
+
+    /* Compiles blocks. */
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    /* Compiles expression statements, discarding the result. */
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        if (stmt.expression instanceof Expr.Assign) {
+            // Store without leaving the assigned value behind.
+            Expr.Assign assign = (Expr.Assign)stmt.expression;
+            compile(assign.value);
+            line = assign.name.line;
+            namedVariable(assign.name, STORE_LOCAL, STORE_UPVALUE, STORE_GLOBAL);
+            return null;
+        }
+
+        compile(stmt.expression);
+        emit(POP);
+        return null;
+    }
+
+    /* Compiles function declarations into closures. */
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+
+        // Declare a local function first so its body can call it recursively.
+        if (current.scopeDepth > 0) addLocal(stmt.name.lexeme);
+        function(stmt);
+        if (current.scopeDepth == 0) {
+            emitWithOperand(DEFINE_GLOBAL, vm.globalSlot(stmt.name.lexeme));
+        }
+        return null;
+    }
+
+    /* Compiles if statements. */
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+
+        int thenJump = emitJump(POP_JUMP_IF_FALSE);
+        compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            patchJump(thenJump);
+            return null;
+        }
+
+        int elseJump = emitJump(JUMP);
+        patchJump(thenJump);
+        compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    /* Compiles print statements. */
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emit(PRINT);
+        return null;
+    }
+
+    /* Compiles return statements. */
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            emit(NIL);
+        }
+
+        line = stmt.keyword.line;
+        emit(RETURN);
+        return null;
+    }
+
+    /* Compiles variable declarations. */
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emit(NIL);
+        }
+
+        line = stmt.name.line;
+        if (current.scopeDepth > 0) {
+            // The initializer's value simply stays on the stack as the local.
+            addLocal(stmt.name.lexeme);
+        } else {
+            emitWithOperand(DEFINE_GLOBAL, vm.globalSlot(stmt.name.lexeme));
+        }
+        return null;
+    }
+
+    /* Compiles while loops. */
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = current.function.chunk.count;
+        compile(stmt.condition);
+
+        int exitJump = emitJump(POP_JUMP_IF_FALSE);
+        compile(stmt.body);
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        return null;
+    }
+
+    /* Compiles variable assignment expressions. */
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        namedVariable(expr.name, SET_LOCAL, SET_UPVALUE, SET_GLOBAL);
+        return null;
+    }
+
+    /* Compiles binary expressions. */
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+
+        // Arithmetic and comparisons against a number literal take it as an operand.
+        if (expr.right instanceof Expr.Literal &&
+            ((Expr.Literal)expr.right).value instanceof Double) {
+            byte op = constantForm(expr.operator.type);
+            if (op != -1) {
+                line = expr.operator.line;
+                emitWithOperand(op, makeConstant(((Expr.Literal)expr.right).value));
+                return null;
+            }
+        }
+
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case GREATER:       emit(GREATER); break;
+            case GREATER_EQUAL: emit(GREATER_EQUAL); break;
+            case LESS:          emit(LESS); break;
+            case LESS_EQUAL:    emit(LESS_EQUAL); break;
+            case MINUS:         emit(SUBTRACT); break;
+            case PLUS:          emit(ADD); break;
+            case SLASH:         emit(DIVIDE); break;
+            case STAR:          emit(MULTIPLY); break;
+            case BANG_EQUAL:    emit(NOT_EQUAL); break;
+            case EQUAL_EQUAL:   emit(EQUAL); break;
+        }
+        return null;
+    }
+
+    /* Returns the fused number-constant form of a binary operator, or -1. */
+    private static byte constantForm(TokenType operator) {
+        switch (operator) {
+            case PLUS:          return ADD_CONSTANT;
+            case MINUS:         return SUBTRACT_CONSTANT;
+            case STAR:          return MULTIPLY_CONSTANT;
+            case SLASH:         return DIVIDE_CONSTANT;
+            case GREATER:       return GREATER_CONSTANT;
+            case GREATER_EQUAL: return GREATER_EQUAL_CONSTANT;
+            case LESS:          return LESS_CONSTANT;
+            case LESS_EQUAL:    return LESS_EQUAL_CONSTANT;
+            default:            return -1;
+        }
+    }
+
+    /* Compiles call expressions. */
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compile(expr.callee);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+
+        line = expr.paren.line;
+        emitWithOperand(CALL, expr.arguments.size());
+        adjustStack(-expr.arguments.size());
+        return null;
+    }
+
+    /* Compiles parentheses. */
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    /* Compiles literals. */
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(NIL);
+        } else if (expr.value instanceof Boolean) {
+            emit((boolean)expr.value ? TRUE : FALSE);
+        } else {
+            emitWithOperand(CONSTANT, makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    /* Compiles short-circuiting logical expressions. */
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(JUMP_IF_FALSE);
+            int endJump = emitJump(JUMP);
+
+            patchJump(elseJump);
+            emit(POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(JUMP_IF_FALSE);
+            emit(POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    /* Compiles unary expressions. */
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG:  emit(NOT); break;
+            case MINUS: emit(NEGATE); break;
+        }
+        return null;
+    }
+
+    /* Compiles variable expressions. */
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        namedVariable(expr.name, GET_LOCAL, GET_UPVALUE, GET_GLOBAL);
+        return null;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    /* Compiles a function body and emits the instruction that closes over it. */
+    private void function(Stmt.Function stmt) {
+        beginFunction(new VMFunction(stmt.name.lexeme, stmt.params.size()));
+        beginScope();
+        // The caller pushes the arguments into the parameters' slots.
+        for (Token param : stmt.params) {
+            adjustStack(1);
+            addLocal(param.lexeme);
+        }
+        for (Stmt statement : stmt.body) {
+            compile(statement);
+        }
+
+        FunctionState state = current;
+        VMFunction function = endFunction();
+
+        line = stmt.name.line;
+        emitWithOperand(CLOSURE, makeConstant(function));
+        for (Upvalue upvalue : state.upvalues) {
+            current.function.chunk.write(upvalue.index << 1 | (upvalue.isLocal ? 1 : 0), line);
+        }
+    }
+
+    /* Starts compiling a new function, reserving slot zero for the callee. */
+    private void beginFunction(VMFunction function) {
+        current = new FunctionState(current, function);
+        current.locals.add(new Local("", 0));
+        current.stackDepth = 1;
+        current.function.maxSlots = 1;
+    }
+
+    /* Finishes the current function with an implicit `return nil;`. */
+    private VMFunction endFunction() {
+        emit(NIL);
+        emit(RETURN);
+
+        VMFunction function = current.function;
+        function.upvalueCount = current.upvalues.size();
+        current = current.enclosing;
+        return function;
+    }
+
+    /* Enters a block scope. */
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    /* Exits a block scope, discarding or closing over its locals. */
+    private void endScope() {
+        current.scopeDepth--;
+
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() &&
+               locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            if (locals.get(locals.size() - 1).isCaptured) {
+                emit(CLOSE_UPVALUE);
+            } else {
+                emit(POP);
+            }
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    /* Declares a local in the slot just pushed onto the stack. */
+    private void addLocal(String name) {
+        if (current.locals.size() > MAX_OPERAND) {
+            Lox.error(line, "Too many local variables in function.");
+        }
+        current.locals.add(new Local(name, current.scopeDepth));
+    }
+
+    /* Emits the local, upvalue or global form of a variable access. */
+    private void namedVariable(Token name, byte localOp, byte upvalueOp, byte globalOp) {
+        int arg = resolveLocal(current, name.lexeme);
+        if (arg != -1) {
+            emitWithOperand(localOp, arg);
+            return;
+        }
+
+        arg = resolveUpvalue(current, name.lexeme);
+        if (arg != -1) {
+            emitWithOperand(upvalueOp, arg);
+            return;
+        }
+
+        emitWithOperand(globalOp, vm.globalSlot(name.lexeme));
+    }
+
+    /* Returns the stack slot of a local in the given function, or -1. */
+    private int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name)) return i;
+        }
+
+        return -1;
+    }
+
+    /* Returns the index of an upvalue capturing the variable, adding one if needed, or -1. */
+    private int resolveUpvalue(FunctionState state, String name) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false);
+        }
+
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+        }
+
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    private int makeConstant(Object value) {
+        int constant = current.function.chunk.addConstant(value);
+        if (constant > MAX_OPERAND) {
+            Lox.error(line, "Too many constants in one chunk.");
+        }
+        return constant;
+    }
+
+    /* Emits an instruction without an operand. */
+    private void emit(byte op) {
+        emitWithOperand(op, 0);
+    }
+
+    /* Emits an instruction and tracks its effect on the stack height. */
+    private void emitWithOperand(byte op, int operand) {
+        current.function.chunk.write(op | operand << 8, line);
+        adjustStack(STACK_EFFECT[op]);
+    }
+
+    /* Records a change in stack height, keeping the function's high-water mark. */
+    private void adjustStack(int delta) {
+        current.stackDepth += delta;
+        if (current.stackDepth > current.function.maxSlots) {
+            current.function.maxSlots = current.stackDepth;
+        }
+    }
+
+    /* Emits a jump with a placeholder offset and returns where to patch it. */
+    private int emitJump(byte op) {
+        emit(op);
+        return current.function.chunk.count - 1;
+    }
+
+    /* Points a previously emitted jump at the next instruction. */
+    private void patchJump(int offset) {
+        Chunk chunk = current.function.chunk;
+        int jump = chunk.count - offset - 1;
+        if (jump > MAX_OPERAND) {
+            Lox.error(line, "Too much code to jump over.");
+        }
+
+        chunk.code[offset] |= jump << 8;
+    }
+
+    /* Emits a backward jump to `loopStart`. */
+    private void emitLoop(int loopStart) {
+        int offset = current.function.chunk.count - loopStart + 1;
+        if (offset > MAX_OPERAND) {
+            Lox.error(line, "Loop body too large.");
+        }
+        emitWithOperand(LOOP, offset);
+    }
+}
@@ -0,0 +1,37 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * A local variable that some closure captures. The declaring frame's slot
+ * holds the Cell, and each closure using the variable holds the same Cell
+ * as an upvalue, so a closure keeps alive only the variables it uses.
+ */
+final class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+
+    /* Where a new closure finds one of its upvalues, as worked out by the Resolver. */
+    static final class Capture {
+        static final Capture[] NONE = new Capture[0];
+
+        final boolean local;    // A slot of the declaring environment, else one of its upvalues.
+        final int depth;        // For a slot: the distance to the environment holding it.
+        final int index;        // The slot, or the upvalue's index.
+
+        private Capture(boolean local, int depth, int index) {
+            this.local = local;
+            this.depth = depth;
+            this.index = index;
+        }
+
+        static Capture slot(int depth, int slot) {
+            return new Capture(true, depth, slot);
+        }
+
+        static Capture upvalue(int index) {
+            return new Capture(false, 0, index);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/* A sequence of bytecode together with its constant pool and line table. */
+class Chunk {
+    int[] code = new int[16];
+    int[] lines = new int[16];      // Source line of each instruction in `code`.
+    int count = 0;
+    Object[] constants = new Object[8];
+    int constantCount = 0;
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    /* Appends an instruction word to the chunk. */
+    void write(int instruction, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = instruction;
+        lines[count] = line;
+        count++;
+    }
+
+    /*
+     * Adds a value to the constant pool and returns its index.
+     * Equal constants share a single entry.
+     */
+    int addConstant(Object value) {
+        Integer existing = constantIndex.get(value);
+        if (existing != null) return existing;
+
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        constantIndex.put(value, constantCount);
+        return constantCount++;
+    }
+}
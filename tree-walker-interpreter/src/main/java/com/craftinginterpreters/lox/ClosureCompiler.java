@@ -0,0 +1,439 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/*
+ * Compiles the resolved AST into a graph of Java lambdas. Every operator
+ * is decided once, at compile time, so running the program only calls
+ * pre-bound closures instead of dispatching through the visitors.
+ */
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.Evaluator>,
+        Stmt.Visitor<ClosureCompiler.Executor> {
+    /* A compiled expression. */
+    interface Evaluator {
+        Object evaluate(Environment environment);
+    }
+
+    /* A compiled statement. */
+    interface Executor {
+        void execute(Environment environment);
+    }
+
+    private final Interpreter interpreter;
+    private int scopeDepth = 0;     // Zero while compiling top-level code.
+
+    ClosureCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    void interpret(List<Stmt> statements) {
+        Executor[] program = compile(statements);
+        try {
+            executeAll(program, interpreter.globals);
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    @Override
+    public Executor visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.scoped) {
+            final Executor[] statements = compile(stmt.statements);
+            return environment -> executeAll(statements, environment);
+        }
+
+        scopeDepth++;
+        final Executor[] statements = compile(stmt.statements);
+        scopeDepth--;
+        return environment -> executeAll(statements, new Environment(environment));
+    }
+
+    @Override
+    public Executor visitExpressionStmt(Stmt.Expression stmt) {
+        final Evaluator expression = compile(stmt.expression);
+        return environment -> expression.evaluate(environment);
+    }
+
+    @Override
+    public Executor visitFunctionStmt(Stmt.Function stmt) {
+        final Token name = stmt.name;
+        final int slot = stmt.slot;
+        final int arity = stmt.params.size();
+        final int[] cellParams = stmt.cellParams;
+        final Cell.Capture[] captures = stmt.captures;
+        boolean global = scopeDepth == 0;
+
+        scopeDepth++;
+        final Executor[] body = compile(stmt.body);
+        scopeDepth--;
+
+        if (global) {
+            final Environment globals = interpreter.globals;
+            return environment -> globals.define(name.lexeme, new ClosureFunction(
+                    name, arity, cellParams, body, environment.capture(captures)));
+        }
+        if (stmt.captured) {
+            // The function may capture itself, so its Cell must exist first.
+            return environment -> {
+                Cell cell = new Cell(null);
+                environment.define(slot, cell);
+                cell.value = new ClosureFunction(
+                        name, arity, cellParams, body, environment.capture(captures));
+            };
+        }
+        return environment -> environment.define(slot, new ClosureFunction(
+                name, arity, cellParams, body, environment.capture(captures)));
+    }
+
+    @Override
+    public Executor visitIfStmt(Stmt.If stmt) {
+        final Evaluator condition = compile(stmt.condition);
+        final Executor thenBranch = compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            return environment -> {
+                if (Interpreter.isTruthy(condition.evaluate(environment))) {
+                    thenBranch.execute(environment);
+                }
+            };
+        }
+
+        final Executor elseBranch = compile(stmt.elseBranch);
+        return environment -> {
+            if (Interpreter.isTruthy(condition.evaluate(environment))) {
+                thenBranch.execute(environment);
+            } else {
+                elseBranch.execute(environment);
+            }
+        };
+    }
+
+    @Override
+    public Executor visitPrintStmt(Stmt.Print stmt) {
+        final Evaluator expression = compile(stmt.expression);
+        return environment ->
+                System.out.println(Interpreter.stringify(expression.evaluate(environment)));
+    }
+
+    @Override
+    public Executor visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            return environment -> {
+                throw new Return(null);
+            };
+        }
+
+        final Evaluator value = compile(stmt.value);
+        return environment -> {
+            throw new Return(value.evaluate(environment));
+        };
+    }
+
+    @Override
+    public Executor visitVarStmt(Stmt.Var stmt) {
+        final Evaluator initializer = stmt.initializer == null
+                ? environment -> null
+                : compile(stmt.initializer);
+
+        if (scopeDepth == 0) {
+            final Environment globals = interpreter.globals;
+            final String name = stmt.name.lexeme;
+            return environment -> globals.define(name, initializer.evaluate(environment));
+        }
+        final int slot = stmt.slot;
+        if (stmt.captured) {
+            return environment ->
+                    environment.define(slot, new Cell(initializer.evaluate(environment)));
+        }
+        return environment -> environment.define(slot, initializer.evaluate(environment));
+    }
+
+    @Override
+    public Executor visitWhileStmt(Stmt.While stmt) {
+        final Evaluator condition = compile(stmt.condition);
+        final Executor body = compile(stmt.body);
+        return environment -> {
+            while (Interpreter.isTruthy(condition.evaluate(environment))) {
+                body.execute(environment);
+            }
+        };
+    }
+
+    @Override
+    public Evaluator visitAssignExpr(Expr.Assign expr) {
+        final Evaluator value = compile(expr.value);
+        final Token name = expr.name;
+
+        if (expr.upvalue != -1) {
+            final int index = expr.upvalue;
+            return environment -> {
+                Object result = value.evaluate(environment);
+                environment.assignUpvalue(index, result);
+                return result;
+            };
+        }
+
+        if (expr.depth == -1) {
+            final Environment globals = interpreter.globals;
+            return environment -> {
+                Object result = value.evaluate(environment);
+                globals.assign(name, result);
+                return result;
+            };
+        }
+
+        final int depth = expr.depth;
+        final int slot = expr.slot;
+        if (expr.captured) {
+            return environment -> {
+                Object result = value.evaluate(environment);
+                environment.assignCell(depth, slot, result);
+                return result;
+            };
+        }
+        return environment -> {
+            Object result = value.evaluate(environment);
+            environment.assignAt(depth, slot, result);
+            return result;
+        };
+    }
+
+    /* Chooses the closure for the operator once, rather than on every evaluation. */
+    @Override
+    public Evaluator visitBinaryExpr(Expr.Binary expr) {
+        final Evaluator left = compile(expr.left);
+        final Evaluator right = compile(expr.right);
+        final Token operator = expr.operator;
+
+        switch (operator.type) {
+            case GREATER:
+                return environment -> {
+                    Object a = left.evaluate(environment);
+                    Object b = right.evaluate(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double)a > (double)b;
+                };
+            case GREATER_EQUAL:
+                return environment -> {
+                    Object a = left.evaluate(environment);
+                    Object b = right.evaluate(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double)a >= (double)b;
+                };
+            case LESS:
+                return environment -> {
+                    Object a = left.evaluate(environment);
+                    Object b = right.evaluate(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double)a < (double)b;
+                };
+            case LESS_EQUAL:
+                return environment -> {
+                    Object a = left.evaluate(environment);
+                    Object b = right.evaluate(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double)a <= (double)b;
+                };
+            case MINUS:
+                return environment -> {
+                    Object a = left.evaluate(environment);
+                    Object b = right.evaluate(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double)a - (double)b;
+                };
+            case PLUS:
+                return environment -> {
+                    Object a = left.evaluate(environment);
+                    Object b = right.evaluate(environment);
+                    if (a instanceof Double && b instanceof Double) {
+                        return (double)a + (double)b;
+                    }
+                    if (a instanceof String && b instanceof String) {
+                        return (String)a + (String)b;
+                    }
+                    throw new RuntimeError(operator,
+                        "Operands must be two numbers or two strings.");
+                };
+            case SLASH:
+                return environment -> {
+                    Object a = left.evaluate(environment);
+                    Object b = right.evaluate(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double)a / (double)b;
+                };
+            case STAR:
+                return environment -> {
+                    Object a = left.evaluate(environment);
+                    Object b = right.evaluate(environment);
+                    checkNumberOperands(operator, a, b);
+                    return (double)a * (double)b;
+                };
+            case BANG_EQUAL:
+                return environment -> !Interpreter.isEqual(
+                        left.evaluate(environment), right.evaluate(environment));
+            case EQUAL_EQUAL:
+                return environment -> Interpreter.isEqual(
+                        left.evaluate(environment), right.evaluate(environment));
+        }
+
+        // Unreachable.
+        return null;
+    }
+
+    /*
+     * Calls through the callable's entry point for the number of arguments.
+     * (One lambda per arity, evaluating into locals, would save the array,
+     * but C2 then inlines recursive Lox calls so deeply that fib runs slower.)
+     */
+    @Override
+    public Evaluator visitCallExpr(Expr.Call expr) {
+        final Evaluator callee = compile(expr.callee);
+        final Evaluator[] arguments = new Evaluator[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        final Interpreter interpreter = this.interpreter;
+
+        if (arguments.length == 0) {
+            return environment -> {
+                Object function = callee.evaluate(environment);
+                try {
+                    return Interpreter.callable(function, expr).call0(interpreter);
+                } catch (StackOverflowError error) {
+                    throw overflow(expr);
+                }
+            };
+        }
+
+        return environment -> {
+            Object function = callee.evaluate(environment);
+
+            Object[] values = new Object[arguments.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = arguments[i].evaluate(environment);
+            }
+
+            LoxCallable callable = Interpreter.callable(function, expr);
+            try {
+                switch (values.length) {
+                    case 1: return callable.call1(interpreter, values[0]);
+                    case 2: return callable.call2(interpreter, values[0], values[1]);
+                    case 3: return callable.call3(interpreter, values[0], values[1], values[2]);
+                }
+                return callable.callN(interpreter, values);
+            } catch (StackOverflowError error) {
+                throw overflow(expr);
+            }
+        };
+    }
+
+    /*
+     * Recursion too deep for the Java stack, tail calls included, is a Lox
+     * error reported at the call that ran out.
+     */
+    private static RuntimeError overflow(Expr.Call expr) {
+        return new RuntimeError(expr.paren, "Stack overflow.");
+    }
+
+    /* Parentheses only affect parsing, so they compile to their contents. */
+    @Override
+    public Evaluator visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Evaluator visitLiteralExpr(Expr.Literal expr) {
+        final Object value = expr.value;
+        return environment -> value;
+    }
+
+    @Override
+    public Evaluator visitLogicalExpr(Expr.Logical expr) {
+        final Evaluator left = compile(expr.left);
+        final Evaluator right = compile(expr.right);
+
+        if (expr.operator.type == TokenType.OR) {
+            return environment -> {
+                Object value = left.evaluate(environment);
+                if (Interpreter.isTruthy(value)) return value;
+                return right.evaluate(environment);
+            };
+        }
+        return environment -> {
+            Object value = left.evaluate(environment);
+            if (!Interpreter.isTruthy(value)) return value;
+            return right.evaluate(environment);
+        };
+    }
+
+    @Override
+    public Evaluator visitUnaryExpr(Expr.Unary expr) {
+        final Evaluator right = compile(expr.right);
+        final Token operator = expr.operator;
+
+        switch (operator.type) {
+            case BANG:
+                // Mirrors the tree walker, which yields the operand's truthiness.
+                return environment -> Interpreter.isTruthy(right.evaluate(environment));
+            case MINUS:
+                return environment -> {
+                    Object value = right.evaluate(environment);
+                    if (!(value instanceof Double)) {
+                        throw new RuntimeError(operator, "Operand must be a number.");
+                    }
+                    return -(double)value;
+                };
+        }
+
+        // Unreachable.
+        return null;
+    }
+
+    @Override
+    public Evaluator visitVariableExpr(Expr.Variable expr) {
+        if (expr.upvalue != -1) {
+            final int index = expr.upvalue;
+            return environment -> environment.getUpvalue(index);
+        }
+
+        if (expr.depth == -1) {
+            final Environment globals = interpreter.globals;
+            final Token name = expr.name;
+            return environment -> globals.get(name);
+        }
+
+        final int depth = expr.depth;
+        final int slot = expr.slot;
+        if (expr.captured) return environment -> environment.getCell(depth, slot);
+        return environment -> environment.getAt(depth, slot);
+    }
+
+    private static void checkNumberOperands(Token operator,
+                                            Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    /* Runs compiled statements in order within the given environment. */
+    static void executeAll(Executor[] statements, Environment environment) {
+        for (Executor statement : statements) {
+            statement.execute(environment);
+        }
+    }
+
+    private Executor compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Evaluator compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private Executor[] compile(List<Stmt> statements) {
+        Executor[] compiled = new Executor[statements.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = compile(statements.get(i));
+        }
+        return compiled;
+    }
+}
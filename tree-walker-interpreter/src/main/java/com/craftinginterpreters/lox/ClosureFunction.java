@@ -0,0 +1,85 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/* A Lox function whose body is a compiled closure graph. */
+class ClosureFunction implements LoxCallable {
+    private final Token name;
+    private final int arity;
+    private final int[] cellParams;                 // Parameters that closures capture.
+    private final ClosureCompiler.Executor[] body;  // Shared by every closure of the same declaration.
+    private final Cell[] upvalues;
+
+    ClosureFunction(Token name, int arity, int[] cellParams,
+                    ClosureCompiler.Executor[] body, Cell[] upvalues) {
+        this.name = name;
+        this.arity = arity;
+        this.cellParams = cellParams;
+        this.body = body;
+        this.upvalues = upvalues;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter,
+                       List<Object> arguments) {
+        Environment environment = new Environment(upvalues);
+        for (int i = 0; i < arity; i++) {
+            environment.define(arguments.get(i));
+        }
+        return run(environment);
+    }
+
+    /* The fixed-arity entry points bind their arguments without a list. */
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return run(new Environment(upvalues));
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        Environment environment = new Environment(upvalues);
+        environment.define(a);
+        return run(environment);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        Environment environment = new Environment(upvalues);
+        environment.define(a);
+        environment.define(b);
+        return run(environment);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        Environment environment = new Environment(upvalues);
+        environment.define(a);
+        environment.define(b);
+        environment.define(c);
+        return run(environment);
+    }
+
+    /* Runs the body in a frame whose arguments are bound. */
+    private Object run(Environment environment) {
+        for (int slot : cellParams) {
+            environment.moveToCell(slot);
+        }
+
+        try {
+            ClosureCompiler.executeAll(body, environment);
+        } catch (Return returnValue) {
+            return returnValue.value;
+        }
+        return null;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + name.lexeme + ">";
+    }
+}
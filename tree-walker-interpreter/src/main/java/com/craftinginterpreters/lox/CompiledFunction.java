@@ -0,0 +1,83 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/* A Lox function compiled ahead of time by loxc; its body is a static method. */
+class CompiledFunction implements LoxCallable {
+    /* The generated method holding a function's body. */
+    interface Body {
+        Object run(Environment environment);
+    }
+
+    private final String name;
+    private final int arity;
+    private final int[] cellParams;     // Parameters that closures capture.
+    private final Cell[] upvalues;
+    private final Body body;
+
+    CompiledFunction(String name, int arity, int[] cellParams, Cell[] upvalues, Body body) {
+        this.name = name;
+        this.arity = arity;
+        this.cellParams = cellParams;
+        this.upvalues = upvalues;
+        this.body = body;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter,
+                       List<Object> arguments) {
+        Environment environment = new Environment(upvalues);
+        for (int i = 0; i < arity; i++) {
+            environment.define(arguments.get(i));
+        }
+        return run(environment);
+    }
+
+    /* The fixed-arity entry points bind their arguments without a list. */
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return run(new Environment(upvalues));
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        Environment environment = new Environment(upvalues);
+        environment.define(a);
+        return run(environment);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        Environment environment = new Environment(upvalues);
+        environment.define(a);
+        environment.define(b);
+        return run(environment);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        Environment environment = new Environment(upvalues);
+        environment.define(a);
+        environment.define(b);
+        environment.define(c);
+        return run(environment);
+    }
+
+    /* Runs the body in a frame whose arguments are bound. */
+    private Object run(Environment environment) {
+        for (int slot : cellParams) {
+            environment.moveToCell(slot);
+        }
+        return body.run(environment);
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + name + ">";
+    }
+}
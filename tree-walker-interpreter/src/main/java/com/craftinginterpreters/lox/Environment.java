@@ -1,65 +1,190 @@
 package com.craftinginterpreters.lox;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 class Environment {
+    /* Marks a slot whose value is held unboxed in `numbers`; the Interpreter's stack uses it too. */
+    static final Object UNBOXED = new Object();
+
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>(); // Stores the bindings.
+    private final Cell[] upvalues;             // A function frame's captured variables.
+    private final Map<String, Object> values;  // Stores the global bindings by name.
+    private Object[] slots;                    // Stores the local bindings by resolved slot.
+    private double[] numbers = null;           // Unboxed lane for slots marked UNBOXED.
+    private int count = 0;                     // Number of local slots defined so far.
 
     /* For a global scope's environment. */
     Environment() {
         enclosing = null;
+        upvalues = null;
+        values = new HashMap<>();
     }
 
-    /* For a local scope's environment. */
+    /* For a block's environment, outside of any function. */
     Environment(Environment enclosing) {
         this.enclosing = enclosing;
+        upvalues = null;
+        values = null;
+        slots = new Object[8];
+    }
+
+    /*
+     * For a function call's frame. It encloses nothing: variables of
+     * enclosing scopes are reached through the closure's upvalues.
+     */
+    Environment(Cell[] upvalues) {
+        enclosing = null;
+        this.upvalues = upvalues;
+        values = null;
+        slots = new Object[8];
     }
 
-    /* Returns the variable's value. */
+    /* Returns the global variable's value. */
     Object get(Token name) {
         if (values.containsKey(name.lexeme)) {
             return values.get(name.lexeme);
         }
 
-        // Recursively search for the variable.
-        if (enclosing != null) return enclosing.get(name);
-
         throw new RuntimeError(name,
             "Undefined variable '" + name.lexeme + "'.");
     }
 
-    /* Assigns a new value to an existing variable. */
+    /* Assigns a new value to an existing global variable. */
     void assign(Token name, Object value) {
         if (values.containsKey(name.lexeme)) {
             values.put(name.lexeme, value);
             return;
         }
 
-        // Recursively search for the variable.
-        if (enclosing != null) {
-            enclosing.assign(name, value);
+        throw new RuntimeError(name,
+            "Undefined variable '" + name.lexeme + "'.");
+    }
+
+    /*
+     * The same for code that keeps a global's name but no Token, such as a
+     * FlatTree; `line` is where it is used, for the error.
+     */
+    Object get(String name, int line) {
+        Object value = values.get(name);
+        if (value != null || values.containsKey(name)) return value;
+
+        throw new RuntimeError(new Token(TokenType.IDENTIFIER, name, null, line),
+            "Undefined variable '" + name + "'.");
+    }
+
+    void assign(String name, int line, Object value) {
+        if (values.containsKey(name)) {
+            values.put(name, value);
             return;
         }
 
-        throw new RuntimeError(name,
-            "Undefined variable '" + name.lexeme + "'.");
+        throw new RuntimeError(new Token(TokenType.IDENTIFIER, name, null, line),
+            "Undefined variable '" + name + "'.");
     }
 
-    /* Binds a new variable name to a value. */
+    /* Binds a new global variable name to a value. */
     void define(String name, Object value) {
         values.put(name, value);
     }
 
-    /* Returns the variable's value, given the distance to its scope. */
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    /* Binds a function's next parameter to the next free slot. */
+    void define(Object value) {
+        define(count, value);
+    }
+
+    /*
+     * Binds a new local variable to the slot the resolver gave it. A block
+     * without an environment of its own may define the same slot again each
+     * time it runs.
+     */
+    void define(int slot, Object value) {
+        if (slot >= slots.length) {
+            slots = Arrays.copyOf(slots, Math.max(slots.length * 2, slot + 1));
+        }
+        slots[slot] = value;
+        if (slot >= count) count = slot + 1;
     }
 
-    /* Assigns a new value to an existing variable, given the distance to its scope. */
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    /* Binds a function's next parameter to a number, without boxing it. */
+    void defineNumber(double value) {
+        defineNumber(count, value);
+    }
+
+    /* Binds a new local variable to a number, without boxing it. */
+    void defineNumber(int slot, double value) {
+        define(slot, UNBOXED);
+        setNumber(slot, value);
+    }
+
+    /* Returns the local variable's value, given the distance to its scope and its slot. */
+    Object getAt(int distance, int slot) {
+        Environment environment = ancestor(distance);
+        Object value = environment.slots[slot];
+        if (value == UNBOXED) return environment.numbers[slot];
+        return value;
+    }
+
+    /* Whether a slot of this environment holds an unboxed number. */
+    boolean holdsNumber(int slot) {
+        return slots[slot] == UNBOXED;
+    }
+
+    /* Returns the unboxed number in a slot for which holdsNumber() is true. */
+    double number(int slot) {
+        return numbers[slot];
+    }
+
+    /* Stores a number in a slot of this environment, without boxing it. */
+    void setNumber(int slot, double value) {
+        if (numbers == null || numbers.length < slots.length) {
+            numbers = numbers == null ? new double[slots.length]
+                                      : Arrays.copyOf(numbers, slots.length);
+        }
+        slots[slot] = UNBOXED;
+        numbers[slot] = value;
+    }
+
+    /* Assigns a new value to an existing local variable, given the distance to its scope and its slot. */
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
+    }
+
+    /* Returns the value of a local variable held in a Cell because a closure captures it. */
+    Object getCell(int distance, int slot) {
+        return ((Cell)ancestor(distance).slots[slot]).value;
+    }
+
+    /* Assigns to a local variable held in a Cell. */
+    void assignCell(int distance, int slot, Object value) {
+        ((Cell)ancestor(distance).slots[slot]).value = value;
+    }
+
+    /* Moves a parameter that a closure captures into a Cell, once it is bound. */
+    void moveToCell(int slot) {
+        slots[slot] = new Cell(getAt(0, slot));
+    }
+
+    /* Returns the value of one of this frame's upvalues. */
+    Object getUpvalue(int index) {
+        return upvalues[index].value;
+    }
+
+    /* Assigns to one of this frame's upvalues. */
+    void assignUpvalue(int index, Object value) {
+        upvalues[index].value = value;
+    }
+
+    /* Collects the Cells a closure declared in this environment captures. */
+    Cell[] capture(Cell.Capture[] captures) {
+        Cell[] cells = new Cell[captures.length];
+        for (int i = 0; i < captures.length; i++) {
+            Cell.Capture capture = captures[i];
+            cells[i] = capture.local ? (Cell)ancestor(capture.depth).slots[capture.index]
+                                     : upvalues[capture.index];
+        }
+        return cells;
     }
 
     /* Returns the environment `distance` number of hops above the current one. */
@@ -34,6 +34,10 @@ abstract class Expr {
 
         final Token name;
         final Expr value;
+        int depth = -1;
+        int slot;
+        int upvalue = -1;
+        boolean captured;
     }
     static class Binary extends Expr {
         Binary(Expr left, Token operator, Expr right) {
@@ -66,6 +70,7 @@ abstract class Expr {
         final Expr callee;
         final Token paren;
         final List<Expr> arguments;
+        LoxCallable callable;
     }
     static class Grouping extends Expr {
         Grouping(Expr expression) {
@@ -132,6 +137,10 @@ abstract class Expr {
         }
 
         final Token name;
+        int depth = -1;
+        int slot;
+        int upvalue = -1;
+        boolean captured;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
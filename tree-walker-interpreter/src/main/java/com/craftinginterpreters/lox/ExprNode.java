@@ -0,0 +1,786 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+/*
+ * Executable expression nodes.
+ * Each node evaluates itself against the environment it is given; `+` starts
+ * out uninitialized and rewrites itself once it has seen its operand types.
+ *
+ * Besides execute(), which returns a boxed value, nodes can be asked for a
+ * primitive result: executeNumber() for a `double` and executeCondition()
+ * for a truth value. Numeric nodes implement those without boxing, so
+ * arithmetic on locals allocates nothing. A node asked for a number that
+ * turns out to be something else throws UnexpectedResult carrying the value.
+ */
+abstract class ExprNode extends Node {
+    boolean replaced = false;   // Set once the node has been swapped out of the tree.
+
+    /* Thrown by executeNumber() with a value that is not a number. */
+    static class UnexpectedResult extends RuntimeException {
+        final Object value;
+
+        UnexpectedResult(Object value) {
+            // Used for control flow, so skip the stack trace.
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+
+    abstract Object execute(Environment environment);
+
+    double executeNumber(Environment environment) {
+        Object value = execute(environment);
+        if (value instanceof Double) return (double)value;
+        throw new UnexpectedResult(value);
+    }
+
+    /* Evaluates the node for its truthiness, as a condition. */
+    boolean executeCondition(Environment environment) {
+        return Interpreter.isTruthy(execute(environment));
+    }
+
+    /* Evaluates the node for its side effects only. */
+    void executeVoid(Environment environment) {
+        execute(environment);
+    }
+
+    /*
+     * Replaces this node in its parent and returns the replacement.
+     * Callers check `replaced` first: a recursive call evaluated while this node
+     * was computing its operands may already have rewritten it.
+     */
+    <T extends ExprNode> T replace(T replacement) {
+        parent.replaceChild(this, replacement);
+        replacement.parent = parent;
+        replaced = true;
+        return replacement;
+    }
+
+    static class Literal extends ExprNode {
+        private final Object value;
+        private final double number;    // The value unboxed, when it is a number.
+
+        Literal(Object value) {
+            this.value = value;
+            this.number = value instanceof Double ? (double)value : 0;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return value;
+        }
+
+        @Override
+        double executeNumber(Environment environment) {
+            if (value instanceof Double) return number;
+            throw new UnexpectedResult(value);
+        }
+    }
+
+    static class LocalGet extends ExprNode {
+        private final int depth;
+        private final int slot;
+
+        LocalGet(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return environment.getAt(depth, slot);
+        }
+
+        @Override
+        double executeNumber(Environment environment) {
+            Environment scope = environment.ancestor(depth);
+            if (scope.holdsNumber(slot)) return scope.number(slot);
+
+            Object value = scope.getAt(0, slot);
+            if (value instanceof Double) return (double)value;
+            throw new UnexpectedResult(value);
+        }
+    }
+
+    static class GlobalGet extends ExprNode {
+        private final Environment globals;
+        private final Token name;
+
+        GlobalGet(Environment globals, Token name) {
+            this.globals = globals;
+            this.name = name;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return globals.get(name);
+        }
+    }
+
+    /*
+     * Stores numbers in the slot's unboxed lane until a value that is not a
+     * number comes along, after which it always stores boxed values.
+     */
+    static class LocalSet extends ExprNode {
+        private final int depth;
+        private final int slot;
+        private ExprNode value;
+        private boolean numbers = true;     // Whether every value so far was a number.
+
+        LocalSet(int depth, int slot, ExprNode value) {
+            this.depth = depth;
+            this.slot = slot;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            if (numbers) {
+                try {
+                    return executeNumber(environment);
+                } catch (UnexpectedResult result) {
+                    return result.value;
+                }
+            }
+
+            Object result = value.execute(environment);
+            environment.assignAt(depth, slot, result);
+            return result;
+        }
+
+        @Override
+        double executeNumber(Environment environment) {
+            if (!numbers) return super.executeNumber(environment);
+
+            try {
+                double result = value.executeNumber(environment);
+                environment.ancestor(depth).setNumber(slot, result);
+                return result;
+            } catch (UnexpectedResult result) {
+                numbers = false;
+                environment.assignAt(depth, slot, result.value);
+                throw result;
+            }
+        }
+
+        @Override
+        void executeVoid(Environment environment) {
+            if (!numbers) {
+                environment.assignAt(depth, slot, value.execute(environment));
+                return;
+            }
+
+            try {
+                executeNumber(environment);
+            } catch (UnexpectedResult result) {
+                // Already stored.
+            }
+        }
+
+        @Override
+        void replaceChild(ExprNode child, ExprNode replacement) {
+            if (value == child) value = replacement;
+        }
+    }
+
+    static class GlobalSet extends ExprNode {
+        private final Environment globals;
+        private final Token name;
+        private ExprNode value;
+
+        GlobalSet(Environment globals, Token name, ExprNode value) {
+            this.globals = globals;
+            this.name = name;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object result = value.execute(environment);
+            globals.assign(name, result);
+            return result;
+        }
+
+        @Override
+        void replaceChild(ExprNode child, ExprNode replacement) {
+            if (value == child) value = replacement;
+        }
+    }
+
+    /* Reads a local held in a Cell because a closure captures it. */
+    static class CellGet extends ExprNode {
+        private final int depth;
+        private final int slot;
+
+        CellGet(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return environment.getCell(depth, slot);
+        }
+    }
+
+    static class CellSet extends ExprNode {
+        private final int depth;
+        private final int slot;
+        private ExprNode value;
+
+        CellSet(int depth, int slot, ExprNode value) {
+            this.depth = depth;
+            this.slot = slot;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object result = value.execute(environment);
+            environment.assignCell(depth, slot, result);
+            return result;
+        }
+
+        @Override
+        void replaceChild(ExprNode child, ExprNode replacement) {
+            if (value == child) value = replacement;
+        }
+    }
+
+    /* Reads a variable of an enclosing function, through the closure's upvalues. */
+    static class UpvalueGet extends ExprNode {
+        private final int index;
+
+        UpvalueGet(int index) {
+            this.index = index;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return environment.getUpvalue(index);
+        }
+    }
+
+    static class UpvalueSet extends ExprNode {
+        private final int index;
+        private ExprNode value;
+
+        UpvalueSet(int index, ExprNode value) {
+            this.index = index;
+            this.value = adopt(value);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object result = value.execute(environment);
+            environment.assignUpvalue(index, result);
+            return result;
+        }
+
+        @Override
+        void replaceChild(ExprNode child, ExprNode replacement) {
+            if (value == child) value = replacement;
+        }
+    }
+
+    /*
+     * Calls to node functions bind the arguments straight into the callee's
+     * new environment, keeping numbers unboxed; other callables are called
+     * through the entry point for the number of arguments.
+     */
+    static class Call extends ExprNode {
+        private final Interpreter interpreter;  // Passed on to natives and tree-walked functions.
+        private ExprNode callee;
+        private final ExprNode[] arguments;
+        private final boolean[] numbers;        // Whether each argument has only been a number.
+        private final Token paren;
+        private LoxCallable cached;             // The last callee to pass the checks.
+
+        Call(Interpreter interpreter, ExprNode callee, ExprNode[] arguments, Token paren) {
+            this.interpreter = interpreter;
+            this.callee = adopt(callee);
+            this.arguments = arguments;
+            this.numbers = new boolean[arguments.length];
+            this.paren = paren;
+            for (ExprNode argument : arguments) adopt(argument);
+            Arrays.fill(numbers, true);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object function = callee.execute(environment);
+            if (function instanceof NodeFunction) {
+                return call((NodeFunction)function, environment);
+            }
+
+            switch (arguments.length) {
+                case 0:
+                    return callable(function).call0(interpreter);
+                case 1: {
+                    Object a = arguments[0].execute(environment);
+                    return callable(function).call1(interpreter, a);
+                }
+                case 2: {
+                    Object a = arguments[0].execute(environment);
+                    Object b = arguments[1].execute(environment);
+                    return callable(function).call2(interpreter, a, b);
+                }
+                case 3: {
+                    Object a = arguments[0].execute(environment);
+                    Object b = arguments[1].execute(environment);
+                    Object c = arguments[2].execute(environment);
+                    return callable(function).call3(interpreter, a, b, c);
+                }
+            }
+
+            Object[] values = new Object[arguments.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = arguments[i].execute(environment);
+            }
+            return callable(function).callN(interpreter, values);
+        }
+
+        /* Checks the callee, unless it is the one this site last called. */
+        private LoxCallable callable(Object function) {
+            if (function == cached && cached != null) return cached;
+
+            if (!(function instanceof LoxCallable)) {
+                throw new RuntimeError(paren,
+                        "Can only call functions and classes.");
+            }
+
+            LoxCallable callable = (LoxCallable)function;
+            if (arguments.length != callable.arity()) {
+                throw new RuntimeError(paren, "Expected " +
+                        callable.arity() + " arguments but got " +
+                        arguments.length + ".");
+            }
+
+            cached = callable;
+            return callable;
+        }
+
+        private Object call(NodeFunction function, Environment environment) {
+            Environment frame = function.frame();
+            for (int i = 0; i < arguments.length; i++) {
+                if (numbers[i]) {
+                    try {
+                        frame.defineNumber(arguments[i].executeNumber(environment));
+                    } catch (UnexpectedResult result) {
+                        numbers[i] = false;
+                        frame.define(result.value);
+                    }
+                } else {
+                    frame.define(arguments[i].execute(environment));
+                }
+            }
+
+            callable(function);
+            try {
+                return function.invoke(frame);
+            } catch (StackOverflowError error) {
+                // Recursion too deep for the Java stack, tail calls included, is a Lox error.
+                throw new RuntimeError(paren, "Stack overflow.");
+            }
+        }
+
+        @Override
+        void replaceChild(ExprNode child, ExprNode replacement) {
+            if (callee == child) callee = replacement;
+            for (int i = 0; i < arguments.length; i++) {
+                if (arguments[i] == child) arguments[i] = replacement;
+            }
+        }
+    }
+
+    static class And extends ExprNode {
+        private ExprNode left;
+        private ExprNode right;
+
+        And(ExprNode left, ExprNode right) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object value = left.execute(environment);
+            if (!Interpreter.isTruthy(value)) return value;
+            return right.execute(environment);
+        }
+
+        @Override
+        void replaceChild(ExprNode child, ExprNode replacement) {
+            if (left == child) left = replacement;
+            if (right == child) right = replacement;
+        }
+    }
+
+    static class Or extends ExprNode {
+        private ExprNode left;
+        private ExprNode right;
+
+        Or(ExprNode left, ExprNode right) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object value = left.execute(environment);
+            if (Interpreter.isTruthy(value)) return value;
+            return right.execute(environment);
+        }
+
+        @Override
+        void replaceChild(ExprNode child, ExprNode replacement) {
+            if (left == child) left = replacement;
+            if (right == child) right = replacement;
+        }
+    }
+
+    /* `!`, giving the same result as Interpreter.visitUnaryExpr. */
+    static class Not extends ExprNode {
+        private ExprNode operand;
+
+        Not(ExprNode operand) {
+            this.operand = adopt(operand);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return operand.executeCondition(environment);
+        }
+
+        @Override
+        boolean executeCondition(Environment environment) {
+            return operand.executeCondition(environment);
+        }
+
+        @Override
+        void replaceChild(ExprNode child, ExprNode replacement) {
+            if (operand == child) operand = replacement;
+        }
+    }
+
+    static class Negate extends ExprNode {
+        private ExprNode operand;
+        private final Token operator;
+
+        Negate(ExprNode operand, Token operator) {
+            this.operand = adopt(operand);
+            this.operator = operator;
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return executeNumber(environment);
+        }
+
+        @Override
+        double executeNumber(Environment environment) {
+            try {
+                return -operand.executeNumber(environment);
+            } catch (UnexpectedResult result) {
+                throw new RuntimeError(operator, "Operand must be a number.");
+            }
+        }
+
+        @Override
+        void replaceChild(ExprNode child, ExprNode replacement) {
+            if (operand == child) operand = replacement;
+        }
+    }
+
+    /* Shared shape of the binary operators. */
+    abstract static class Binary extends ExprNode {
+        ExprNode left;
+        ExprNode right;
+        final Token operator;
+
+        Binary(ExprNode left, Token operator, ExprNode right) {
+            this.left = adopt(left);
+            this.operator = operator;
+            this.right = adopt(right);
+        }
+
+        @Override
+        void replaceChild(ExprNode child, ExprNode replacement) {
+            if (left == child) left = replacement;
+            if (right == child) right = replacement;
+        }
+
+        RuntimeError numberOperandsError() {
+            return new RuntimeError(operator, "Operands must be numbers.");
+        }
+
+        /* The left operand as a number; otherwise the right still runs before the error. */
+        double leftNumber(Environment environment) {
+            try {
+                return left.executeNumber(environment);
+            } catch (UnexpectedResult result) {
+                right.execute(environment);
+                throw numberOperandsError();
+            }
+        }
+
+        double rightNumber(Environment environment) {
+            try {
+                return right.executeNumber(environment);
+            } catch (UnexpectedResult result) {
+                throw numberOperandsError();
+            }
+        }
+    }
+
+    /* `+` that has not run yet; specializes itself on its first operands. */
+    static class UninitializedAdd extends Binary {
+        UninitializedAdd(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object a = left.execute(environment);
+            Object b = right.execute(environment);
+            if (replaced) return GenericAdd.add(operator, a, b);
+
+            if (a instanceof Double && b instanceof Double) {
+                replace(new NumberAdd(left, operator, right));
+                return (double)a + (double)b;
+            }
+            if (a instanceof String && b instanceof String) {
+                replace(new StringConcat(left, operator, right));
+                return (String)a + (String)b;
+            }
+            replace(new GenericAdd(left, operator, right));
+            return GenericAdd.add(operator, a, b);
+        }
+    }
+
+    /* `+` that has only seen numbers. */
+    static class NumberAdd extends Binary {
+        NumberAdd(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            try {
+                return executeNumber(environment);
+            } catch (UnexpectedResult result) {
+                return result.value;
+            }
+        }
+
+        @Override
+        double executeNumber(Environment environment) {
+            double a;
+            try {
+                a = left.executeNumber(environment);
+            } catch (UnexpectedResult result) {
+                throw new UnexpectedResult(deoptimize(result.value, right.execute(environment)));
+            }
+
+            try {
+                return a + right.executeNumber(environment);
+            } catch (UnexpectedResult result) {
+                throw new UnexpectedResult(deoptimize(a, result.value));
+            }
+        }
+
+        /* The guess was wrong; fall back to the generic node for good. */
+        private Object deoptimize(Object a, Object b) {
+            if (!replaced) replace(new GenericAdd(left, operator, right));
+            return GenericAdd.add(operator, a, b);
+        }
+    }
+
+    /* `+` that has only seen strings. */
+    static class StringConcat extends Binary {
+        StringConcat(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object a = left.execute(environment);
+            Object b = right.execute(environment);
+            if (a instanceof String && b instanceof String) {
+                return (String)a + (String)b;
+            }
+
+            // The guess was wrong; fall back to the generic node for good.
+            if (!replaced) replace(new GenericAdd(left, operator, right));
+            return GenericAdd.add(operator, a, b);
+        }
+    }
+
+    /* `+` that has seen mixed operand types, checking them on every evaluation. */
+    static class GenericAdd extends Binary {
+        GenericAdd(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object a = left.execute(environment);
+            return add(operator, a, right.execute(environment));
+        }
+
+        static Object add(Token operator, Object a, Object b) {
+            if (a instanceof Double && b instanceof Double) {
+                return (double)a + (double)b;
+            }
+            if (a instanceof String && b instanceof String) {
+                return (String)a + (String)b;
+            }
+            throw new RuntimeError(operator,
+                "Operands must be two numbers or two strings.");
+        }
+    }
+
+    static class Subtract extends Binary {
+        Subtract(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return executeNumber(environment);
+        }
+
+        @Override
+        double executeNumber(Environment environment) {
+            double a = leftNumber(environment);
+            return a - rightNumber(environment);
+        }
+    }
+
+    static class Multiply extends Binary {
+        Multiply(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return executeNumber(environment);
+        }
+
+        @Override
+        double executeNumber(Environment environment) {
+            double a = leftNumber(environment);
+            return a * rightNumber(environment);
+        }
+    }
+
+    static class Divide extends Binary {
+        Divide(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return executeNumber(environment);
+        }
+
+        @Override
+        double executeNumber(Environment environment) {
+            double a = leftNumber(environment);
+            return a / rightNumber(environment);
+        }
+    }
+
+    static class Greater extends Binary {
+        Greater(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return executeCondition(environment);
+        }
+
+        @Override
+        boolean executeCondition(Environment environment) {
+            double a = leftNumber(environment);
+            return a > rightNumber(environment);
+        }
+    }
+
+    static class GreaterEqual extends Binary {
+        GreaterEqual(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return executeCondition(environment);
+        }
+
+        @Override
+        boolean executeCondition(Environment environment) {
+            double a = leftNumber(environment);
+            return a >= rightNumber(environment);
+        }
+    }
+
+    static class Less extends Binary {
+        Less(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return executeCondition(environment);
+        }
+
+        @Override
+        boolean executeCondition(Environment environment) {
+            double a = leftNumber(environment);
+            return a < rightNumber(environment);
+        }
+    }
+
+    static class LessEqual extends Binary {
+        LessEqual(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            return executeCondition(environment);
+        }
+
+        @Override
+        boolean executeCondition(Environment environment) {
+            double a = leftNumber(environment);
+            return a <= rightNumber(environment);
+        }
+    }
+
+    static class Equal extends Binary {
+        Equal(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object a = left.execute(environment);
+            return Interpreter.isEqual(a, right.execute(environment));
+        }
+    }
+
+    static class NotEqual extends Binary {
+        NotEqual(ExprNode left, Token operator, ExprNode right) {
+            super(left, operator, right);
+        }
+
+        @Override
+        Object execute(Environment environment) {
+            Object a = left.execute(environment);
+            return !Interpreter.isEqual(a, right.execute(environment));
+        }
+    }
+}
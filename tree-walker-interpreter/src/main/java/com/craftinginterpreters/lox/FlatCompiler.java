@@ -0,0 +1,281 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.FlatTree.*;
+
+/*
+ * Flattens resolved statements into a FlatTree. Each visit reserves its
+ * node's words, compiles the children after it and then fills in their
+ * indices, returning the node's own index. How a variable is reached is
+ * decided here, as the ClosureCompiler decides it: globals by name, a
+ * function's locals by frame slot and a top-level block's by Environment.
+ */
+class FlatCompiler implements Expr.Visitor<Integer>, Stmt.Visitor<Integer> {
+    private int[] code = new int[256];
+    private int count = 0;
+    private Object[] constants = new Object[16];
+    private int constantCount = 0;
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+    private int scopeDepth = 0;     // Zero while compiling top-level code.
+    private int functionDepth = 0;  // Zero outside function bodies.
+
+    /* Returns null for null statements, as left by a front end that reported errors. */
+    static FlatTree compile(List<Stmt> statements) {
+        if (statements == null) return null;
+
+        FlatCompiler compiler = new FlatCompiler();
+        int program = compiler.sequence(SEQUENCE, statements);
+        return new FlatTree(Arrays.copyOf(compiler.code, compiler.count),
+                Arrays.copyOf(compiler.constants, compiler.constantCount), program);
+    }
+
+    @Override
+    public Integer visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.scoped) return sequence(SEQUENCE, stmt.statements);
+
+        scopeDepth++;
+        int node = sequence(BLOCK, stmt.statements);
+        scopeDepth--;
+        return node;
+    }
+
+    @Override
+    public Integer visitExpressionStmt(Stmt.Expression stmt) {
+        int node = node(EXPRESSION, 0, 1);
+        set(node, 0, compile(stmt.expression));
+        return node;
+    }
+
+    @Override
+    public Integer visitFunctionStmt(Stmt.Function stmt) {
+        int node = node(FUNCTION, stmt.name.line, 1);
+
+        scopeDepth++;
+        functionDepth++;
+        int body = sequence(SEQUENCE, stmt.body);
+        functionDepth--;
+        scopeDepth--;
+
+        // Not shared with equal constants, so added without constant().
+        set(node, 0, add(new FlatTree.Function(stmt.name.lexeme, stmt.params.size(), body,
+                stmt.slot, stmt.captured, stmt.frameSize, stmt.cellParams, stmt.captures)));
+        return node;
+    }
+
+    @Override
+    public Integer visitIfStmt(Stmt.If stmt) {
+        int node = node(IF, 0, 3);
+        set(node, 0, compile(stmt.condition));
+        set(node, 1, compile(stmt.thenBranch));
+        set(node, 2, stmt.elseBranch == null ? -1 : compile(stmt.elseBranch));
+        return node;
+    }
+
+    @Override
+    public Integer visitPrintStmt(Stmt.Print stmt) {
+        int node = node(PRINT, 0, 1);
+        set(node, 0, compile(stmt.expression));
+        return node;
+    }
+
+    @Override
+    public Integer visitReturnStmt(Stmt.Return stmt) {
+        int node = node(stmt.tailCall ? TAIL_CALL : RETURN, stmt.keyword.line, 1);
+        set(node, 0, stmt.value == null ? -1 : compile(stmt.value));
+        return node;
+    }
+
+    @Override
+    public Integer visitVarStmt(Stmt.Var stmt) {
+        int node;
+        if (scopeDepth == 0) {
+            node = node(DEFINE_GLOBAL, stmt.name.line, 2);
+            set(node, 0, constant(stmt.name.lexeme));
+        } else if (functionDepth > 0) {
+            node = node(stmt.captured ? DEFINE_LOCAL_CELL : DEFINE_LOCAL, stmt.name.line, 2);
+            set(node, 0, stmt.slot);
+        } else {
+            node = node(stmt.captured ? DEFINE_ENCLOSING_CELL : DEFINE_ENCLOSING,
+                    stmt.name.line, 2);
+            set(node, 0, stmt.slot);
+        }
+        set(node, 1, stmt.initializer == null ? -1 : compile(stmt.initializer));
+        return node;
+    }
+
+    @Override
+    public Integer visitWhileStmt(Stmt.While stmt) {
+        int node = node(WHILE, 0, 2);
+        set(node, 0, compile(stmt.condition));
+        set(node, 1, compile(stmt.body));
+        return node;
+    }
+
+    @Override
+    public Integer visitAssignExpr(Expr.Assign expr) {
+        int line = expr.name.line;
+        int node;
+        if (expr.upvalue != -1) {
+            node = node(SET_UPVALUE, line, 2);
+            set(node, 0, expr.upvalue);
+        } else if (expr.depth == -1) {
+            node = node(SET_GLOBAL, line, 2);
+            set(node, 0, constant(expr.name.lexeme));
+        } else if (functionDepth > 0) {
+            node = node(expr.captured ? SET_LOCAL_CELL : SET_LOCAL, line, 2);
+            set(node, 0, expr.slot);
+        } else {
+            node = node(expr.captured ? SET_ENCLOSING_CELL : SET_ENCLOSING, line, 3);
+            set(node, 0, expr.depth);
+            set(node, 1, expr.slot);
+            set(node, 2, compile(expr.value));
+            return node;
+        }
+        set(node, 1, compile(expr.value));
+        return node;
+    }
+
+    @Override
+    public Integer visitBinaryExpr(Expr.Binary expr) {
+        byte kind;
+        switch (expr.operator.type) {
+            case EQUAL_EQUAL:   kind = EQUAL; break;
+            case BANG_EQUAL:    kind = NOT_EQUAL; break;
+            case GREATER:       kind = GREATER; break;
+            case GREATER_EQUAL: kind = GREATER_EQUAL; break;
+            case LESS:          kind = LESS; break;
+            case LESS_EQUAL:    kind = LESS_EQUAL; break;
+            case PLUS:          kind = ADD; break;
+            case MINUS:         kind = SUBTRACT; break;
+            case STAR:          kind = MULTIPLY; break;
+            case SLASH:         kind = DIVIDE; break;
+            default: throw new IllegalArgumentException("Not a binary operator: " + expr.operator);
+        }
+        return binary(kind, expr.operator.line, expr.left, expr.right);
+    }
+
+    @Override
+    public Integer visitCallExpr(Expr.Call expr) {
+        List<Expr> arguments = expr.arguments;
+        int node = node(CALL, expr.paren.line, 2 + arguments.size());
+        set(node, 0, compile(expr.callee));
+        set(node, 1, arguments.size());
+        for (int i = 0; i < arguments.size(); i++) {
+            set(node, 2 + i, compile(arguments.get(i)));
+        }
+        return node;
+    }
+
+    /* Parentheses only affect parsing, so they compile to their contents. */
+    @Override
+    public Integer visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Integer visitLiteralExpr(Expr.Literal expr) {
+        int node = node(CONSTANT, 0, 1);
+        set(node, 0, constant(expr.value));
+        return node;
+    }
+
+    @Override
+    public Integer visitLogicalExpr(Expr.Logical expr) {
+        byte kind = expr.operator.type == TokenType.OR ? OR : AND;
+        return binary(kind, expr.operator.line, expr.left, expr.right);
+    }
+
+    @Override
+    public Integer visitUnaryExpr(Expr.Unary expr) {
+        int node = node(expr.operator.type == TokenType.BANG ? NOT : NEGATE,
+                expr.operator.line, 1);
+        set(node, 0, compile(expr.right));
+        return node;
+    }
+
+    @Override
+    public Integer visitVariableExpr(Expr.Variable expr) {
+        int line = expr.name.line;
+        if (expr.upvalue != -1) {
+            int node = node(UPVALUE, line, 1);
+            set(node, 0, expr.upvalue);
+            return node;
+        }
+        if (expr.depth == -1) {
+            int node = node(GLOBAL, line, 1);
+            set(node, 0, constant(expr.name.lexeme));
+            return node;
+        }
+        if (functionDepth > 0) {
+            int node = node(expr.captured ? LOCAL_CELL : LOCAL, line, 1);
+            set(node, 0, expr.slot);
+            return node;
+        }
+
+        int node = node(expr.captured ? ENCLOSING_CELL : ENCLOSING, line, 2);
+        set(node, 0, expr.depth);
+        set(node, 1, expr.slot);
+        return node;
+    }
+
+    private int binary(byte kind, int line, Expr left, Expr right) {
+        int node = node(kind, line, 2);
+        set(node, 0, compile(left));
+        set(node, 1, compile(right));
+        return node;
+    }
+
+    /* A SEQUENCE or BLOCK of statements. */
+    private int sequence(byte kind, List<Stmt> statements) {
+        int node = node(kind, 0, 1 + statements.size());
+        set(node, 0, statements.size());
+        for (int i = 0; i < statements.size(); i++) {
+            set(node, 1 + i, compile(statements.get(i)));
+        }
+        return node;
+    }
+
+    private int compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private int compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    /* Appends a node's header and room for its operands; returns its index. */
+    private int node(byte kind, int line, int operands) {
+        int node = count;
+        int end = count + 1 + operands;
+        if (end > code.length) code = Arrays.copyOf(code, Math.max(code.length * 2, end));
+        code[node] = kind | line << 8;
+        count = end;
+        return node;
+    }
+
+    private void set(int node, int operand, int value) {
+        code[node + 1 + operand] = value;
+    }
+
+    /* Adds a value to the constant pool; equal values share an entry. */
+    private int constant(Object value) {
+        Integer existing = constantIndex.get(value);
+        if (existing != null) return existing;
+
+        int index = add(value);
+        constantIndex.put(value, index);
+        return index;
+    }
+
+    private int add(Object value) {
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        return constantCount++;
+    }
+}
@@ -0,0 +1,35 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/* A Lox function whose body is a node of a FlatTree. */
+class FlatFunction implements LoxCallable {
+    private final FlatInterpreter interpreter;
+    final FlatTree tree;
+    final FlatTree.Function declaration;
+    final Cell[] upvalues;
+
+    FlatFunction(FlatInterpreter interpreter, FlatTree tree,
+                 FlatTree.Function declaration, Cell[] upvalues) {
+        this.interpreter = interpreter;
+        this.tree = tree;
+        this.declaration = declaration;
+        this.upvalues = upvalues;
+    }
+
+    /* Only reached from outside flat code; the FlatInterpreter calls its own functions directly. */
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return this.interpreter.call(this, arguments);
+    }
+
+    @Override
+    public int arity() {
+        return declaration.arity;
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + declaration.name + ">";
+    }
+}
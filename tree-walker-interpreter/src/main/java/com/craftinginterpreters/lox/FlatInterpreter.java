@@ -0,0 +1,471 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.FlatTree.*;
+
+/*
+ * Runs a FlatTree: the tree walker's algorithm, with its value stack of
+ * frames, Cells for captured variables and trampolined tail calls, but
+ * switching on node kinds in an int[] instead of visiting objects. Globals
+ * and natives are shared with the tree-walking Interpreter.
+ */
+class FlatInterpreter {
+    private final Interpreter interpreter;
+    private final Environment globals;
+    private Environment environment;    // Only used outside functions.
+
+    // The tree the running code belongs to; a function may come from an earlier REPL line.
+    private FlatTree tree = null;
+    private int[] code = null;
+    private Object[] constants = null;
+
+    private Object[] stack = new Object[1024];
+    private int base = -1;          // Start of the running function's frame; -1 outside functions.
+    private int top = 0;            // First free slot.
+    private Cell[] upvalues = null; // The running function's captured variables.
+    private Object returnValue = null;      // Set by a `return` completing with RETURN.
+    private FlatFunction tailCall = null;   // Set by a `return` completing with TAIL_CALL.
+
+    FlatInterpreter(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+        this.environment = globals;
+    }
+
+    void interpret(FlatTree program) {
+        if (program == null) return;
+
+        // A runtime error in an earlier REPL line may have left frames behind.
+        Arrays.fill(stack, 0, top, null);
+        base = -1;
+        top = 0;
+        upvalues = null;
+        environment = globals;
+        enter(program);
+
+        try {
+            executeAll(program.program);
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    private void enter(FlatTree tree) {
+        this.tree = tree;
+        code = tree.code;
+        constants = tree.constants;
+    }
+
+    private Object evaluate(int node) {
+        int[] code = this.code;
+        int header = code[node];
+        switch (kind(header)) {
+            case CONSTANT: return constants[code[node + 1]];
+            case GLOBAL: return globals.get((String)constants[code[node + 1]], line(header));
+            case LOCAL: return stack[base + code[node + 1]];
+            case LOCAL_CELL: return ((Cell)stack[base + code[node + 1]]).value;
+            case ENCLOSING: return environment.getAt(code[node + 1], code[node + 2]);
+            case ENCLOSING_CELL: return environment.getCell(code[node + 1], code[node + 2]);
+            case UPVALUE: return upvalues[code[node + 1]].value;
+
+            case SET_GLOBAL: {
+                Object value = evaluate(code[node + 2]);
+                globals.assign((String)constants[code[node + 1]], line(header), value);
+                return value;
+            }
+            case SET_LOCAL: {
+                Object value = evaluate(code[node + 2]);
+                stack[base + code[node + 1]] = value;
+                return value;
+            }
+            case SET_LOCAL_CELL: {
+                Object value = evaluate(code[node + 2]);
+                ((Cell)stack[base + code[node + 1]]).value = value;
+                return value;
+            }
+            case SET_ENCLOSING: {
+                Object value = evaluate(code[node + 3]);
+                environment.assignAt(code[node + 1], code[node + 2], value);
+                return value;
+            }
+            case SET_ENCLOSING_CELL: {
+                Object value = evaluate(code[node + 3]);
+                environment.assignCell(code[node + 1], code[node + 2], value);
+                return value;
+            }
+            case SET_UPVALUE: {
+                Object value = evaluate(code[node + 2]);
+                upvalues[code[node + 1]].value = value;
+                return value;
+            }
+
+            case EQUAL:
+                return Interpreter.isEqual(evaluate(code[node + 1]), evaluate(code[node + 2]));
+            case NOT_EQUAL:
+                return !Interpreter.isEqual(evaluate(code[node + 1]), evaluate(code[node + 2]));
+            case GREATER: {
+                Object left = evaluate(code[node + 1]);
+                Object right = evaluate(code[node + 2]);
+                checkNumberOperands(header, left, right);
+                return (double)left > (double)right;
+            }
+            case GREATER_EQUAL: {
+                Object left = evaluate(code[node + 1]);
+                Object right = evaluate(code[node + 2]);
+                checkNumberOperands(header, left, right);
+                return (double)left >= (double)right;
+            }
+            case LESS: {
+                Object left = evaluate(code[node + 1]);
+                Object right = evaluate(code[node + 2]);
+                checkNumberOperands(header, left, right);
+                return (double)left < (double)right;
+            }
+            case LESS_EQUAL: {
+                Object left = evaluate(code[node + 1]);
+                Object right = evaluate(code[node + 2]);
+                checkNumberOperands(header, left, right);
+                return (double)left <= (double)right;
+            }
+            case ADD: {
+                Object left = evaluate(code[node + 1]);
+                Object right = evaluate(code[node + 2]);
+                if (left instanceof Double && right instanceof Double) {
+                    return (double)left + (double)right;
+                }
+                if (left instanceof String && right instanceof String) {
+                    return (String)left + (String)right;
+                }
+                throw error(header, "Operands must be two numbers or two strings.");
+            }
+            case SUBTRACT: {
+                Object left = evaluate(code[node + 1]);
+                Object right = evaluate(code[node + 2]);
+                checkNumberOperands(header, left, right);
+                return (double)left - (double)right;
+            }
+            case MULTIPLY: {
+                Object left = evaluate(code[node + 1]);
+                Object right = evaluate(code[node + 2]);
+                checkNumberOperands(header, left, right);
+                return (double)left * (double)right;
+            }
+            case DIVIDE: {
+                Object left = evaluate(code[node + 1]);
+                Object right = evaluate(code[node + 2]);
+                checkNumberOperands(header, left, right);
+                return (double)left / (double)right;
+            }
+            case AND: {
+                Object left = evaluate(code[node + 1]);
+                if (!Interpreter.isTruthy(left)) return left;
+                return evaluate(code[node + 2]);
+            }
+            case OR: {
+                Object left = evaluate(code[node + 1]);
+                if (Interpreter.isTruthy(left)) return left;
+                return evaluate(code[node + 2]);
+            }
+            case NOT:
+                return Interpreter.isTruthy(evaluate(code[node + 1]));
+            case NEGATE: {
+                Object right = evaluate(code[node + 1]);
+                if (!(right instanceof Double)) throw error(header, "Operand must be a number.");
+                return -(double)right;
+            }
+            case CALL:
+                return call(evaluate(code[node + 1]), node);
+        }
+
+        // Unreachable.
+        throw new IllegalStateException("Not an expression: " + kind(header));
+    }
+
+    private Interpreter.Completion execute(int node) {
+        int[] code = this.code;
+        int header = code[node];
+        switch (kind(header)) {
+            case EXPRESSION:
+                evaluate(code[node + 1]);
+                return Interpreter.Completion.NORMAL;
+            case PRINT:
+                System.out.println(Interpreter.stringify(evaluate(code[node + 1])));
+                return Interpreter.Completion.NORMAL;
+
+            case DEFINE_GLOBAL:
+                globals.define((String)constants[code[node + 1]], initializer(code[node + 2]));
+                return Interpreter.Completion.NORMAL;
+            case DEFINE_LOCAL: {
+                Object value = initializer(code[node + 2]);
+                stack[base + code[node + 1]] = value;
+                return Interpreter.Completion.NORMAL;
+            }
+            case DEFINE_LOCAL_CELL: {
+                Object value = initializer(code[node + 2]);
+                stack[base + code[node + 1]] = new Cell(value);
+                return Interpreter.Completion.NORMAL;
+            }
+            case DEFINE_ENCLOSING:
+                environment.define(code[node + 1], initializer(code[node + 2]));
+                return Interpreter.Completion.NORMAL;
+            case DEFINE_ENCLOSING_CELL:
+                environment.define(code[node + 1], new Cell(initializer(code[node + 2])));
+                return Interpreter.Completion.NORMAL;
+            case FUNCTION:
+                declare((FlatTree.Function)constants[code[node + 1]]);
+                return Interpreter.Completion.NORMAL;
+
+            case IF:
+                if (Interpreter.isTruthy(evaluate(code[node + 1]))) {
+                    return execute(code[node + 2]);
+                } else if (code[node + 3] != -1) {
+                    return execute(code[node + 3]);
+                }
+                return Interpreter.Completion.NORMAL;
+            case WHILE:
+                while (Interpreter.isTruthy(evaluate(code[node + 1]))) {
+                    Interpreter.Completion completion = execute(code[node + 2]);
+                    if (completion != Interpreter.Completion.NORMAL) return completion;
+                }
+                return Interpreter.Completion.NORMAL;
+            case SEQUENCE:
+                return executeAll(node);
+            case BLOCK: {
+                Environment previous = environment;
+                try {
+                    environment = new Environment(previous);
+                    return executeAll(node);
+                } finally {
+                    environment = previous;
+                }
+            }
+
+            case RETURN:
+                returnValue = initializer(code[node + 1]);
+                return Interpreter.Completion.RETURN;
+            case TAIL_CALL: {
+                int call = code[node + 1];
+                Object callee = evaluate(code[call + 1]);
+                if (callee instanceof FlatFunction) {
+                    // The arguments may make tail calls of their own, so set tailCall last.
+                    FlatFunction function = (FlatFunction)callee;
+                    pushArguments(function, call);
+                    tailCall = function;
+                    return Interpreter.Completion.TAIL_CALL;
+                }
+
+                returnValue = call(callee, call);
+                return Interpreter.Completion.RETURN;
+            }
+        }
+
+        // Unreachable.
+        throw new IllegalStateException("Not a statement: " + kind(header));
+    }
+
+    /* Runs the statements of a SEQUENCE or BLOCK node. */
+    private Interpreter.Completion executeAll(int node) {
+        int[] code = this.code;
+        int end = node + 2 + code[node + 1];
+        for (int i = node + 2; i < end; i++) {
+            Interpreter.Completion completion = execute(code[i]);
+            if (completion != Interpreter.Completion.NORMAL) return completion;
+        }
+        return Interpreter.Completion.NORMAL;
+    }
+
+    /* Evaluates an optional expression; nil when there is none. */
+    private Object initializer(int node) {
+        return node == -1 ? null : evaluate(node);
+    }
+
+    /* Binds a function declared here: by name for globals, by slot for locals. */
+    private void declare(FlatTree.Function declaration) {
+        if (declaration.captured) {
+            // The function may capture itself, so its Cell must exist first.
+            Cell cell = new Cell(null);
+            define(declaration, cell);
+            cell.value = new FlatFunction(this, tree, declaration, capture(declaration.captures));
+            return;
+        }
+
+        define(declaration, new FlatFunction(this, tree, declaration, capture(declaration.captures)));
+    }
+
+    private void define(FlatTree.Function declaration, Object value) {
+        if (base != -1) {
+            stack[base + declaration.slot] = value;
+        } else if (environment == globals) {
+            globals.define(declaration.name, value);
+        } else {
+            environment.define(declaration.slot, value);
+        }
+    }
+
+    /* Collects the Cells a closure declared here captures. */
+    private Cell[] capture(Cell.Capture[] captures) {
+        if (base == -1) return environment.capture(captures);
+
+        Cell[] cells = new Cell[captures.length];
+        for (int i = 0; i < captures.length; i++) {
+            Cell.Capture capture = captures[i];
+            cells[i] = capture.local ? (Cell)stack[base + capture.index]
+                                     : upvalues[capture.index];
+        }
+        return cells;
+    }
+
+    /*
+     * Calls through the entry point for the number of arguments; a
+     * FlatFunction has its arguments evaluated straight into its frame.
+     */
+    private Object call(Object callee, int node) {
+        if (callee instanceof FlatFunction) {
+            FlatFunction function = (FlatFunction)callee;
+            return run(function, pushArguments(function, node));
+        }
+
+        int[] code = this.code;
+        int count = code[node + 2];
+        switch (count) {
+            case 0:
+                return callable(callee, node).call0(interpreter);
+            case 1: {
+                Object a = evaluate(code[node + 3]);
+                return callable(callee, node).call1(interpreter, a);
+            }
+            case 2: {
+                Object a = evaluate(code[node + 3]);
+                Object b = evaluate(code[node + 4]);
+                return callable(callee, node).call2(interpreter, a, b);
+            }
+            case 3: {
+                Object a = evaluate(code[node + 3]);
+                Object b = evaluate(code[node + 4]);
+                Object c = evaluate(code[node + 5]);
+                return callable(callee, node).call3(interpreter, a, b, c);
+            }
+            default: {
+                Object[] values = new Object[count];
+                for (int i = 0; i < count; i++) {
+                    values[i] = evaluate(code[node + 3 + i]);
+                }
+                return callable(callee, node).callN(interpreter, values);
+            }
+        }
+    }
+
+    /* Checks that a callee can be called with a CALL node's arguments. */
+    private LoxCallable callable(Object callee, int node) {
+        int header = code[node];
+        if (!(callee instanceof LoxCallable)) {
+            throw error(header, "Can only call functions and classes.");
+        }
+
+        LoxCallable function = (LoxCallable)callee;
+        int count = code[node + 2];
+        if (count != function.arity()) {
+            throw error(header, "Expected " + function.arity() +
+                    " arguments but got " + count + ".");
+        }
+        return function;
+    }
+
+    /* Evaluates a call's arguments onto the value stack; returns where the callee's frame starts. */
+    private int pushArguments(FlatFunction function, int node) {
+        int[] code = this.code;
+        int frame = top;
+        int count = code[node + 2];
+        for (int i = 0; i < count; i++) {
+            push(evaluate(code[node + 3 + i]));
+        }
+
+        try {
+            callable(function, node);
+        } catch (RuntimeError error) {
+            top = frame;
+            throw error;
+        }
+        return frame;
+    }
+
+    private void push(Object value) {
+        if (top == stack.length) stack = Arrays.copyOf(stack, top * 2);
+        stack[top++] = value;
+    }
+
+    /* Calls a function from outside flat code, such as a native. */
+    Object call(FlatFunction function, List<Object> arguments) {
+        int frame = top;
+        for (Object argument : arguments) {
+            push(argument);
+        }
+        return run(function, frame);
+    }
+
+    /*
+     * Runs a function's body in a frame starting at `frame`, where its
+     * arguments already are. As in the tree walker, this is also the
+     * trampoline for tail calls, which reuse the frame.
+     */
+    private Object run(FlatFunction function, int frame) {
+        int callerBase = base;
+        Cell[] callerUpvalues = upvalues;
+        FlatTree callerTree = tree;
+        int[] callerCode = code;
+        Object[] callerConstants = constants;
+        int end = frame;
+        try {
+            while (true) {
+                FlatTree.Function declaration = function.declaration;
+                end = frame + declaration.frameSize;
+                if (end > stack.length) stack = Arrays.copyOf(stack, Math.max(end, stack.length * 2));
+                for (int slot : declaration.cellParams) {
+                    stack[frame + slot] = new Cell(stack[frame + slot]);
+                }
+
+                base = frame;
+                top = end;
+                upvalues = function.upvalues;
+                enter(function.tree);
+                Interpreter.Completion completion = executeAll(declaration.body);
+                if (completion == Interpreter.Completion.NORMAL) return null;
+                if (completion == Interpreter.Completion.RETURN) {
+                    Object value = returnValue;
+                    returnValue = null;
+                    return value;
+                }
+
+                // The tail call's arguments sit just above this frame.
+                function = tailCall;
+                tailCall = null;
+                int arity = function.arity();
+                System.arraycopy(stack, end, stack, frame, arity);
+                Arrays.fill(stack, frame + arity, end + arity, null);
+                end = frame + arity;
+                top = end;
+            }
+        } finally {
+            Arrays.fill(stack, frame, end, null);
+            base = callerBase;
+            top = frame;
+            upvalues = callerUpvalues;
+            tree = callerTree;
+            code = callerCode;
+            constants = callerConstants;
+        }
+    }
+
+    private static void checkNumberOperands(int header, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+
+        throw error(header, "Operands must be numbers.");
+    }
+
+    /* A RuntimeError only needs its Token for the line, so one is made up from the node's. */
+    private static RuntimeError error(int header, String message) {
+        return new RuntimeError(new Token(TokenType.IDENTIFIER, "", null, line(header)), message);
+    }
+}
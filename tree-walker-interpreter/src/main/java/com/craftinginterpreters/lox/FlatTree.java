@@ -0,0 +1,104 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * A resolved program encoded in one int[] rather than as Expr and Stmt
+ * objects, for the FlatInterpreter. A node is a header word, with its kind
+ * in the low byte and its source line in the upper 24 bits, followed by
+ * its operands: indices of child nodes (-1 for a missing one), slots,
+ * counts, or indices into `constants`, which holds literal values, global
+ * names and function declarations. A parent comes before its children, so
+ * running a program mostly reads forward through the array.
+ *
+ * Kinds are chosen when the tree is flattened, like the bytecode's opcodes:
+ * each operator has its own, and so does each way of reaching a variable.
+ * No Tokens are kept; a node's line is all an error needs.
+ */
+final class FlatTree {
+    // Expressions.
+    static final byte CONSTANT              = 0;    // Constant index.
+    static final byte GLOBAL                = 1;    // Name's constant index.
+    static final byte LOCAL                 = 2;    // Frame slot.
+    static final byte LOCAL_CELL            = 3;    // Frame slot.
+    static final byte ENCLOSING             = 4;    // Depth, slot; in a top-level block's Environment.
+    static final byte ENCLOSING_CELL        = 5;    // Depth, slot.
+    static final byte UPVALUE               = 6;    // Upvalue index.
+    static final byte SET_GLOBAL            = 7;    // Name's constant index, value.
+    static final byte SET_LOCAL             = 8;    // Frame slot, value.
+    static final byte SET_LOCAL_CELL        = 9;    // Frame slot, value.
+    static final byte SET_ENCLOSING         = 10;   // Depth, slot, value.
+    static final byte SET_ENCLOSING_CELL    = 11;   // Depth, slot, value.
+    static final byte SET_UPVALUE           = 12;   // Upvalue index, value.
+    static final byte EQUAL                 = 13;   // Left, right; likewise up to OR.
+    static final byte NOT_EQUAL             = 14;
+    static final byte GREATER               = 15;
+    static final byte GREATER_EQUAL         = 16;
+    static final byte LESS                  = 17;
+    static final byte LESS_EQUAL            = 18;
+    static final byte ADD                   = 19;
+    static final byte SUBTRACT              = 20;
+    static final byte MULTIPLY              = 21;
+    static final byte DIVIDE                = 22;
+    static final byte AND                   = 23;
+    static final byte OR                    = 24;
+    static final byte NOT                   = 25;   // Operand.
+    static final byte NEGATE                = 26;   // Operand.
+    static final byte CALL                  = 27;   // Callee, argument count, then each argument.
+
+    // Statements.
+    static final byte EXPRESSION            = 28;   // Expression.
+    static final byte PRINT                 = 29;   // Expression.
+    static final byte DEFINE_GLOBAL         = 30;   // Name's constant index, initializer.
+    static final byte DEFINE_LOCAL          = 31;   // Frame slot, initializer.
+    static final byte DEFINE_LOCAL_CELL     = 32;   // Frame slot, initializer.
+    static final byte DEFINE_ENCLOSING      = 33;   // Slot, initializer.
+    static final byte DEFINE_ENCLOSING_CELL = 34;   // Slot, initializer.
+    static final byte FUNCTION              = 35;   // Function's constant index.
+    static final byte IF                    = 36;   // Condition, then branch, else branch.
+    static final byte WHILE                 = 37;   // Condition, body.
+    static final byte SEQUENCE              = 38;   // Count, then each statement.
+    static final byte BLOCK                 = 39;   // Count, then each statement; in a new Environment.
+    static final byte RETURN                = 40;   // Value.
+    static final byte TAIL_CALL             = 41;   // Call.
+
+    /* What a function declaration compiles to; its body is a SEQUENCE node. */
+    static final class Function {
+        final String name;
+        final int arity;
+        final int body;
+        final int slot;
+        final boolean captured;
+        final int frameSize;
+        final int[] cellParams;
+        final Cell.Capture[] captures;
+
+        Function(String name, int arity, int body, int slot, boolean captured,
+                 int frameSize, int[] cellParams, Cell.Capture[] captures) {
+            this.name = name;
+            this.arity = arity;
+            this.body = body;
+            this.slot = slot;
+            this.captured = captured;
+            this.frameSize = frameSize;
+            this.cellParams = cellParams;
+            this.captures = captures;
+        }
+    }
+
+    final int[] code;
+    final Object[] constants;
+    final int program;      // The SEQUENCE of top-level statements.
+
+    FlatTree(int[] code, Object[] constants, int program) {
+        this.code = code;
+        this.constants = constants;
+        this.program = program;
+    }
+
+    static int kind(int header) {
+        return header & 0xff;
+    }
+
+    static int line(int header) {
+        return header >>> 8;
+    }
+}
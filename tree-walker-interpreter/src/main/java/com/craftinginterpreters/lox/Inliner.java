@@ -0,0 +1,331 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * The body of a small function, ready to replace calls to it. Used by the
+ * Optimizer. A function qualifies when its body returns one expression of
+ * at most MAX_SIZE nodes that reads only its parameters and globals, never
+ * names the function itself and assigns nothing but its own temporaries.
+ *
+ * A call evaluates its arguments before the body, but a substituted
+ * argument is evaluated where its parameter is first used. A literal, or a
+ * local no closure captures, cannot fail and has no effects, so it is
+ * substituted for every use. Any other argument must make no calls or
+ * assignments, and be reached unconditionally, in argument order, before
+ * the body does anything that could fail. If its parameter is used more
+ * than once, its first use stores it in a temporary of the caller's frame
+ * that later uses read, as a hand-inlined version would use a local.
+ */
+class Inliner implements Expr.Visitor<Void> {
+    private static final int MAX_SIZE = 24;     // Nodes in the returned expression.
+    private static final int HAZARD = -1;       // An event that can fail or have an effect.
+
+    /*
+     * Locals added to a function to hold the arguments of calls inlined
+     * into it, declared at the top of its body. Their names contain a space
+     * so they can never clash with a Lox identifier.
+     */
+    static class Temporaries {
+        final List<Stmt> declarations = new ArrayList<>();
+        private int slots;                      // The frame's size so far.
+
+        Temporaries(int frameSize) {
+            this.slots = frameSize;
+        }
+
+        int frameSize() {
+            return slots;
+        }
+
+        private Stmt.Var add(Token name) {
+            String lexeme = name.lexeme.split(" ")[0] + " " + slots;
+            Stmt.Var temporary = new Stmt.Var(
+                    new Token(TokenType.IDENTIFIER, lexeme, null, name.line), null);
+            temporary.slot = slots++;
+            declarations.add(temporary);
+            return temporary;
+        }
+
+        static boolean declares(Stmt stmt) {
+            return stmt instanceof Stmt.Var && ((Stmt.Var)stmt).name.lexeme.contains(" ");
+        }
+    }
+
+    private final Stmt.Function function;
+    private final Expr body;
+    private final Map<Integer, Token> temporaries = new HashMap<>();  // The function's own, by slot.
+    private final int[] uses;                   // Times each parameter is read.
+    private final boolean[] conditional;        // Whether its first read may be skipped by `and`/`or`.
+    private final List<Integer> events = new ArrayList<>(); // Parameter reads and hazards, in order.
+    private final Set<String> globals = new HashSet<>();
+    private boolean inlinable = true;
+    private int size = 0;
+    private int skippable = 0;                  // Depth inside right operands of `and`/`or`.
+
+    private Inliner(Stmt.Function function, Expr body) {
+        this.function = function;
+        this.body = body;
+        this.uses = new int[function.params.size()];
+        this.conditional = new boolean[function.params.size()];
+    }
+
+    /* Returns an Inliner for a function, or null if calls to it cannot be inlined. */
+    static Inliner of(Stmt.Function function) {
+        List<Stmt> body = function.body;
+        int last = body.size() - 1;
+        if (last < 0 || !(body.get(last) instanceof Stmt.Return)) return null;
+        if (function.cellParams.length > 0 || function.captures.length > 0) return null;
+
+        Expr value = ((Stmt.Return)body.get(last)).value;
+        Inliner inliner = new Inliner(function, value == null ? new Expr.Literal(null) : value);
+        for (Stmt statement : body.subList(0, last)) {
+            if (!Temporaries.declares(statement)) return null;
+            Stmt.Var temporary = (Stmt.Var)statement;
+            inliner.temporaries.put(temporary.slot, temporary.name);
+        }
+
+        inliner.body.accept(inliner);
+        return inliner.inlinable && inliner.size <= MAX_SIZE ? inliner : null;
+    }
+
+    /* The globals the body reads, which must not be shadowed where it is inlined. */
+    Set<String> globals() {
+        return globals;
+    }
+
+    /*
+     * Returns the body with the arguments substituted, or null if that
+     * would not be exact. Temporaries come from `frame`, which is null
+     * where there is no frame to add them to.
+     */
+    Expr inline(List<Expr> arguments, Temporaries frame) {
+        if (arguments.size() != uses.length) return null;
+        if (frame == null && !temporaries.isEmpty()) return null;
+
+        boolean[] trivial = new boolean[arguments.size()];
+        for (int i = 0; i < trivial.length; i++) {
+            Expr argument = arguments.get(i);
+            trivial[i] = trivial(argument);
+            if (trivial[i]) continue;
+
+            if (!pure(argument) || uses[i] == 0 || conditional[i]) return null;
+            if (uses[i] > 1 && frame == null) return null;
+        }
+
+        int next = 0;
+        boolean[] seen = new boolean[trivial.length];
+        for (int event : events) {
+            if (event == HAZARD) break;
+            if (trivial[event] || seen[event]) continue;
+
+            while (next < trivial.length && trivial[next]) next++;
+            if (event != next++) return null;
+            seen[event] = true;
+        }
+        while (next < trivial.length && trivial[next]) next++;
+        if (next != trivial.length) return null;
+
+        Map<Integer, Stmt.Var> locals = new HashMap<>();
+        for (int i = 0; i < trivial.length; i++) {
+            if (!trivial[i] && uses[i] > 1) locals.put(i, frame.add(function.params.get(i)));
+        }
+        for (Map.Entry<Integer, Token> temporary : temporaries.entrySet()) {
+            locals.put(temporary.getKey(), frame.add(temporary.getValue()));
+        }
+        return body.accept(new Substitution(arguments, locals));
+    }
+
+    /* Only the function's own temporaries may be assigned. */
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        size++;
+        expr.value.accept(this);
+        if (expr.upvalue != -1 || expr.depth != 0 || !temporaries.containsKey(expr.slot)) {
+            inlinable = false;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        size++;
+        expr.left.accept(this);
+        expr.right.accept(this);
+        TokenType operator = expr.operator.type;
+        if (operator != TokenType.EQUAL_EQUAL && operator != TokenType.BANG_EQUAL) {
+            events.add(HAZARD);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        size++;
+        expr.callee.accept(this);
+        for (Expr argument : expr.arguments) {
+            argument.accept(this);
+        }
+        events.add(HAZARD);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        expr.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        size++;
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        size++;
+        expr.left.accept(this);
+        skippable++;
+        expr.right.accept(this);
+        skippable--;
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        size++;
+        expr.right.accept(this);
+        if (expr.operator.type == TokenType.MINUS) events.add(HAZARD);
+        return null;
+    }
+
+    /* Reads of a parameter are recorded; reading a global can fail if it is undefined. */
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        size++;
+        if (expr.upvalue != -1) {
+            inlinable = false;
+        } else if (expr.depth == -1) {
+            if (expr.name.lexeme.equals(function.name.lexeme)) inlinable = false;
+            globals.add(expr.name.lexeme);
+            events.add(HAZARD);
+        } else if (expr.depth == 0 && expr.slot < uses.length) {
+            if (uses[expr.slot]++ == 0) conditional[expr.slot] = skippable > 0;
+            events.add(expr.slot);
+        } else if (expr.depth != 0 || !temporaries.containsKey(expr.slot)) {
+            inlinable = false;
+        }
+        return null;
+    }
+
+    /* Whether evaluating an argument late, or more than once, is the same as evaluating it first. */
+    private static boolean trivial(Expr argument) {
+        if (argument instanceof Expr.Literal) return true;
+        if (!(argument instanceof Expr.Variable)) return false;
+
+        Expr.Variable variable = (Expr.Variable)argument;
+        return variable.depth != -1 && variable.upvalue == -1 && !variable.captured;
+    }
+
+    /* Whether an expression makes no calls or assignments. */
+    private static boolean pure(Expr expr) {
+        if (expr instanceof Expr.Literal || expr instanceof Expr.Variable) return true;
+        if (expr instanceof Expr.Grouping) return pure(((Expr.Grouping)expr).expression);
+        if (expr instanceof Expr.Unary) return pure(((Expr.Unary)expr).right);
+        if (expr instanceof Expr.Binary) {
+            return pure(((Expr.Binary)expr).left) && pure(((Expr.Binary)expr).right);
+        }
+        if (expr instanceof Expr.Logical) {
+            return pure(((Expr.Logical)expr).left) && pure(((Expr.Logical)expr).right);
+        }
+        return false;
+    }
+
+    /*
+     * Copies the body with each parameter replaced by its argument, and
+     * the function's temporaries by the caller's. The arguments were
+     * resolved where the call is, which is where they end up.
+     */
+    private class Substitution implements Expr.Visitor<Expr> {
+        private final List<Expr> arguments;
+        private final Map<Integer, Stmt.Var> locals;    // Caller temporaries, by slot here.
+        private final Set<Integer> bound = new HashSet<>();
+
+        Substitution(List<Expr> arguments, Map<Integer, Stmt.Var> locals) {
+            this.arguments = arguments;
+            this.locals = locals;
+        }
+
+        @Override
+        public Expr visitAssignExpr(Expr.Assign expr) {
+            return assign(locals.get(expr.slot), expr.value.accept(this));
+        }
+
+        @Override
+        public Expr visitBinaryExpr(Expr.Binary expr) {
+            return new Expr.Binary(expr.left.accept(this), expr.operator, expr.right.accept(this));
+        }
+
+        @Override
+        public Expr visitCallExpr(Expr.Call expr) {
+            Expr callee = expr.callee.accept(this);
+            List<Expr> arguments = new ArrayList<>();
+            for (Expr argument : expr.arguments) {
+                arguments.add(argument.accept(this));
+            }
+            return new Expr.Call(callee, expr.paren, arguments);
+        }
+
+        @Override
+        public Expr visitGroupingExpr(Expr.Grouping expr) {
+            return new Expr.Grouping(expr.expression.accept(this));
+        }
+
+        @Override
+        public Expr visitLiteralExpr(Expr.Literal expr) {
+            return expr;
+        }
+
+        @Override
+        public Expr visitLogicalExpr(Expr.Logical expr) {
+            return new Expr.Logical(expr.left.accept(this), expr.operator, expr.right.accept(this));
+        }
+
+        @Override
+        public Expr visitUnaryExpr(Expr.Unary expr) {
+            return new Expr.Unary(expr.operator, expr.right.accept(this));
+        }
+
+        /* A parameter's first use stores its argument if it has a temporary. */
+        @Override
+        public Expr visitVariableExpr(Expr.Variable expr) {
+            if (expr.depth == -1) return expr;
+
+            Stmt.Var local = locals.get(expr.slot);
+            if (expr.slot >= uses.length) return read(local);
+            if (local == null) return arguments.get(expr.slot);
+            if (bound.add(expr.slot)) return assign(local, arguments.get(expr.slot));
+            return read(local);
+        }
+
+        private Expr read(Stmt.Var local) {
+            Expr.Variable variable = new Expr.Variable(local.name);
+            variable.depth = 0;
+            variable.slot = local.slot;
+            return variable;
+        }
+
+        private Expr assign(Stmt.Var local, Expr value) {
+            Expr.Assign assign = new Expr.Assign(local.name, value);
+            assign.depth = 0;
+            assign.slot = local.slot;
+            return assign;
+        }
+    }
+}
@@ -1,15 +1,50 @@
 package com.craftinginterpreters.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+
+import static com.craftinginterpreters.lox.Environment.UNBOXED;
 
 public class Interpreter implements Expr.Visitor<Object>,
-                                   Stmt.Visitor<Void> {
+                                   Stmt.Visitor<Interpreter.Completion> {
+    /*
+     * How a statement finished. A `return` hands its value over in
+     * returnValue and unwinds the enclosing blocks and loops by having each
+     * pass RETURN on, rather than by throwing. A return in tail position that
+     * calls a LoxFunction leaves the callee in tailCall, with its arguments
+     * pushed, for run() to run in the frame being left.
+     */
+    enum Completion {
+        NORMAL,
+        RETURN,
+        TAIL_CALL
+    }
+
     final Environment globals = new Environment();
-    private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    private Environment environment = globals;  // Only used outside functions.
+
+    /*
+     * Locals of running functions, each frame a window on one value stack.
+     * Arguments are evaluated straight into the callee's parameter slots,
+     * and a frame is cleared and popped on return. Closures capture Cells,
+     * never frames, so no frame has to outlive its call.
+     *
+     * A slot holding UNBOXED keeps its number in the same slot of `numbers`
+     * instead, so arithmetic on locals and arguments allocates nothing.
+     */
+    private Object[] stack = new Object[1024];
+    private double[] numbers = new double[1024];
+    private int base = -1;          // Start of the running function's frame; -1 outside functions.
+    private int top = 0;            // First free slot.
+    private Cell[] upvalues = null; // The running function's captured variables.
+    private Object returnValue = null;  // Set by a `return` completing with RETURN.
+    private LoxFunction tailCall = null; // Set by a `return` completing with TAIL_CALL.
+
+    /*
+     * What number() last evaluated to: UNBOXED if it was the number
+     * number() returned, else the value itself.
+     */
+    private Object evaluated = UNBOXED;
 
     Interpreter() {
         globals.define("clock", new LoxCallable() {
@@ -19,6 +54,11 @@ public class Interpreter implements Expr.Visitor<Object>,
             @Override
             public Object call(Interpreter interpreter,
                                List<Object> arguments) {
+                return call0(interpreter);
+            }
+
+            @Override
+            public Object call0(Interpreter interpreter) {
                 return (double)System.currentTimeMillis() / 1000.0;
             }
 
@@ -28,6 +68,13 @@ public class Interpreter implements Expr.Visitor<Object>,
     }
 
     void interpret(List<Stmt> statements) {
+        // A runtime error in an earlier REPL line may have left frames behind.
+        Arrays.fill(stack, 0, top, null);
+        base = -1;
+        top = 0;
+        upvalues = null;
+        evaluated = UNBOXED;
+
         try {
             for (Stmt statement : statements) {
                 execute(statement);
@@ -60,34 +107,65 @@ public class Interpreter implements Expr.Visitor<Object>,
     /* Evaluates unary expressions. */
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
+        return box(unary(expr));
+    }
+
+    private double unary(Expr.Unary expr) {
+        double right = number(expr.right);
 
         switch (expr.operator.type) {
             case BANG:
-                return isTruthy(right);
+                evaluated = evaluated == UNBOXED || isTruthy(evaluated);
+                return 0;
             case MINUS:
-                checkNumberOperand(expr.operator, right);
-                return -(double)right;
+                if (evaluated != UNBOXED) checkNumberOperand(expr.operator, evaluated);
+                return -right;
         }
 
         // Unreachable.
-        return null;
+        evaluated = null;
+        return 0;
     }
 
     /* Evaluates variable expressions. */
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        return lookUpVariable(expr);
     }
 
     /* Helper method used to get a variable's value. */
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
-        } else {
-            return globals.get(name);
+    private Object lookUpVariable(Expr.Variable expr) {
+        if (expr.upvalue != -1) {
+            return upvalues[expr.upvalue].value;
+        } else if (expr.depth == -1) {
+            return globals.get(expr.name);
         }
+
+        Object value = base != -1 ? stack[base + expr.slot]
+                                  : environment.getAt(expr.depth, expr.slot);
+        if (value == UNBOXED) return numbers[base + expr.slot];
+        return expr.captured ? ((Cell)value).value : value;
+    }
+
+    /* Like lookUpVariable(), for number(). */
+    private double variable(Expr.Variable expr) {
+        if (expr.upvalue == -1 && expr.depth != -1 && !expr.captured) {
+            if (base != -1) {
+                int slot = base + expr.slot;
+                if (stack[slot] == UNBOXED) {
+                    evaluated = UNBOXED;
+                    return numbers[slot];
+                }
+                return unbox(stack[slot]);
+            }
+
+            Environment scope = environment.ancestor(expr.depth);
+            if (scope.holdsNumber(expr.slot)) {
+                evaluated = UNBOXED;
+                return scope.number(expr.slot);
+            }
+        }
+        return unbox(lookUpVariable(expr));
     }
 
     /* Checks if the operator is being applied to a number. */
@@ -107,21 +185,21 @@ public class Interpreter implements Expr.Visitor<Object>,
      * Determines truth value of parameter.
      * `false` and `nil` are falsey; everything else is truthy.
      */
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
     }
 
     /* Determines if the provided objects are equal to each other. */
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
 
         return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         if (object instanceof Double) {
@@ -149,147 +227,422 @@ public class Interpreter implements Expr.Visitor<Object>,
         return expr.accept(this);
     }
 
+    /*
+     * Evaluates an expression without boxing its value if that is a number,
+     * for operators that want numbers and for values stored in a slot.
+     * Whatever the value, it is left in `evaluated`, with UNBOXED standing for
+     * the number returned. Expressions that yield numbers are dispatched
+     * here directly, as the visitor can only return Objects.
+     */
+    private double number(Expr expr) {
+        if (expr instanceof Expr.Binary) return binary((Expr.Binary)expr);
+        if (expr instanceof Expr.Variable) return variable((Expr.Variable)expr);
+        if (expr instanceof Expr.Literal) return unbox(((Expr.Literal)expr).value);
+        if (expr instanceof Expr.Assign) return assign((Expr.Assign)expr);
+        if (expr instanceof Expr.Unary) return unary((Expr.Unary)expr);
+        if (expr instanceof Expr.Grouping) return number(((Expr.Grouping)expr).expression);
+        return unbox(evaluate(expr));
+    }
+
+    private double unbox(Object value) {
+        if (value instanceof Double) {
+            evaluated = UNBOXED;
+            return (double)value;
+        }
+        evaluated = value;
+        return 0;
+    }
+
+    /* Gives the value number() just returned as an Object, boxing it if it is `number`. */
+    private Object box(double number) {
+        return evaluated == UNBOXED ? (Object)number : evaluated;
+    }
+
+    /* Evaluates a condition, without boxing it if it is a number. */
+    private boolean condition(Expr expr) {
+        number(expr);
+        return evaluated == UNBOXED || isTruthy(evaluated);
+    }
+
     /*
      * Helper method used to send the statement back to the interpreter's visitor.
      * Used for statements.
      */
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Completion execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
     /*
-     * Helper method used to track the number of scopes between the current scope
-     * and the scope where the provided variable is defined.
+     * Binds a declaration in the current scope: by name for globals, by slot
+     * for locals, in a new Cell if a closure captures it.
      */
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    private void define(Token name, int slot, boolean captured, Object value) {
+        if (base != -1) {
+            stack[base + slot] = captured ? new Cell(value) : value;
+        } else if (environment == globals) {
+            globals.define(name.lexeme, value);
+        } else {
+            environment.define(slot, captured ? new Cell(value) : value);
+        }
+    }
+
+    /* Binds a local declared here to a number without boxing it; false for a global. */
+    private boolean defineNumber(int slot, double number) {
+        if (base != -1) {
+            stack[base + slot] = UNBOXED;
+            numbers[base + slot] = number;
+            return true;
+        }
+        if (environment == globals) return false;
+
+        environment.defineNumber(slot, number);
+        return true;
+    }
+
+    /* Pushes a callee's arguments onto the value stack; returns where its frame starts. */
+    int push(List<Object> arguments) {
+        int frame = top;
+        for (Object argument : arguments) {
+            push(argument);
+        }
+        return frame;
+    }
+
+    private void push(Object value) {
+        if (top == stack.length) grow(top * 2);
+        stack[top++] = value;
+    }
+
+    private void pushNumber(double number) {
+        if (top == stack.length) grow(top * 2);
+        stack[top] = UNBOXED;
+        numbers[top++] = number;
+    }
+
+    private void grow(int size) {
+        stack = Arrays.copyOf(stack, size);
+        numbers = Arrays.copyOf(numbers, size);
+    }
+
+    /* Copies part of the value stack, boxing the numbers in it. */
+    private Object[] values(int from, int to) {
+        Object[] values = Arrays.copyOfRange(stack, from, to);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == UNBOXED) values[i] = numbers[from + i];
+        }
+        return values;
+    }
+
+    /*
+     * Runs a function in a frame starting at `frame`, where its arguments
+     * already are, answering from its Memo when it has one. A result is
+     * only cached once the call returns, so a call that fails is never
+     * cached.
+     */
+    Object invoke(LoxFunction function, int frame) {
+        Memo memo = function.memo;
+        if (memo == null) return run(function, frame);
+
+        Object[] key = values(frame, frame + function.arity());
+        Object result = memo.get(key);
+        if (result != Memo.MISSING) {
+            Arrays.fill(stack, frame, frame + key.length, null);
+            top = frame;
+            return result;
+        }
+
+        result = run(function, frame);
+        memo.put(key, result);
+        return result;
+    }
+
+    /*
+     * Runs a function's body in its frame. This is also the trampoline for
+     * tail calls: the callee's arguments are moved down into the same frame
+     * and the loop goes round again, so tail recursion runs in constant Java
+     * and value stack. The result of the call that started it is that of
+     * the last call, so only the first function's Memo is involved.
+     */
+    private Object run(LoxFunction function, int frame) {
+        int callerBase = base;
+        Cell[] callerUpvalues = upvalues;
+        int end = frame;
+        try {
+            while (true) {
+                Stmt.Function declaration = function.declaration;
+                end = frame + declaration.frameSize;
+                if (end > stack.length) grow(Math.max(end, stack.length * 2));
+                for (int slot : declaration.cellParams) {
+                    Object value = stack[frame + slot];
+                    stack[frame + slot] = new Cell(value == UNBOXED ? numbers[frame + slot] : value);
+                }
+
+                base = frame;
+                top = end;
+                upvalues = function.upvalues;
+                Completion completion = executeBody(declaration.body);
+                if (completion == Completion.NORMAL) return null;
+                if (completion == Completion.RETURN) {
+                    Object value = returnValue;
+                    returnValue = null;
+                    return value;
+                }
+
+                // The tail call's arguments sit just above this frame.
+                function = tailCall;
+                tailCall = null;
+                int arity = function.arity();
+                System.arraycopy(stack, end, stack, frame, arity);
+                System.arraycopy(numbers, end, numbers, frame, arity);
+                Arrays.fill(stack, frame + arity, end + arity, null);
+                end = frame + arity;
+                top = end;
+
+                if (Jit.enabled()) {
+                    Object result = function.runCompiled(this,
+                            Arrays.asList(values(frame, end)));
+                    if (result != JitCode.DEOPT) return result;
+                }
+            }
+        } finally {
+            Arrays.fill(stack, frame, end, null);
+            base = callerBase;
+            top = frame;
+            upvalues = callerUpvalues;
+        }
+    }
+
+    private Completion executeBody(List<Stmt> body) {
+        for (Stmt statement : body) {
+            Completion completion = execute(statement);
+            if (completion != Completion.NORMAL) return completion;
+        }
+        return Completion.NORMAL;
+    }
+
+    /* Collects the Cells a closure declared here captures. */
+    private Cell[] capture(Cell.Capture[] captures) {
+        if (base == -1) return environment.capture(captures);
+
+        Cell[] cells = new Cell[captures.length];
+        for (int i = 0; i < captures.length; i++) {
+            Cell.Capture capture = captures[i];
+            cells[i] = capture.local ? (Cell)stack[base + capture.index]
+                                     : upvalues[capture.index];
+        }
+        return cells;
     }
 
     /*
      * Helper method used to send the statements back to the interpreter's visitor.
      * Used for block statements.
      */
-    void executeBlock(List<Stmt> statements,
-                      Environment environment) {
+    Completion executeBlock(List<Stmt> statements,
+                            Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
 
-            for (Stmt statement : statements) {
-                execute(statement);
-            }
+            return executeBody(statements);
         } finally {
             this.environment = previous;
         }
     }
 
-    /* Evaluates block statements. */
+    /*
+     * Evaluates block statements.
+     * A block the resolver found needs no scope of its own runs in the current environment.
+     */
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.scoped) return executeBody(stmt.statements);
+
+        return executeBlock(stmt.statements, new Environment(environment));
     }
 
     /* Evaluates expression statements. */
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
-        evaluate(stmt.expression);
-        return null;
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
+        // As a number, so that assigning one needn't box it.
+        number(stmt.expression);
+        return Completion.NORMAL;
     }
 
     /* Evaluates function statements. */
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.captured) {
+            // The function may capture itself, so its Cell must exist first.
+            Cell cell = new Cell(null);
+            define(stmt.name, stmt.slot, false, cell);
+            cell.value = new LoxFunction(stmt, capture(stmt.captures));
+            return Completion.NORMAL;
+        }
+
+        LoxFunction function = new LoxFunction(stmt, capture(stmt.captures));
+        define(stmt.name, stmt.slot, false, function);
+        return Completion.NORMAL;
     }
 
     /* Evaluates if statements. */
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
-        if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+    public Completion visitIfStmt(Stmt.If stmt) {
+        if (condition(stmt.condition)) {
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     /* Evaluates print statements. */
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Completion visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
         System.out.println(stringify(value));
-        return null;
+        return Completion.NORMAL;
     }
 
     /* Evaluates return statements. */
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tailCall) {
+            Expr.Call call = (Expr.Call)stmt.value;
+            Object callee = evaluate(call.callee);
+            if (callee instanceof LoxFunction) {
+                // The arguments may make tail calls of their own, so set tailCall last.
+                LoxFunction function = (LoxFunction)callee;
+                pushArguments(function, call);
+                tailCall = function;
+                return Completion.TAIL_CALL;
+            }
+
+            returnValue = call(callee, call);
+            return Completion.RETURN;
+        }
+
         Object value = null;
         if (stmt.value != null) value = evaluate(stmt.value);
 
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
     }
 
     /* Evaluates variable declarations. */
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
-        Object value = null;
-        if (stmt.initializer != null) {
-            value = evaluate(stmt.initializer);
+    public Completion visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) {
+            define(stmt.name, stmt.slot, stmt.captured, null);
+            return Completion.NORMAL;
         }
 
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        double number = number(stmt.initializer);
+        if (evaluated == UNBOXED && !stmt.captured && defineNumber(stmt.slot, number)) {
+            return Completion.NORMAL;
+        }
+
+        define(stmt.name, stmt.slot, stmt.captured, box(number));
+        return Completion.NORMAL;
     }
 
     /* Evaluates while loops. */
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
-        while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+    public Completion visitWhileStmt(Stmt.While stmt) {
+        while (condition(stmt.condition)) {
+            Completion completion = execute(stmt.body);
+            if (completion != Completion.NORMAL) return completion;
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     /* Evaluates variable assignment expressions. */
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
-        Object value = evaluate(expr.value);
+        return box(assign(expr));
+    }
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
-        } else {
+    private double assign(Expr.Assign expr) {
+        double number = number(expr.value);
+        boolean local = expr.upvalue == -1 && expr.depth != -1 && !expr.captured;
+        if (evaluated == UNBOXED && local) {
+            if (base != -1) {
+                stack[base + expr.slot] = UNBOXED;
+                numbers[base + expr.slot] = number;
+            } else {
+                environment.ancestor(expr.depth).setNumber(expr.slot, number);
+            }
+            return number;
+        }
+
+        Object value = box(number);
+        if (expr.upvalue != -1) {
+            upvalues[expr.upvalue].value = value;
+        } else if (expr.depth == -1) {
             globals.assign(expr.name, value);
+        } else if (expr.captured) {
+            Object cell = base != -1 ? stack[base + expr.slot]
+                                     : environment.getAt(expr.depth, expr.slot);
+            ((Cell)cell).value = value;
+        } else if (base != -1) {
+            stack[base + expr.slot] = value;
+        } else {
+            environment.assignAt(expr.depth, expr.slot, value);
         }
 
-        return value;
+        return number;
     }
 
     /* Evaluates binary expressions. */
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
+        return box(binary(expr));
+    }
 
-        switch (expr.operator.type) {
+    private double binary(Expr.Binary expr) {
+        double left = number(expr.left);
+        Object leftValue = evaluated;
+        double right = number(expr.right);
+        if (leftValue == UNBOXED && evaluated == UNBOXED) {
+            switch (expr.operator.type) {
+                case GREATER:       evaluated = left > right; return 0;
+                case GREATER_EQUAL: evaluated = left >= right; return 0;
+                case LESS:          evaluated = left < right; return 0;
+                case LESS_EQUAL:    evaluated = left <= right; return 0;
+                case MINUS:         return left - right;
+                case PLUS:          return left + right;
+                case SLASH:         return left / right;
+                case STAR:          return left * right;
+                // Compared as Double.equals() does, like isEqual().
+                case BANG_EQUAL:
+                    evaluated = Double.doubleToLongBits(left) != Double.doubleToLongBits(right);
+                    return 0;
+                case EQUAL_EQUAL:
+                    evaluated = Double.doubleToLongBits(left) == Double.doubleToLongBits(right);
+                    return 0;
+            }
+        }
+
+        return unbox(binary(expr.operator,
+                leftValue == UNBOXED ? (Object)left : leftValue, box(right)));
+    }
+
+    /* Applies a binary operator to operands that are not both numbers. */
+    private Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left > (double)right;
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left >= (double)right;
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left < (double)right;
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left <= (double)right;
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left - (double)right;
             case PLUS:
                 // Implements addition.
@@ -301,13 +654,13 @@ public class Interpreter implements Expr.Visitor<Object>,
                 if (left instanceof String && right instanceof String) {
                     return (String)left + (String)right;
                 }
-                throw new RuntimeError(expr.operator,
+                throw new RuntimeError(operator,
                     "Operands must be two numbers or two strings.");
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left / (double)right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left * (double)right;
             case BANG_EQUAL: return !isEqual(left, right);
             case EQUAL_EQUAL: return isEqual(left, right);
@@ -320,25 +673,103 @@ public class Interpreter implements Expr.Visitor<Object>,
     /* Evaluates call (i.e. function-like) expressions. */
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        return call(evaluate(expr.callee), expr);
+    }
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+    /*
+     * Calls through the entry point for the number of arguments, so no
+     * argument list is built for up to three of them.
+     */
+    private Object call(Object callee, Expr.Call expr) {
+        if (callee instanceof LoxFunction && !Jit.enabled()) {
+            LoxFunction function = (LoxFunction)callee;
+            return invoke(function, pushArguments(function, expr));
+        }
+
+        List<Expr> arguments = expr.arguments;
+        switch (arguments.size()) {
+            case 0:
+                return callable(callee, expr).call0(this);
+            case 1: {
+                Object a = evaluate(arguments.get(0));
+                return callable(callee, expr).call1(this, a);
+            }
+            case 2: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                return callable(callee, expr).call2(this, a, b);
+            }
+            case 3: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                return callable(callee, expr).call3(this, a, b, c);
+            }
+            default: {
+                Object[] values = new Object[arguments.size()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = evaluate(arguments.get(i));
+                }
+                return callable(callee, expr).callN(this, values);
+            }
         }
+    }
 
+    /*
+     * Checks that a call site's callee can be called with its arguments.
+     * The site remembers the last callee that passed, so a site that keeps
+     * calling the same function skips the checks.
+     */
+    static LoxCallable callable(Object callee, Expr.Call expr) {
+        LoxCallable cached = expr.callable;
+        // The cache starts out null, which a nil callee would match.
+        return callee == cached && cached != null ? cached : check(callee, expr);
+    }
+
+    /* Kept out of callable() so the check for a repeated callee inlines well. */
+    private static LoxCallable check(Object callee, Expr.Call expr) {
         if (!(callee instanceof LoxCallable)) {
             throw new RuntimeError(expr.paren,
                     "Can only call functions and classes.");
         }
 
         LoxCallable function = (LoxCallable)callee;
-        if (arguments.size() != function.arity()) {
+        if (expr.arguments.size() != function.arity()) {
             throw new RuntimeError(expr.paren, "Expected " +
                     function.arity() + " arguments but got " +
-                    arguments.size() + ".");
+                    expr.arguments.size() + ".");
+        }
+        if (function instanceof LoxFunction) ((LoxFunction)function).parse(expr.paren);
+
+        expr.callable = function;
+        return function;
+    }
+
+    /*
+     * Readies a call of a tree-walked function without building an argument
+     * list: each argument is pushed as it is evaluated, which puts it in the
+     * callee's parameter slot, unboxed if it is a number. Returns where the
+     * callee's frame starts. (With the JIT on, other calls go through
+     * LoxFunction.call so they are profiled.)
+     */
+    private int pushArguments(LoxFunction function, Expr.Call expr) {
+        int frame = top;
+        for (Expr argument : expr.arguments) {
+            double number = number(argument);
+            if (evaluated == UNBOXED) {
+                pushNumber(number);
+            } else {
+                push(evaluated);
+            }
+        }
+
+        try {
+            callable(function, expr);
+        } catch (RuntimeError error) {
+            top = frame;
+            throw error;
         }
 
-        return function.call(this, arguments);
+        return frame;
     }
 }
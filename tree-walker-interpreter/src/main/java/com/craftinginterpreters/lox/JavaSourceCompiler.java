@@ -0,0 +1,124 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/*
+ * Runs javac in memory on generated source, with the interpreter's own
+ * classes on the class path. Used by the JIT and by loxc.
+ */
+final class JavaSourceCompiler {
+    private JavaSourceCompiler() {}
+
+    /* Whether this JVM ships a Java compiler (a JDK rather than a JRE). */
+    static boolean available() {
+        return ToolProvider.getSystemJavaCompiler() != null;
+    }
+
+    /*
+     * Compiles one source file, returning the bytes of each class it
+     * declares. javac's diagnostics are collected rather than printed, and
+     * only make up the message of the exception thrown if it fails.
+     */
+    static Map<String, byte[]> compile(String className, final String source) {
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager files = javac.getStandardFileManager(null, null, null);
+        final Map<String, ByteArrayOutputStream> output = new HashMap<>();
+
+        ForwardingJavaFileManager<StandardJavaFileManager> memory =
+                new ForwardingJavaFileManager<StandardJavaFileManager>(files) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location,
+                    final String name, JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(uri(name, kind), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                        output.put(name, bytes);
+                        return bytes;
+                    }
+                };
+            }
+        };
+
+        JavaFileObject file = new SimpleJavaFileObject(
+                uri(className, JavaFileObject.Kind.SOURCE), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+
+        List<String> options = Arrays.asList(
+                "-classpath", runtimeLocation().getPath(), "-proc:none", "-g:none", "-nowarn");
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        boolean ok = javac.getTask(null, memory, diagnostics, options, null,
+                Arrays.asList(file)).call();
+        if (!ok) {
+            StringBuilder message = new StringBuilder("Generated code did not compile:");
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                message.append('\n').append(diagnostic.getMessage(null));
+            }
+            throw new IllegalStateException(message.toString());
+        }
+
+        Map<String, byte[]> classes = new HashMap<>();
+        for (Map.Entry<String, ByteArrayOutputStream> entry : output.entrySet()) {
+            classes.put(entry.getKey(), entry.getValue().toByteArray());
+        }
+        return classes;
+    }
+
+    /* The directory or JAR the interpreter's own classes were loaded from. */
+    static File runtimeLocation() {
+        try {
+            return new File(JavaSourceCompiler.class.getProtectionDomain()
+                    .getCodeSource().getLocation().toURI());
+        } catch (Exception error) {
+            return new File(System.getProperty("java.class.path"));
+        }
+    }
+
+    /* Writes a Java double expression; folded constants may be infinite or NaN. */
+    static String number(double value) {
+        if (Double.isNaN(value)) return "Double.NaN";
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "Double.POSITIVE_INFINITY" : "Double.NEGATIVE_INFINITY";
+        }
+        return value + "d";
+    }
+
+    /* Writes a Java string literal; control characters use octal escapes. */
+    static String quote(String value) {
+        StringBuilder literal = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                literal.append('\\').append(c);
+            } else if (c < ' ') {
+                literal.append(String.format("\\%03o", (int)c));
+            } else {
+                literal.append(c);
+            }
+        }
+        return literal.append('"').toString();
+    }
+
+    private static URI uri(String className, JavaFileObject.Kind kind) {
+        return URI.create("memory:///" + className.replace('.', '/') + kind.extension);
+    }
+}
@@ -0,0 +1,129 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Optional tier of the tree walker that compiles hot functions to JVM
+ * bytecode. Each function declaration carries a Profile that counts calls
+ * and records which parameters have only held numbers. Past THRESHOLD calls
+ * the declaration is handed to a background thread, which turns it into
+ * Java source with JitCompiler, compiles that with javac and installs the
+ * result. Code whose type guards fail is discarded for good, and the
+ * function goes back to being interpreted. So does a function whose code
+ * can't be compiled at all, such as one too large for a JVM method; that
+ * is only reported under --jit-debug.
+ */
+final class Jit {
+    static final int THRESHOLD = 1000;
+
+    private static boolean enabled = false;
+    static boolean debug = false;   // Whether to report functions that fail to compile.
+    private static ExecutorService compiler = null;
+    private static int classCount = 0;
+
+    /* Per-declaration call profile, stored on the Stmt.Function. */
+    static class Profile {
+        int calls = 0;
+        boolean[] numbers = null;       // Whether each parameter has only seen numbers.
+        boolean queued = false;         // Never compile the same declaration twice.
+        volatile JitCode code = null;   // Installed by the compiler thread.
+    }
+
+    private Jit() {}
+
+    /* Turns the tier on if this JVM ships a Java compiler; returns whether it did. */
+    static boolean enable() {
+        if (!JavaSourceCompiler.available()) return false;
+
+        compiler = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(null, runnable, "lox-jit", Lox.STACK_SIZE);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        enabled = true;
+        return true;
+    }
+
+    static boolean enabled() {
+        return enabled;
+    }
+
+    /* Counts a call of an interpreted function and queues it once it is hot. */
+    static void record(final Stmt.Function declaration, List<Object> arguments,
+                       final Interpreter interpreter) {
+        final Profile profile = declaration.profile;
+        if (!enabled || profile.queued) return;
+
+        if (profile.numbers == null) {
+            profile.numbers = new boolean[arguments.size()];
+            Arrays.fill(profile.numbers, true);
+        }
+        for (int i = 0; i < profile.numbers.length; i++) {
+            if (!(arguments.get(i) instanceof Double)) profile.numbers[i] = false;
+        }
+
+        if (++profile.calls < THRESHOLD) return;
+        profile.queued = true;
+
+        final boolean[] numbers = profile.numbers.clone();
+        compiler.execute(() -> profile.code = compile(declaration, numbers, interpreter));
+    }
+
+    /* Drops code whose type assumptions no longer hold. */
+    static void deoptimize(Stmt.Function declaration) {
+        declaration.profile.code = null;
+    }
+
+    /* Returns compiled code for the declaration, or null if it cannot be compiled. */
+    private static JitCode compile(Stmt.Function declaration, boolean[] numbers,
+                                   Interpreter interpreter) {
+        String className = "Lox_" + declaration.name.lexeme + "_" + classCount++;
+        JitCompiler generator = new JitCompiler(declaration, numbers);
+        try {
+            String source = generator.compile(className);
+            if (source == null) return null;
+
+            Class<?> compiled = new JitClassLoader(
+                    JavaSourceCompiler.compile("lox.jit." + className, source))
+                    .loadClass("lox.jit." + className);
+            JitCode code = (JitCode)compiled
+                    .getConstructor(Interpreter.class, Token[].class)
+                    .newInstance(interpreter, generator.tokens());
+            code.declaration = declaration;
+            return code;
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError |
+                 StackOverflowError error) {
+            // The function stays interpreted, which is always correct.
+            if (debug) {
+                System.err.println("Could not compile " + declaration.name.lexeme + "(): " +
+                        error.getMessage());
+            }
+            return null;
+        }
+    }
+
+    /* Defines the classes of one compiled function, so each can be unloaded on its own. */
+    private static class JitClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classes;
+
+        JitClassLoader(Map<String, byte[]> classes) {
+            super(JitCode.class.getClassLoader());
+            this.classes = classes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytes = classes.get(name);
+            if (bytes == null) throw new ClassNotFoundException(name);
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/*
+ * Base class of the classes JitCompiler generates. Those classes are loaded
+ * by their own class loader and so cannot see package-private code; they
+ * reach the interpreter only through the protected helpers below, which
+ * forward to LoxRuntime.
+ */
+public abstract class JitCode {
+    /* Returned by invoke() when the arguments break the code's type assumptions. */
+    protected static final Object DEOPT = new Object();
+
+    private final Interpreter interpreter;
+    private final Token[] tokens;   // Names, operators and parens, referred to by index.
+    Stmt.Function declaration;      // The function this code was compiled from.
+
+    protected JitCode(Interpreter interpreter, Token[] tokens) {
+        this.interpreter = interpreter;
+        this.tokens = tokens;
+    }
+
+    /* Runs the compiled function body, or returns DEOPT without side effects. */
+    public abstract Object invoke(List<Object> arguments);
+
+    protected final Object global(int name) {
+        return interpreter.globals.get(tokens[name]);
+    }
+
+    protected final Object assignGlobal(int name, Object value) {
+        return LoxRuntime.assign(interpreter.globals, tokens[name], value);
+    }
+
+    protected final Object call(Object callee, int paren) {
+        return LoxRuntime.call(interpreter, callee, tokens[paren]);
+    }
+
+    protected final Object call(Object callee, int paren, Object a) {
+        return LoxRuntime.call(interpreter, callee, tokens[paren], a);
+    }
+
+    protected final Object call(Object callee, int paren, Object a, Object b) {
+        return LoxRuntime.call(interpreter, callee, tokens[paren], a, b);
+    }
+
+    protected final Object call(Object callee, int paren, Object a, Object b, Object c) {
+        return LoxRuntime.call(interpreter, callee, tokens[paren], a, b, c);
+    }
+
+    protected final Object call(Object callee, int paren, Object... arguments) {
+        return LoxRuntime.callable(callee, tokens[paren], arguments.length)
+                .callN(interpreter, arguments);
+    }
+
+    /* Whether a callee is the function this code was compiled from. */
+    protected final boolean isSelf(Object callee) {
+        return callee instanceof LoxFunction &&
+                ((LoxFunction)callee).declaration == declaration;
+    }
+
+    protected final Object add(Object left, Object right, int operator) {
+        return LoxRuntime.add(left, right, tokens[operator]);
+    }
+
+    protected final double subtract(Object left, Object right, int operator) {
+        return LoxRuntime.subtract(left, right, tokens[operator]);
+    }
+
+    protected final double multiply(Object left, Object right, int operator) {
+        return LoxRuntime.multiply(left, right, tokens[operator]);
+    }
+
+    protected final double divide(Object left, Object right, int operator) {
+        return LoxRuntime.divide(left, right, tokens[operator]);
+    }
+
+    protected final boolean greater(Object left, Object right, int operator) {
+        return LoxRuntime.greater(left, right, tokens[operator]);
+    }
+
+    protected final boolean greaterEqual(Object left, Object right, int operator) {
+        return LoxRuntime.greaterEqual(left, right, tokens[operator]);
+    }
+
+    protected final boolean less(Object left, Object right, int operator) {
+        return LoxRuntime.less(left, right, tokens[operator]);
+    }
+
+    protected final boolean lessEqual(Object left, Object right, int operator) {
+        return LoxRuntime.lessEqual(left, right, tokens[operator]);
+    }
+
+    protected final double negate(Object operand, int operator) {
+        return LoxRuntime.negate(operand, tokens[operator]);
+    }
+
+    /* Conditions always go through truthy(); see LoxRuntime.truthy(). */
+    protected static boolean truthy(Object value) {
+        return LoxRuntime.truthy(value);
+    }
+
+    protected static boolean truthy(boolean value) {
+        return value;
+    }
+
+    protected static boolean truthy(double value) {
+        return true;
+    }
+
+    protected static boolean equal(Object left, Object right) {
+        return LoxRuntime.equal(left, right);
+    }
+
+    protected static void print(Object value) {
+        LoxRuntime.print(value);
+    }
+
+    /* Evaluates an expression statement, whose value is unused. */
+    protected static void discard(Object value) {
+    }
+
+    protected static void discard(boolean value) {
+    }
+
+    protected static void discard(double value) {
+    }
+}
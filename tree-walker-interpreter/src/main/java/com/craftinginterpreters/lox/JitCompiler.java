@@ -0,0 +1,498 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Translates one hot function declaration into the Java source of a JitCode
+ * subclass. Locals become Java locals; those that only ever hold numbers are
+ * declared `double`, so arithmetic on them needs no boxing. Parameters that
+ * the profile has only seen holding numbers are checked on entry, and the
+ * code returns DEOPT if a later call breaks that assumption.
+ *
+ * Functions that declare nested functions or use variables of an enclosing
+ * function are left to the interpreter.
+ */
+class JitCompiler implements Expr.Visitor<JitCompiler.Code>, Stmt.Visitor<Void> {
+    private enum Type { NUMBER, BOOLEAN, OBJECT }
+
+    /* A Java expression and its static type. */
+    static class Code {
+        final Type type;
+        final String text;
+
+        Code(Type type, String text) {
+            this.type = type;
+            this.text = text;
+        }
+    }
+
+    private static class Local {
+        final String name;
+        final Type type;
+        final Object declaration;   // The parameter Token or Stmt.Var.
+
+        Local(String name, Type type, Object declaration) {
+            this.name = name;
+            this.type = type;
+            this.declaration = declaration;
+        }
+    }
+
+    /* Thrown when the function uses something the compiler does not handle. */
+    private static class Unsupported extends RuntimeException {}
+
+    private final Stmt.Function function;
+    private final boolean[] numbers;    // Parameters the profile has only seen as numbers.
+
+    // Declarations (parameter tokens and Stmt.Vars) that must be Objects.
+    private final Set<Object> objects = new HashSet<>();
+    private boolean demoted;            // Whether this pass added to `objects`.
+
+    // Per-pass state.
+    private final List<Token> tokens = new ArrayList<>();
+    private final List<List<Local>> scopes = new ArrayList<>();
+    private StringBuilder out;
+    private int indent;
+    private int localCount;
+    private int tempCount;
+    private int tailCount;
+
+    JitCompiler(Stmt.Function function, boolean[] numbers) {
+        this.function = function;
+        this.numbers = numbers;
+    }
+
+    /*
+     * Returns the source of `lox.jit.<className>`, or null if the function
+     * cannot be compiled. Each pass may find a local that is assigned a
+     * non-number and demote it; passes repeat until the types settle.
+     */
+    String compile(String className) {
+        try {
+            String source;
+            do {
+                demoted = false;
+                source = generate(className);
+            } while (demoted);
+            return source;
+        } catch (Unsupported unsupported) {
+            return null;
+        }
+    }
+
+    /* Tokens the generated code refers to by index; passed to its constructor. */
+    Token[] tokens() {
+        return tokens.toArray(new Token[tokens.size()]);
+    }
+
+    private String generate(String className) {
+        tokens.clear();
+        scopes.clear();
+        out = new StringBuilder();
+        indent = 2;
+        localCount = 0;
+        tempCount = 0;
+        tailCount = 0;
+
+        // Parameters share the body's scope, as in Resolver.resolveFunction().
+        List<Local> scope = new ArrayList<>();
+        scopes.add(scope);
+        StringBuilder guards = new StringBuilder();
+        StringBuilder parameters = new StringBuilder();
+        StringBuilder arguments = new StringBuilder();
+        for (int i = 0; i < function.params.size(); i++) {
+            Token param = function.params.get(i);
+            boolean number = numbers[i] && !objects.contains(param);
+            Local local = new Local("v" + localCount++,
+                    number ? Type.NUMBER : Type.OBJECT, param);
+            scope.add(local);
+
+            String separator = i == 0 ? "" : ", ";
+            parameters.append(separator)
+                    .append(number ? "double " : "Object ").append(local.name);
+            arguments.append(separator)
+                    .append(number ? "(Double)" : "").append("arguments.get(" + i + ")");
+            if (number) {
+                guards.append("        if (!(arguments.get(" + i +
+                        ") instanceof Double)) return DEOPT;\n");
+            }
+        }
+
+        indent++;
+        for (Stmt statement : function.body) {
+            statement.accept(this);
+        }
+        line("return null;");
+        indent--;
+
+        StringBuilder temps = new StringBuilder();
+        for (int i = 0; i < tempCount; i++) {
+            temps.append("        Object t").append(i).append(" = null;\n");
+        }
+
+        return "package lox.jit;\n\n" +
+                "import com.craftinginterpreters.lox.Interpreter;\n" +
+                "import com.craftinginterpreters.lox.JitCode;\n" +
+                "import com.craftinginterpreters.lox.Token;\n" +
+                "import java.util.List;\n\n" +
+                "public final class " + className + " extends JitCode {\n" +
+                "    public " + className + "(Interpreter interpreter, Token[] tokens) {\n" +
+                "        super(interpreter, tokens);\n" +
+                "    }\n\n" +
+                "    @Override\n" +
+                "    public Object invoke(List<Object> arguments) {\n" +
+                guards +
+                "        return run(" + arguments + ");\n" +
+                "    }\n\n" +
+                "    private Object run(" + parameters + ") {\n" +
+                temps +
+                "        tail: while (true) {\n" +
+                out +
+                "        }\n" +
+                "    }\n" +
+                "}\n";
+    }
+
+    /* A block without a scope of its own adds its locals to the enclosing one. */
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        line("{");
+        indent++;
+        if (stmt.scoped) scopes.add(new ArrayList<Local>());
+        for (Stmt statement : stmt.statements) {
+            statement.accept(this);
+        }
+        if (stmt.scoped) scopes.remove(scopes.size() - 1);
+        indent--;
+        line("}");
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        line("discard(" + compile(stmt.expression).text + ");");
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        line("if (" + condition(compile(stmt.condition)) + ") {");
+        branch(stmt.thenBranch);
+        if (stmt.elseBranch != null) {
+            line("} else {");
+            branch(stmt.elseBranch);
+        }
+        line("}");
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        line("print(" + box(compile(stmt.expression)) + ");");
+        return null;
+    }
+
+    /* `if (true)` keeps javac from rejecting any statements that follow as unreachable. */
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tailCall) return tailCall((Expr.Call)stmt.value);
+
+        String value = stmt.value == null ? "null" : box(compile(stmt.value));
+        line("if (true) return " + value + ";");
+        return null;
+    }
+
+    /*
+     * A call the function returns to itself rebinds the parameters and jumps
+     * back to the top of run(), so deep self recursion uses no Java stack.
+     */
+    private Void tailCall(Expr.Call expr) {
+        String callee = "c" + tailCount;
+        String prefix = "a" + tailCount++ + "_";
+        line("{");
+        indent++;
+        line("Object " + callee + " = " + box(compile(expr.callee)) + ";");
+
+        StringBuilder call = new StringBuilder();
+        StringBuilder rebind = new StringBuilder();
+        boolean direct = expr.arguments.size() == function.params.size();
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            Code argument = compile(expr.arguments.get(i));
+            Type param = direct ? scopes.get(0).get(i).type : Type.OBJECT;
+            if (param == Type.NUMBER && argument.type != Type.NUMBER) direct = false;
+
+            String name = prefix + i;
+            if (argument.type == Type.NUMBER) {
+                line("double " + name + " = " + argument.text + ";");
+            } else {
+                line("Object " + name + " = " + box(argument) + ";");
+            }
+            Code value = new Code(argument.type, name);
+            call.append(", ").append(box(value));
+            if (direct) {
+                rebind.append(scopes.get(0).get(i).name).append(" = ")
+                        .append(param == Type.NUMBER ? name : box(value)).append("; ");
+            }
+        }
+
+        if (direct) line("if (isSelf(" + callee + ")) { " + rebind + "continue tail; }");
+        line("if (true) return call(" + callee + ", " + token(expr.paren) + call + ");");
+        indent--;
+        line("}");
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        Code initializer = stmt.initializer == null
+                ? new Code(Type.OBJECT, "null")
+                : compile(stmt.initializer);
+
+        Local local;
+        if (initializer.type == Type.NUMBER && !objects.contains(stmt)) {
+            local = declare(Type.NUMBER, initializer.text, stmt);
+        } else {
+            demote(stmt);
+            local = declare(Type.OBJECT, box(initializer), stmt);
+        }
+        List<Local> scope = scopes.get(scopes.size() - 1);
+        while (scope.size() <= stmt.slot) scope.add(null);
+        scope.set(stmt.slot, local);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        line("while (" + condition(compile(stmt.condition)) + ") {");
+        branch(stmt.body);
+        line("}");
+        return null;
+    }
+
+    @Override
+    public Code visitAssignExpr(Expr.Assign expr) {
+        Code value = compile(expr.value);
+        if (expr.upvalue != -1) throw new Unsupported();
+        if (expr.depth == -1) {
+            return new Code(Type.OBJECT,
+                    "assignGlobal(" + token(expr.name) + ", " + box(value) + ")");
+        }
+
+        Local local = local(expr.depth, expr.slot);
+        if (local.type == Type.NUMBER) {
+            if (value.type != Type.NUMBER) demote(local.declaration);
+            return new Code(Type.NUMBER, "(" + local.name + " = " + value.text + ")");
+        }
+        return new Code(Type.OBJECT, "(" + local.name + " = " + box(value) + ")");
+    }
+
+    @Override
+    public Code visitBinaryExpr(Expr.Binary expr) {
+        Code left = compile(expr.left);
+        Code right = compile(expr.right);
+        boolean numbers = left.type == Type.NUMBER && right.type == Type.NUMBER;
+        String operands = box(left) + ", " + box(right) + ", " + token(expr.operator);
+
+        switch (expr.operator.type) {
+            case GREATER:
+                return numbers ? infix(Type.BOOLEAN, left, ">", right)
+                               : new Code(Type.BOOLEAN, "greater(" + operands + ")");
+            case GREATER_EQUAL:
+                return numbers ? infix(Type.BOOLEAN, left, ">=", right)
+                               : new Code(Type.BOOLEAN, "greaterEqual(" + operands + ")");
+            case LESS:
+                return numbers ? infix(Type.BOOLEAN, left, "<", right)
+                               : new Code(Type.BOOLEAN, "less(" + operands + ")");
+            case LESS_EQUAL:
+                return numbers ? infix(Type.BOOLEAN, left, "<=", right)
+                               : new Code(Type.BOOLEAN, "lessEqual(" + operands + ")");
+            case MINUS:
+                return numbers ? infix(Type.NUMBER, left, "-", right)
+                               : new Code(Type.NUMBER, "subtract(" + operands + ")");
+            case PLUS:
+                return numbers ? infix(Type.NUMBER, left, "+", right)
+                               : new Code(Type.OBJECT, "add(" + operands + ")");
+            case SLASH:
+                return numbers ? infix(Type.NUMBER, left, "/", right)
+                               : new Code(Type.NUMBER, "divide(" + operands + ")");
+            case STAR:
+                return numbers ? infix(Type.NUMBER, left, "*", right)
+                               : new Code(Type.NUMBER, "multiply(" + operands + ")");
+            case BANG_EQUAL:
+                return new Code(Type.BOOLEAN,
+                        "!equal(" + box(left) + ", " + box(right) + ")");
+            case EQUAL_EQUAL:
+                return new Code(Type.BOOLEAN,
+                        "equal(" + box(left) + ", " + box(right) + ")");
+        }
+
+        // Unreachable.
+        throw new Unsupported();
+    }
+
+    /*
+     * A call whose callee turns out to be this same function skips the
+     * generic call path and the argument list and goes straight to run().
+     */
+    @Override
+    public Code visitCallExpr(Expr.Call expr) {
+        Code callee = compile(expr.callee);
+        List<Code> arguments = new ArrayList<>();
+        for (Expr argument : expr.arguments) {
+            arguments.add(compile(argument));
+        }
+
+        StringBuilder call = new StringBuilder();
+        StringBuilder run = new StringBuilder();
+        boolean direct = arguments.size() == function.params.size();
+        for (int i = 0; i < arguments.size(); i++) {
+            Code argument = arguments.get(i);
+            call.append(", ").append(box(argument));
+            if (!direct) continue;
+
+            Type param = scopes.get(0).get(i).type;
+            if (param == Type.NUMBER && argument.type != Type.NUMBER) direct = false;
+            run.append(i == 0 ? "" : ", ")
+                    .append(param == Type.NUMBER ? argument.text : box(argument));
+        }
+
+        String paren = token(expr.paren);
+        if (!direct) {
+            return new Code(Type.OBJECT,
+                    "call(" + box(callee) + ", " + paren + call + ")");
+        }
+
+        String temp = "t" + tempCount++;
+        return new Code(Type.OBJECT, "(isSelf(" + temp + " = " + box(callee) + ")" +
+                " ? run(" + run + ") : call(" + temp + ", " + paren + call + "))");
+    }
+
+    @Override
+    public Code visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public Code visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        if (value instanceof Double) {
+            return new Code(Type.NUMBER, JavaSourceCompiler.number((double)value));
+        }
+        if (value instanceof Boolean) {
+            return new Code(Type.OBJECT, (boolean)value ? "Boolean.TRUE" : "Boolean.FALSE");
+        }
+        if (value instanceof String) {
+            return new Code(Type.OBJECT, JavaSourceCompiler.quote((String)value));
+        }
+        return new Code(Type.OBJECT, "null");
+    }
+
+    /* Both operands are stored in a temporary so the chosen one is not evaluated twice. */
+    @Override
+    public Code visitLogicalExpr(Expr.Logical expr) {
+        Code left = compile(expr.left);
+        Code right = compile(expr.right);
+        boolean or = expr.operator.type == TokenType.OR;
+
+        if (left.type == Type.BOOLEAN && right.type == Type.BOOLEAN) {
+            return infix(Type.BOOLEAN, left, or ? "||" : "&&", right);
+        }
+
+        String temp = "t" + tempCount++;
+        String test = "truthy(" + temp + " = " + box(left) + ")";
+        return new Code(Type.OBJECT, "(" + (or ? "" : "!") + test +
+                " ? " + temp + " : " + box(right) + ")");
+    }
+
+    @Override
+    public Code visitUnaryExpr(Expr.Unary expr) {
+        Code right = compile(expr.right);
+        switch (expr.operator.type) {
+            case BANG:
+                // Mirrors the tree walker, which yields the operand's truthiness.
+                return new Code(Type.BOOLEAN, "truthy(" + right.text + ")");
+            case MINUS:
+                if (right.type == Type.NUMBER) {
+                    return new Code(Type.NUMBER, "(-" + right.text + ")");
+                }
+                return new Code(Type.NUMBER,
+                        "negate(" + box(right) + ", " + token(expr.operator) + ")");
+        }
+
+        // Unreachable.
+        throw new Unsupported();
+    }
+
+    @Override
+    public Code visitVariableExpr(Expr.Variable expr) {
+        if (expr.upvalue != -1) throw new Unsupported();
+        if (expr.depth == -1) {
+            return new Code(Type.OBJECT, "global(" + token(expr.name) + ")");
+        }
+
+        Local local = local(expr.depth, expr.slot);
+        return new Code(local.type, local.name);
+    }
+
+    private Code compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    /* Emits a branch or loop body inside braces, where a new Java block is always legal. */
+    private void branch(Stmt stmt) {
+        indent++;
+        stmt.accept(this);
+        indent--;
+    }
+
+    private Local declare(Type type, String initializer, Object declaration) {
+        Local local = new Local("v" + localCount++, type, declaration);
+        line((type == Type.NUMBER ? "double " : "Object ") +
+                local.name + " = " + initializer + ";");
+        return local;
+    }
+
+    private Local local(int depth, int slot) {
+        int index = scopes.size() - 1 - depth;
+        if (index < 0) throw new Unsupported();   // Captured from an enclosing function.
+        return scopes.get(index).get(slot);
+    }
+
+    private void demote(Object declaration) {
+        if (objects.add(declaration)) demoted = true;
+    }
+
+    private String token(Token token) {
+        tokens.add(token);
+        return Integer.toString(tokens.size() - 1);
+    }
+
+    private void line(String text) {
+        for (int i = 0; i < indent; i++) out.append("    ");
+        out.append(text).append('\n');
+    }
+
+    private static Code infix(Type type, Code left, String operator, Code right) {
+        return new Code(type, "(" + left.text + " " + operator + " " + right.text + ")");
+    }
+
+    private static String box(Code code) {
+        switch (code.type) {
+            case NUMBER: return "Double.valueOf(" + code.text + ")";
+            case BOOLEAN: return "Boolean.valueOf(" + code.text + ")";
+            default: return code.text;
+        }
+    }
+
+    private static String condition(Code code) {
+        return "truthy(" + code.text + ")";
+    }
+}
@@ -0,0 +1,55 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * The body of a top-level function whose parsing was put off under --lazy.
+ * The Parser only matches its braces, leaving a Stmt.Function with no
+ * body that carries this; the first call parses, resolves and optimizes
+ * the body, as the whole program was before it ran. A top-level function
+ * sees only globals and its own locals, so that resolves it just as it
+ * would have been.
+ *
+ * Errors in the body are reported like any syntax or resolution error,
+ * but only once the function is called, and then stop the program with a
+ * runtime error at that call.
+ */
+class LazyBody {
+    private final Tokens tokens;
+    private final int start;        // The token after the body's '{'.
+    /*
+     * Every name the body may assign, found without parsing it: each
+     * identifier followed by '='. The Optimizer and Purity rely on knowing
+     * which names are assigned anywhere in the program.
+     */
+    final Set<String> assigned;
+    private Stmt.Function parsed = null;
+
+    LazyBody(Tokens tokens, int start, Set<String> assigned) {
+        this.tokens = tokens;
+        this.start = start;
+        this.assigned = assigned;
+    }
+
+    /*
+     * Returns `stub` with its body, parsing that the first time. The syntax
+     * errors are reported at their own lines, then the call at `paren`
+     * fails with a runtime error.
+     */
+    Stmt.Function parse(Stmt.Function stub, Token paren) {
+        if (parsed != null) return parsed;
+
+        List<Stmt> body = new Parser(tokens).body(start);
+        Stmt.Function function = new Stmt.Function(stub.name, stub.params, body);
+        List<Stmt> statements = Collections.<Stmt>singletonList(function);
+        if (!Lox.hadError) new Resolver().resolve(statements);
+        if (Lox.hadError) {
+            throw new RuntimeError(paren, "Can't call a function whose body has errors.");
+        }
+
+        parsed = (Stmt.Function)new Optimizer(true).optimize(statements).get(0);
+        return parsed;
+    }
+}
@@ -3,67 +3,226 @@ package com.craftinginterpreters.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class Lox {
     private static final Interpreter interpreter = new Interpreter();
+    private static VM vm = null;    // Set when running on the bytecode VM instead.
+    private static NodeInterpreter nodes = null;    // Set when running the node tree instead.
+    private static ClosureCompiler closures = null; // Set when running compiled closures instead.
+    private static FlatInterpreter flat = null;     // Set when running the flattened tree instead.
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
+    private static boolean prompt = false;  // Whether lines are read one at a time.
+    private static boolean memoStats = false;   // Whether to report Memo's counters at exit.
+    private static boolean lazy = false;    // Whether to put off parsing function bodies (see LazyBody).
+    private static ScriptCache cache = null;    // Set when scripts' trees are kept on disk.
+
+    /*
+     * The stack each program runs on. The passes after parsing walk the tree
+     * recursively, so the default thread stack is too small for the deepest
+     * nesting the Parser accepts.
+     */
+    static final long STACK_SIZE = 64L << 20;
+
+    /* A main method, as run by onLargeStack(). */
+    interface Main {
+        void run(String[] args) throws IOException;
+    }
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
+        onLargeStack(Lox::start, args);
+    }
+
+    /* Runs main on a thread with a STACK_SIZE stack, rethrowing whatever it throws. */
+    static void onLargeStack(final Main main, final String[] args) throws IOException {
+        final Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                main.run(args);
+            } catch (Throwable error) {
+                failure[0] = error;
+            }
+        }, "main", STACK_SIZE);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure[0] instanceof IOException) throw (IOException)failure[0];
+        if (failure[0] instanceof RuntimeException) throw (RuntimeException)failure[0];
+        if (failure[0] instanceof Error) throw (Error)failure[0];
+    }
+
+    private static void start(String[] args) throws IOException {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        if (arguments.remove("--vm")) vm = new VM();
+        if (arguments.remove("--nodes")) nodes = new NodeInterpreter(interpreter);
+        if (arguments.remove("--closures")) closures = new ClosureCompiler(interpreter);
+        if (arguments.remove("--flat")) flat = new FlatInterpreter(interpreter);
+        if (arguments.remove("--jit") && !Jit.enable()) {
+            System.err.println("No Java compiler available; running without --jit.");
+        }
+        Jit.debug = arguments.remove("--jit-debug");
+        if (arguments.remove("--memo")) Memo.enable(Memo.DEFAULT_CAPACITY);
+        memoStats = arguments.remove("--memo-stats");
+        lazy = arguments.remove("--lazy");
+        if (arguments.remove("--cache")) {
+            cache = new ScriptCache(ScriptCache.defaultDirectory(), ScriptCache.DEFAULT_LIMIT);
+        }
+        for (String argument : new ArrayList<>(arguments)) {
+            if (argument.startsWith("--cache=")) {
+                arguments.remove(argument);
+                cache = new ScriptCache(Paths.get(argument.substring("--cache=".length())),
+                        ScriptCache.DEFAULT_LIMIT);
+                continue;
+            }
+            if (!argument.startsWith("--memo=")) continue;
+            arguments.remove(argument);
+            try {
+                Memo.enable(Integer.parseInt(argument.substring("--memo=".length())));
+            } catch (NumberFormatException error) {
+                arguments.add(argument);    // Reported as bad usage below.
+            }
+        }
+
+        if (arguments.size() > 1 || engines() > 1) {
+            System.out.println("Usage: jlox [--vm | --nodes | --closures | --flat | --jit]" +
+                    " [--jit-debug] [--memo[=size]] [--memo-stats] [--lazy] [--cache[=dir]] [script]");
             System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        }
+        if (Memo.enabled() && engines() > 0) {
+            System.err.println("--memo only applies to the tree walker; running without it.");
+            Memo.enable(0);
+        }
+        if (lazy && engines() > 0) {
+            System.err.println("--lazy only applies to the tree walker; parsing everything first.");
+            lazy = false;
+        }
+        if (lazy && cache != null) {
+            System.err.println("--cache can't keep unparsed bodies; running without it.");
+            cache = null;
+        }
+
+        if (arguments.size() == 1) {
+            runFile(arguments.get(0));
         } else {
             runPrompt();
         }
     }
 
+    /* Counts the alternative engines selected on the command line. */
+    private static int engines() {
+        int count = 0;
+        if (vm != null) count++;
+        if (nodes != null) count++;
+        if (closures != null) count++;
+        if (flat != null) count++;
+        return count;
+    }
+
     /* Allows the interpreter to read and execute a file. */
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        if (flat != null) {
+            // Flattened before running, so that none of the object tree stays reachable.
+            flat.interpret(FlatCompiler.compile(parseFile(path)));
+        } else {
+            run(parseFile(path));
+        }
+        if (memoStats) System.err.println(Memo.report());
 
         // Indicate an error in the exit code.
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
     }
 
+    private static List<Stmt> parseFile(String path) throws IOException {
+        return cache != null ? cache.parse(path) : parse(read(path));
+    }
+
     /* Allows the interpreter to run interactively. */
     private static void runPrompt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
+        prompt = true;
 
         for (;;) {
             System.out.print("> ");
             String line = reader.readLine();
             if (line == null) break;
-            run(line);
+            run(parse(line));
             hadError = false;
         }
     }
 
-    private static void run(String source) {
-        Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-        Parser parser = new Parser(tokens);
+    /*
+     * Maps a script into memory and decodes it in one pass, into the buffer
+     * the Scanner then works on, rather than copying it through a byte[]
+     * and a String.
+     */
+    static CharBuffer read(String path) throws IOException {
+        return Charset.defaultCharset().decode(map(path));
+    }
+
+    /* Maps a script into memory, undecoded. */
+    static ByteBuffer map(String path) throws IOException {
+        try (FileChannel file = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            return file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+        }
+    }
+
+    private static void run(List<Stmt> statements) {
+        if (statements == null) return;
+
+        if (vm != null) {
+            vm.interpret(statements);
+        } else if (nodes != null) {
+            nodes.interpret(statements);
+        } else if (closures != null) {
+            closures.interpret(statements);
+        } else if (flat != null) {
+            flat.interpret(FlatCompiler.compile(statements));
+        } else {
+            interpreter.interpret(statements);
+        }
+    }
+
+    static List<Stmt> parse(String source) {
+        return parse(new Scanner(source));
+    }
+
+    static List<Stmt> parse(CharBuffer source) {
+        return parse(new Scanner(source));
+    }
+
+    /* Scans, parses, resolves and optimizes source; returns null once errors have been reported. */
+    private static List<Stmt> parse(Scanner scanner) {
+        Tokens tokens = scanner.scanTokens();
+        Parser parser = new Parser(tokens, lazy && !prompt);
         List<Stmt> statements = parser.parse();
 
         // Stop if there was a syntax error.
-        if (hadError) return;
+        if (hadError) return null;
 
-        Resolver resolver = new Resolver(interpreter);
+        Resolver resolver = new Resolver();
         resolver.resolve(statements);
 
         // Stop if there was a resolution error.
-        if (hadError) return;
+        if (hadError) return null;
 
-        interpreter.interpret(statements);
+        statements = new Optimizer(!prompt).optimize(statements);
+        if (Memo.enabled() && !prompt) new Purity().analyze(statements);
+        return statements;
     }
 
     static void error(int line, String message) {
@@ -86,8 +245,12 @@ public class Lox {
     }
 
     static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() +
-            "\n[line " + error.token.line + "]");
+        runtimeError(error.token.line, error.getMessage());
+    }
+
+    static void runtimeError(int line, String message) {
+        System.err.println(message +
+            "\n[line " + line + "]");
         hadRuntimeError = true;
     }
 }
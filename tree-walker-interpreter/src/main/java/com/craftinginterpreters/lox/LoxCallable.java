@@ -1,8 +1,35 @@
 package com.craftinginterpreters.lox;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public interface LoxCallable {
     Object call(Interpreter interpreter, List<Object> arguments);
     int arity();
+
+    /*
+     * Entry points for calls whose argument count is known where they are
+     * made. Callables that can bind arguments without a list override them;
+     * each has already had its arity checked by the caller.
+     */
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, Collections.emptyList());
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+        return call(interpreter, Collections.singletonList(a));
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, Arrays.asList(a, b));
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return call(interpreter, Arrays.asList(a, b, c));
+    }
+
+    default Object callN(Interpreter interpreter, Object... arguments) {
+        return call(interpreter, Arrays.asList(arguments));
+    }
 }
@@ -3,28 +3,52 @@ package com.craftinginterpreters.lox;
 import java.util.List;
 
 public class LoxFunction implements LoxCallable {
-    private final Stmt.Function declaration;
-    private final Environment closure;
+    Stmt.Function declaration;         // Has no body until parse() if parsing it was put off.
+    final Cell[] upvalues;             // The variables of enclosing scopes it captures.
+    final Memo memo;                   // Its results so far, if it is pure and --memo is on.
 
-    LoxFunction(Stmt.Function declaration, Environment closure) {
-        this.closure = closure;
+    LoxFunction(Stmt.Function declaration, Cell[] upvalues) {
+        this.upvalues = upvalues;
         this.declaration = declaration;
+        this.memo = Memo.of(declaration);
     }
 
     @Override
     public Object call(Interpreter interpreter,
                        List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
-        }
+        Object result = runCompiled(interpreter, arguments);
+        if (result != JitCode.DEOPT) return result;
+
+        return interpreter.invoke(this, interpreter.push(arguments));
+    }
 
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            return returnValue.value;
+    /*
+     * Runs the JIT's code for this function if it accepts the arguments.
+     * Otherwise profiles the call and returns DEOPT, to be interpreted.
+     * A memoized function is always interpreted, so every call of it,
+     * recursive ones included, goes through its cache.
+     */
+    Object runCompiled(Interpreter interpreter, List<Object> arguments) {
+        if (memo != null) return JitCode.DEOPT;
+
+        JitCode code = declaration.profile.code;
+        if (code != null) {
+            Object result = code.invoke(arguments);
+            if (result != JitCode.DEOPT) return result;
+            Jit.deoptimize(declaration);
+        } else {
+            Jit.record(declaration, arguments, interpreter);
         }
-        return null;
+        return JitCode.DEOPT;
+    }
+
+    /*
+     * Gives the declaration its body before the first run, if its parsing
+     * was put off. Every call is checked first, which does this with the
+     * call's paren so an error in the body stops the program at that call.
+     */
+    void parse(Token paren) {
+        if (declaration.lazy != null) declaration = declaration.lazy.parse(declaration, paren);
     }
 
     @Override
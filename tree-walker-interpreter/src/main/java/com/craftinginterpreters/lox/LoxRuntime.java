@@ -0,0 +1,169 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * Lox operations for code compiled to Java: the JIT's JitCode subclasses
+ * and the scripts loxc produces. Each behaves exactly like the matching
+ * part of Interpreter, including its RuntimeErrors.
+ */
+final class LoxRuntime {
+    /* What a helper method of a compiled script returns when it runs no `return`. */
+    static final Object NO_RETURN = new Object();
+
+    private LoxRuntime() {}
+
+    /* Calls with up to three arguments pick an overload that builds no array. */
+    static Object call(Interpreter interpreter, Object callee, Token paren) {
+        return callable(callee, paren, 0).call0(interpreter);
+    }
+
+    static Object call(Interpreter interpreter, Object callee, Token paren, Object a) {
+        return callable(callee, paren, 1).call1(interpreter, a);
+    }
+
+    static Object call(Interpreter interpreter, Object callee, Token paren,
+                       Object a, Object b) {
+        return callable(callee, paren, 2).call2(interpreter, a, b);
+    }
+
+    static Object call(Interpreter interpreter, Object callee, Token paren,
+                       Object a, Object b, Object c) {
+        return callable(callee, paren, 3).call3(interpreter, a, b, c);
+    }
+
+    static Object call(Interpreter interpreter, Object callee, Token paren,
+                       Object... arguments) {
+        return callable(callee, paren, arguments.length).callN(interpreter, arguments);
+    }
+
+    /* Checks that a callee can be called with the given number of arguments. */
+    static LoxCallable callable(Object callee, Token paren, int arguments) {
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(paren,
+                    "Can only call functions and classes.");
+        }
+
+        LoxCallable function = (LoxCallable)callee;
+        if (arguments != function.arity()) {
+            throw new RuntimeError(paren, "Expected " +
+                    function.arity() + " arguments but got " +
+                    arguments + ".");
+        }
+        if (function instanceof LoxFunction) ((LoxFunction)function).parse(paren);
+        return function;
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double)left + (double)right;
+        }
+        if (left instanceof String && right instanceof String) {
+            return (String)left + (String)right;
+        }
+        throw new RuntimeError(operator,
+                "Operands must be two numbers or two strings.");
+    }
+
+    static double subtract(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left - (double)right;
+    }
+
+    static double multiply(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left * (double)right;
+    }
+
+    static double divide(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left / (double)right;
+    }
+
+    static boolean greater(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left > (double)right;
+    }
+
+    static boolean greaterEqual(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left >= (double)right;
+    }
+
+    static boolean less(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left < (double)right;
+    }
+
+    static boolean lessEqual(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left <= (double)right;
+    }
+
+    static double negate(Object operand, Token operator) {
+        if (operand instanceof Double) return -(double)operand;
+        throw new RuntimeError(operator, "Operand must be a number.");
+    }
+
+    private static void checkNumberOperands(Token operator,
+                                            Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    /*
+     * Generated conditions always go through truthy(), even when they are
+     * already booleans, so javac never sees a constant condition and rejects
+     * the code after it as unreachable.
+     */
+    static boolean truthy(Object value) {
+        return Interpreter.isTruthy(value);
+    }
+
+    static boolean truthy(boolean value) {
+        return value;
+    }
+
+    static boolean truthy(double value) {
+        return true;
+    }
+
+    static boolean equal(Object left, Object right) {
+        return Interpreter.isEqual(left, right);
+    }
+
+    static void print(Object value) {
+        System.out.println(Interpreter.stringify(value));
+    }
+
+    static Object assign(Environment globals, Token name, Object value) {
+        globals.assign(name, value);
+        return value;
+    }
+
+    static Object assignAt(Environment environment, int distance, int slot,
+                           Object value) {
+        environment.assignAt(distance, slot, value);
+        return value;
+    }
+
+    static Object assignCell(Environment environment, int distance, int slot,
+                             Object value) {
+        environment.assignCell(distance, slot, value);
+        return value;
+    }
+
+    static Object assignUpvalue(Environment environment, int index, Object value) {
+        environment.assignUpvalue(index, value);
+        return value;
+    }
+
+    /* Evaluates an expression statement, whose value is unused. */
+    static void discard(Object value) {
+    }
+
+    static void discard(boolean value) {
+    }
+
+    static void discard(double value) {
+    }
+}
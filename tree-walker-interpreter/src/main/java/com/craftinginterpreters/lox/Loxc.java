@@ -0,0 +1,128 @@
+package com.craftinginterpreters.lox;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/*
+ * Ahead-of-time compiler: turns a script into a standalone JAR whose main
+ * class runs it with no scanning, parsing or resolving. The JAR holds the
+ * compiled script plus the interpreter's classes as its runtime, and is run
+ * with `java -jar`. Errors are reported like Lox.runFile(): 65 for a script
+ * with syntax errors here, and 70 when the JAR hits a runtime error. loxc
+ * also exits with 70 if javac rejects the generated code.
+ */
+public class Loxc {
+    private static final String PACKAGE = "com/craftinginterpreters/lox/";
+    private static final String SCRIPT = PACKAGE + AotCompiler.CLASS_NAME;  // Never copied.
+
+    public static void main(String[] args) throws IOException {
+        Lox.onLargeStack(Loxc::compile, args);
+    }
+
+    private static void compile(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: loxc script [output.jar]");
+            System.exit(64);
+        }
+        if (!JavaSourceCompiler.available()) {
+            System.err.println("loxc needs a JDK: no Java compiler is available.");
+            System.exit(69);
+        }
+
+        String script = args[0];
+        String jar = args.length == 2 ? args[1]
+                : script.replaceFirst("(\\.lox)?$", ".jar");
+
+        List<Stmt> statements = Lox.parse(Lox.read(script));
+
+        // Indicate an error in the exit code.
+        if (statements == null) System.exit(65);
+
+        String className = "com.craftinginterpreters.lox." + AotCompiler.CLASS_NAME;
+        AotCompiler compiler = new AotCompiler();
+        String source = compiler.compile(statements);
+        Map<String, byte[]> classes;
+        try {
+            classes = JavaSourceCompiler.compile(className, source);
+        } catch (IllegalStateException error) {
+            // Beyond what the JVM allows, such as one expression too large for a method.
+            System.err.println("Could not compile " + script + ". " + error.getMessage());
+            System.exit(70);
+            return;
+        }
+        writeJar(jar, className, classes, compiler.constants().toBytes());
+    }
+
+    /* Writes the compiled script, its constants and the runtime it needs into an executable JAR. */
+    private static void writeJar(String path, String mainClass, Map<String, byte[]> classes,
+                                 byte[] constants) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClass);
+
+        try (JarOutputStream jar = new JarOutputStream(
+                new FileOutputStream(path), manifest)) {
+            for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                jar.putNextEntry(new JarEntry(entry.getKey().replace('.', '/') + ".class"));
+                jar.write(entry.getValue());
+                jar.closeEntry();
+            }
+            jar.putNextEntry(new JarEntry(SCRIPT + ".constants"));
+            jar.write(constants);
+            jar.closeEntry();
+            copyRuntime(jar);
+        }
+    }
+
+    /*
+     * Copies the interpreter's own classes, from its class directory or JAR.
+     * A script class already there (when loxc runs from a loxc-built JAR) is
+     * skipped, so it cannot clash with the one just compiled.
+     */
+    private static void copyRuntime(JarOutputStream jar) throws IOException {
+        File location = JavaSourceCompiler.runtimeLocation();
+        if (location.isDirectory()) {
+            Path root = location.toPath();
+            File[] files = root.resolve(PACKAGE).toFile().listFiles();
+            if (files == null) return;
+            for (File file : files) {
+                String name = PACKAGE + file.getName();
+                if (!name.endsWith(".class") || name.startsWith(SCRIPT)) continue;
+                jar.putNextEntry(new JarEntry(name));
+                jar.write(Files.readAllBytes(file.toPath()));
+                jar.closeEntry();
+            }
+            return;
+        }
+
+        try (JarFile runtime = new JarFile(location)) {
+            Enumeration<JarEntry> entries = runtime.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (!name.startsWith(PACKAGE) || !name.endsWith(".class")) continue;
+                if (name.startsWith(SCRIPT)) continue;
+
+                jar.putNextEntry(new JarEntry(name));
+                try (InputStream in = runtime.getInputStream(entry)) {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) != -1) jar.write(buffer, 0, read);
+                }
+                jar.closeEntry();
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Optional cache of the results of pure functions, for the tree walker.
+ * Purity marks the declarations whose calls always give the same result
+ * for the same arguments, and each LoxFunction made from one gets a Memo
+ * of its own, so closures capturing different variables never share
+ * results. Lox values are immutable and compare by value (or identity, for
+ * functions), so the arguments themselves are the key. Each cache holds at
+ * most `capacity` results and drops the least recently used one first.
+ */
+final class Memo {
+    static final int DEFAULT_CAPACITY = 1024;
+
+    /* Returned by get() for arguments with no cached result; nil is a result. */
+    static final Object MISSING = new Object();
+
+    private static int capacity = 0;    // 0 while memoization is off.
+
+    // Totals over every cache, for --memo-stats.
+    static long hits = 0;
+    static long misses = 0;
+    static long evictions = 0;
+
+    private final Map<List<Object>, Object> results =
+            new LinkedHashMap<List<Object>, Object>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest) {
+            if (size() <= capacity) return false;
+            evictions++;
+            return true;
+        }
+    };
+
+    /* Turns memoization on, keeping up to `capacity` results per function. */
+    static void enable(int capacity) {
+        Memo.capacity = capacity;
+    }
+
+    static boolean enabled() {
+        return capacity > 0;
+    }
+
+    /* Returns a cache for a new function, or null if its results must not be cached. */
+    static Memo of(Stmt.Function declaration) {
+        return declaration.pure && enabled() ? new Memo() : null;
+    }
+
+    /* Returns the cached result for the arguments `key`, or MISSING. */
+    Object get(Object[] key) {
+        Object result = results.get(Arrays.asList(key));
+        if (result == null && !results.containsKey(Arrays.asList(key))) {
+            misses++;
+            return MISSING;
+        }
+        hits++;
+        return result;
+    }
+
+    void put(Object[] key, Object result) {
+        results.put(Arrays.asList(key), result);
+    }
+
+    static String report() {
+        return "Memo: " + hits + " hits, " + misses + " misses, " +
+                evictions + " evictions.";
+    }
+}
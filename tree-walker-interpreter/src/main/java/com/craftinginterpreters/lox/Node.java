@@ -0,0 +1,21 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * Base class of the executable node tree built by NodeInterpreter.
+ * Nodes know their parent so that an expression node can replace itself with
+ * a version specialized for the values it has seen.
+ */
+abstract class Node {
+    Node parent = null;
+
+    /* Swaps a direct child expression for its replacement. */
+    void replaceChild(ExprNode child, ExprNode replacement) {
+        throw new IllegalStateException("Node has no replaceable children.");
+    }
+
+    /* Makes this node the parent of `child` and returns the child. */
+    <T extends Node> T adopt(T child) {
+        if (child != null) child.parent = this;
+        return child;
+    }
+}
@@ -0,0 +1,59 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/* A Lox function whose body is an executable node tree. */
+class NodeFunction implements LoxCallable {
+    private final Token name;
+    private final int arity;
+    private final int[] cellParams; // Parameters that closures capture.
+    private final StmtNode[] body;  // Shared by every closure of the same declaration.
+    private final Cell[] upvalues;
+
+    NodeFunction(Token name, int arity, int[] cellParams, StmtNode[] body, Cell[] upvalues) {
+        this.name = name;
+        this.arity = arity;
+        this.cellParams = cellParams;
+        this.body = body;
+        this.upvalues = upvalues;
+    }
+
+    @Override
+    public Object call(Interpreter interpreter,
+                       List<Object> arguments) {
+        Environment environment = frame();
+        for (int i = 0; i < arity; i++) {
+            environment.define(arguments.get(i));
+        }
+        return invoke(environment);
+    }
+
+    /* Creates the environment for a call; the caller binds the arguments into it. */
+    Environment frame() {
+        return new Environment(upvalues);
+    }
+
+    /* Runs the body in a frame whose arguments are bound. */
+    Object invoke(Environment frame) {
+        for (int slot : cellParams) {
+            frame.moveToCell(slot);
+        }
+
+        try {
+            StmtNode.executeAll(body, frame);
+        } catch (Return returnValue) {
+            return returnValue.value;
+        }
+        return null;
+    }
+
+    @Override
+    public int arity() {
+        return arity;
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + name.lexeme + ">";
+    }
+}
@@ -0,0 +1,192 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+/*
+ * Builds an executable node tree from resolved statements and runs it.
+ * Globals and natives are shared with the tree-walking Interpreter.
+ */
+class NodeInterpreter implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+    private final Interpreter interpreter;
+    private int scopeDepth = 0;     // Zero while building top-level code.
+
+    NodeInterpreter(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    void interpret(List<Stmt> statements) {
+        StmtNode[] program = build(statements);
+        try {
+            StmtNode.executeAll(program, interpreter.globals);
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        }
+    }
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.scoped) return new StmtNode.Sequence(build(stmt.statements));
+
+        scopeDepth++;
+        StmtNode[] statements = build(stmt.statements);
+        scopeDepth--;
+        return new StmtNode.Block(statements);
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+        return new StmtNode.Expression(build(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitFunctionStmt(Stmt.Function stmt) {
+        Environment globals = scopeDepth == 0 ? interpreter.globals : null;
+
+        scopeDepth++;
+        StmtNode[] body = build(stmt.body);
+        scopeDepth--;
+        return new StmtNode.Function(globals, stmt, body);
+    }
+
+    @Override
+    public StmtNode visitIfStmt(Stmt.If stmt) {
+        return new StmtNode.If(build(stmt.condition), build(stmt.thenBranch),
+                stmt.elseBranch == null ? null : build(stmt.elseBranch));
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(Stmt.Print stmt) {
+        return new StmtNode.Print(build(stmt.expression));
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(Stmt.Return stmt) {
+        return new StmtNode.Return(stmt.value == null ? null : build(stmt.value));
+    }
+
+    @Override
+    public StmtNode visitVarStmt(Stmt.Var stmt) {
+        Environment globals = scopeDepth == 0 ? interpreter.globals : null;
+        return new StmtNode.Var(globals, stmt.name, stmt.slot, stmt.captured,
+                stmt.initializer == null ? null : build(stmt.initializer));
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(Stmt.While stmt) {
+        return new StmtNode.While(build(stmt.condition), build(stmt.body));
+    }
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.Assign expr) {
+        ExprNode value = build(expr.value);
+        if (expr.upvalue != -1) {
+            return new ExprNode.UpvalueSet(expr.upvalue, value);
+        }
+        if (expr.captured) {
+            return new ExprNode.CellSet(expr.depth, expr.slot, value);
+        }
+        if (expr.depth != -1) {
+            return new ExprNode.LocalSet(expr.depth, expr.slot, value);
+        }
+        return new ExprNode.GlobalSet(interpreter.globals, expr.name, value);
+    }
+
+    /* Picks the node for the operator; `+` starts uninitialized and specializes itself. */
+    @Override
+    public ExprNode visitBinaryExpr(Expr.Binary expr) {
+        ExprNode left = build(expr.left);
+        ExprNode right = build(expr.right);
+        Token operator = expr.operator;
+
+        switch (operator.type) {
+            case GREATER:       return new ExprNode.Greater(left, operator, right);
+            case GREATER_EQUAL: return new ExprNode.GreaterEqual(left, operator, right);
+            case LESS:          return new ExprNode.Less(left, operator, right);
+            case LESS_EQUAL:    return new ExprNode.LessEqual(left, operator, right);
+            case MINUS:         return new ExprNode.Subtract(left, operator, right);
+            case PLUS:          return new ExprNode.UninitializedAdd(left, operator, right);
+            case SLASH:         return new ExprNode.Divide(left, operator, right);
+            case STAR:          return new ExprNode.Multiply(left, operator, right);
+            case BANG_EQUAL:    return new ExprNode.NotEqual(left, operator, right);
+            case EQUAL_EQUAL:   return new ExprNode.Equal(left, operator, right);
+        }
+
+        // Unreachable.
+        return null;
+    }
+
+    @Override
+    public ExprNode visitCallExpr(Expr.Call expr) {
+        ExprNode callee = build(expr.callee);
+        ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = build(expr.arguments.get(i));
+        }
+        return new ExprNode.Call(interpreter, callee, arguments, expr.paren);
+    }
+
+    /* Parentheses only affect parsing, so they produce no node of their own. */
+    @Override
+    public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+        return build(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.Literal expr) {
+        return new ExprNode.Literal(expr.value);
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Expr.Logical expr) {
+        ExprNode left = build(expr.left);
+        ExprNode right = build(expr.right);
+        if (expr.operator.type == TokenType.OR) {
+            return new ExprNode.Or(left, right);
+        }
+        return new ExprNode.And(left, right);
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.Unary expr) {
+        ExprNode right = build(expr.right);
+        switch (expr.operator.type) {
+            case BANG:
+                return new ExprNode.Not(right);
+            case MINUS:
+                return new ExprNode.Negate(right, expr.operator);
+        }
+
+        // Unreachable.
+        return null;
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(Expr.Variable expr) {
+        if (expr.upvalue != -1) {
+            return new ExprNode.UpvalueGet(expr.upvalue);
+        }
+        if (expr.captured) {
+            return new ExprNode.CellGet(expr.depth, expr.slot);
+        }
+        if (expr.depth != -1) {
+            return new ExprNode.LocalGet(expr.depth, expr.slot);
+        }
+        return new ExprNode.GlobalGet(interpreter.globals, expr.name);
+    }
+
+    private StmtNode build(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private ExprNode build(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private StmtNode[] build(List<Stmt> statements) {
+        StmtNode[] nodes = new StmtNode[statements.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = build(statements.get(i));
+        }
+        return nodes;
+    }
+}
@@ -0,0 +1,72 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * Instruction set of the bytecode VM.
+ * Each instruction is one int: the opcode in the low byte and its operand, if
+ * any, in the upper 24 bits.
+ */
+final class OpCode {
+    static final byte CONSTANT      = 0;    // Constant index.
+    static final byte NIL           = 1;
+    static final byte TRUE          = 2;
+    static final byte FALSE         = 3;
+    static final byte POP           = 4;
+    static final byte GET_LOCAL     = 5;    // Frame slot.
+    static final byte SET_LOCAL     = 6;    // Frame slot.
+    static final byte GET_GLOBAL    = 7;    // Global slot.
+    static final byte DEFINE_GLOBAL = 8;    // Global slot.
+    static final byte SET_GLOBAL    = 9;    // Global slot.
+    static final byte GET_UPVALUE   = 10;   // Upvalue index.
+    static final byte SET_UPVALUE   = 11;   // Upvalue index.
+    static final byte EQUAL         = 12;
+    static final byte NOT_EQUAL     = 13;
+    static final byte GREATER       = 14;
+    static final byte GREATER_EQUAL = 15;
+    static final byte LESS          = 16;
+    static final byte LESS_EQUAL    = 17;
+    static final byte ADD           = 18;
+    static final byte SUBTRACT      = 19;
+    static final byte MULTIPLY      = 20;
+    static final byte DIVIDE        = 21;
+    static final byte NOT           = 22;
+    static final byte NEGATE        = 23;
+    static final byte PRINT         = 24;
+    static final byte JUMP          = 25;   // Forward offset.
+    static final byte JUMP_IF_FALSE = 26;   // Forward offset; leaves the condition on the stack.
+    static final byte LOOP          = 27;   // Backward offset.
+    static final byte CALL          = 28;   // Argument count.
+    static final byte CLOSURE       = 29;   // Function constant, then one (index << 1 | isLocal) word per upvalue.
+    static final byte CLOSE_UPVALUE = 30;
+    static final byte RETURN        = 31;
+
+    // Fused forms of common instruction sequences.
+    static final byte POP_JUMP_IF_FALSE      = 32;  // JUMP_IF_FALSE that also pops the condition.
+    static final byte STORE_LOCAL            = 33;  // SET_LOCAL followed by POP.
+    static final byte STORE_GLOBAL           = 34;  // SET_GLOBAL followed by POP.
+    static final byte STORE_UPVALUE          = 35;  // SET_UPVALUE followed by POP.
+    static final byte ADD_CONSTANT           = 36;  // CONSTANT (a number) followed by ADD.
+    static final byte SUBTRACT_CONSTANT      = 37;
+    static final byte MULTIPLY_CONSTANT      = 38;
+    static final byte DIVIDE_CONSTANT        = 39;
+    static final byte GREATER_CONSTANT       = 40;
+    static final byte GREATER_EQUAL_CONSTANT = 41;
+    static final byte LESS_CONSTANT          = 42;
+    static final byte LESS_EQUAL_CONSTANT    = 43;
+
+    /* Net change in stack height caused by each fixed-effect instruction. */
+    static final int[] STACK_EFFECT = {
+        1, 1, 1, 1, -1,     // CONSTANT .. POP
+        1, 0, 1, -1, 0,     // GET_LOCAL .. SET_GLOBAL
+        1, 0,               // GET_UPVALUE, SET_UPVALUE
+        -1, -1, -1, -1, -1, -1,
+        -1, -1, -1, -1,     // ADD .. DIVIDE
+        0, 0, -1,           // NOT, NEGATE, PRINT
+        0, 0, 0,            // JUMP, JUMP_IF_FALSE, LOOP
+        0, 1, -1, -1,       // CALL (adjusted per call site), CLOSURE, CLOSE_UPVALUE, RETURN
+        -1, -1, -1, -1,     // POP_JUMP_IF_FALSE .. STORE_UPVALUE
+        0, 0, 0, 0,         // ADD_CONSTANT .. DIVIDE_CONSTANT
+        0, 0, 0, 0          // GREATER_CONSTANT .. LESS_EQUAL_CONSTANT
+    };
+
+    private OpCode() {}
+}
@@ -0,0 +1,450 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Optimization pass run between the Resolver and the engines.
+ * Folds operators whose operands are literals into a single literal, drops
+ * `if` branches and `while` loops whose conditions are constant, removes
+ * expression statements that are just a literal, and inlines calls of
+ * small functions (see Inliner).
+ *
+ * An operation that would fail at run time (such as `1 + "a"`) is left
+ * alone, so its RuntimeError is still raised at the same point. Variable
+ * declarations are never removed from a scope that survives. Blocks,
+ * functions and declarations keep what the Resolver recorded on them.
+ */
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    /*
+     * A function is only inlined where the call must reach that declaration:
+     * nothing assigns its name, and a global one is declared once, above the
+     * call. In the REPL a later line may declare a global again, so only a
+     * whole program's global functions are inlined.
+     */
+    private final boolean wholeProgram;
+    private final Set<String> assigned = new HashSet<>();
+    private final Map<String, Integer> declarations = new HashMap<>();     // Top-level names.
+    private final Map<String, Inliner> globalFunctions = new HashMap<>();
+    private final List<Map<Integer, Inliner>> frames = new ArrayList<>();  // Local functions by slot.
+    private final List<Set<String>> scopes = new ArrayList<>();   // Local names, as the VM scopes them.
+    private final Set<Inliner> inlining = new HashSet<>();
+    private Inliner.Temporaries temporaries = null;   // Of the function being optimized.
+
+    Optimizer(boolean wholeProgram) {
+        this.wholeProgram = wholeProgram;
+    }
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Var) declared(((Stmt.Var)statement).name);
+            if (statement instanceof Stmt.Function) declared(((Stmt.Function)statement).name);
+        }
+        new Survey().scan(statements);
+        return optimizeAll(statements);
+    }
+
+    private void declared(Token name) {
+        Integer count = declarations.get(name.lexeme);
+        declarations.put(name.lexeme, count == null ? 1 : count + 1);
+    }
+
+    private List<Stmt> optimizeAll(List<Stmt> statements) {
+        List<Stmt> optimized = new ArrayList<>();
+        for (Stmt statement : statements) {
+            Stmt result = statement.accept(this);
+            if (result != null) optimized.add(result);
+        }
+        return optimized;
+    }
+
+    /* Optimizes a statement that must stay a statement, such as a loop body. */
+    private Stmt optimize(Stmt stmt) {
+        Stmt result = stmt.accept(this);
+        if (result != null) return result;
+
+        Stmt.Block empty = new Stmt.Block(new ArrayList<Stmt>());
+        empty.scoped = false;
+        return empty;
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        scopes.add(new HashSet<String>());
+        if (stmt.scoped) frames.add(new HashMap<Integer, Inliner>());
+        Stmt.Block block = new Stmt.Block(optimizeAll(stmt.statements));
+        block.scoped = stmt.scoped;
+        if (stmt.scoped) frames.remove(frames.size() - 1);
+        scopes.remove(scopes.size() - 1);
+        return block;
+    }
+
+    /* A literal on its own has no effect, so the statement goes. */
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression instanceof Expr.Literal) return null;
+        return new Stmt.Expression(expression);
+    }
+
+    /*
+     * Once past its declaration, a function's calls may be inlined. Locals
+     * that inlining adds to the body are declared at its top.
+     */
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        boolean global = scopes.isEmpty();
+        if (!global) scopes.get(scopes.size() - 1).add(stmt.name.lexeme);
+
+        Set<String> params = new HashSet<>();
+        for (Token param : stmt.params) {
+            params.add(param.lexeme);
+        }
+        scopes.add(params);
+        frames.add(new HashMap<Integer, Inliner>());
+        Inliner.Temporaries enclosing = temporaries;
+        temporaries = new Inliner.Temporaries(stmt.frameSize);
+
+        List<Stmt> body = optimizeAll(stmt.body);
+        body.addAll(0, temporaries.declarations);
+        Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, body);
+        function.frameSize = temporaries.frameSize();
+
+        temporaries = enclosing;
+        frames.remove(frames.size() - 1);
+        scopes.remove(scopes.size() - 1);
+
+        function.slot = stmt.slot;
+        function.captured = stmt.captured;
+        function.cellParams = stmt.cellParams;
+        function.captures = stmt.captures;
+        function.lazy = stmt.lazy;
+
+        Inliner inliner = assigned.contains(stmt.name.lexeme) ? null : Inliner.of(function);
+        if (inliner != null && global) {
+            if (wholeProgram && declarations.get(stmt.name.lexeme) == 1) {
+                globalFunctions.put(stmt.name.lexeme, inliner);
+            }
+        } else if (inliner != null && !stmt.captured) {
+            frames.get(frames.size() - 1).put(stmt.slot, inliner);
+        }
+        return function;
+    }
+
+    /*
+     * A constant condition leaves just the branch it selects. The branches
+     * are statements, not declarations, so dropping one never removes a
+     * variable from the enclosing scope.
+     */
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal) {
+            if (Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+                return optimize(stmt.thenBranch);
+            }
+            return stmt.elseBranch == null ? null : stmt.elseBranch.accept(this);
+        }
+
+        return new Stmt.If(condition, optimize(stmt.thenBranch),
+                stmt.elseBranch == null ? null : optimize(stmt.elseBranch));
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        return new Stmt.Print(optimize(stmt.expression));
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        Stmt.Return result = new Stmt.Return(stmt.keyword,
+                stmt.value == null ? null : optimize(stmt.value));
+        result.tailCall = stmt.tailCall && result.value instanceof Expr.Call;
+        return result;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (!scopes.isEmpty()) scopes.get(scopes.size() - 1).add(stmt.name.lexeme);
+        Stmt.Var var = new Stmt.Var(stmt.name,
+                stmt.initializer == null ? null : optimize(stmt.initializer));
+        var.slot = stmt.slot;
+        var.captured = stmt.captured;
+        return var;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (condition instanceof Expr.Literal &&
+                !Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+            return null;
+        }
+        return new Stmt.While(condition, optimize(stmt.body));
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr.Assign assign = new Expr.Assign(expr.name, optimize(expr.value));
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        assign.upvalue = expr.upvalue;
+        assign.captured = expr.captured;
+        return assign;
+    }
+
+    /* Folds when both operands are literals and the operation cannot fail. */
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Object a = ((Expr.Literal)left).value;
+            Object b = ((Expr.Literal)right).value;
+
+            switch (expr.operator.type) {
+                case BANG_EQUAL: return new Expr.Literal(!Interpreter.isEqual(a, b));
+                case EQUAL_EQUAL: return new Expr.Literal(Interpreter.isEqual(a, b));
+                case PLUS:
+                    if (a instanceof String && b instanceof String) {
+                        return new Expr.Literal((String)a + (String)b);
+                    }
+                    break;
+            }
+
+            if (a instanceof Double && b instanceof Double) {
+                double x = (double)a;
+                double y = (double)b;
+                switch (expr.operator.type) {
+                    case GREATER:       return new Expr.Literal(x > y);
+                    case GREATER_EQUAL: return new Expr.Literal(x >= y);
+                    case LESS:          return new Expr.Literal(x < y);
+                    case LESS_EQUAL:    return new Expr.Literal(x <= y);
+                    case MINUS:         return new Expr.Literal(x - y);
+                    case PLUS:          return new Expr.Literal(x + y);
+                    case SLASH:         return new Expr.Literal(x / y);
+                    case STAR:          return new Expr.Literal(x * y);
+                }
+            }
+        }
+
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        List<Expr> arguments = new ArrayList<>();
+        for (Expr argument : expr.arguments) {
+            arguments.add(optimize(argument));
+        }
+        Expr callee = optimize(expr.callee);
+        Expr inlined = inline(callee, arguments);
+        if (inlined != null) return inlined;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    /*
+     * Returns the optimized body of the function being called, or null if
+     * the call stays. A function is not inlined into its own expansion.
+     */
+    private Expr inline(Expr callee, List<Expr> arguments) {
+        if (!(callee instanceof Expr.Variable)) return null;
+        Expr.Variable variable = (Expr.Variable)callee;
+        if (variable.upvalue != -1 || variable.captured) return null;
+
+        Inliner inliner = null;
+        if (variable.depth == -1) {
+            inliner = globalFunctions.get(variable.name.lexeme);
+        } else if (variable.depth == 0 && !frames.isEmpty()) {
+            inliner = frames.get(frames.size() - 1).get(variable.slot);
+        }
+        if (inliner == null || inlining.contains(inliner)) return null;
+
+        // The VM looks names up by scope, so a local here must not hide a global of the body.
+        for (String name : inliner.globals()) {
+            for (Set<String> scope : scopes) {
+                if (scope.contains(name)) return null;
+            }
+        }
+
+        Expr body = inliner.inline(arguments, temporaries);
+        if (body == null) return null;
+
+        inlining.add(inliner);
+        Expr result = optimize(body);
+        inlining.remove(inliner);
+        return result;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = optimize(expr.expression);
+        if (expression instanceof Expr.Literal) return expression;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    /* A constant left operand decides whether the right one is needed. */
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        if (left instanceof Expr.Literal) {
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal)left).value);
+            if (expr.operator.type == TokenType.OR) return truthy ? left : right;
+            return truthy ? right : left;
+        }
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+        if (right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)right).value;
+            switch (expr.operator.type) {
+                case BANG:
+                    // Mirrors Interpreter.visitUnaryExpr, which yields the operand's truthiness.
+                    return new Expr.Literal(Interpreter.isTruthy(value));
+                case MINUS:
+                    if (value instanceof Double) return new Expr.Literal(-(double)value);
+                    break;
+            }
+        }
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    /* Collects every name assigned anywhere in the program. */
+    private class Survey implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        void scan(List<Stmt> statements) {
+            for (Stmt statement : statements) {
+                statement.accept(this);
+            }
+        }
+
+        private void scan(Expr expr) {
+            if (expr != null) expr.accept(this);
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            scan(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            scan(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            if (stmt.lazy != null) assigned.addAll(stmt.lazy.assigned);
+            scan(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            scan(stmt.condition);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            scan(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            scan(stmt.value);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            scan(stmt.initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            scan(stmt.condition);
+            stmt.body.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            assigned.add(expr.name.lexeme);
+            scan(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            scan(expr.left);
+            scan(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            scan(expr.callee);
+            for (Expr argument : expr.arguments) {
+                scan(argument);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            scan(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            scan(expr.left);
+            scan(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            scan(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            return null;
+        }
+    }
+}
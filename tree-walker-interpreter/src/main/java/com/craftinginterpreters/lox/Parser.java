@@ -2,18 +2,67 @@ package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
 public class Parser {
     private static class ParseError extends RuntimeException {} // Sentinel class used to unwind the parser.
+    private static class NestingError extends ParseError {}     // Unwinds all the way to the top level.
 
-    private final List<Token> tokens;
+    /* What can be open around an operand while an expression is parsed. */
+    private enum Pending {
+        BINARY,     // An operator with its left side, at positions[] precedence.
+        UNARY,      // A prefix operator.
+        GROUPING,   // An opening parenthesis.
+        CALL,       // A callee's argument list, from positions[] in arguments.
+        ASSIGN      // A target, with the '=' at positions[] in tokens.
+    }
+
+    /* Binary operators' precedence by TokenType ordinal, loosest first; 0 for other tokens. */
+    private static final int[] PRECEDENCE = new int[TokenType.values().length];
+
+    static {
+        PRECEDENCE[OR.ordinal()] = 1;
+        PRECEDENCE[AND.ordinal()] = 2;
+        PRECEDENCE[BANG_EQUAL.ordinal()] = PRECEDENCE[EQUAL_EQUAL.ordinal()] = 3;
+        PRECEDENCE[GREATER.ordinal()] = PRECEDENCE[GREATER_EQUAL.ordinal()] = 4;
+        PRECEDENCE[LESS.ordinal()] = PRECEDENCE[LESS_EQUAL.ordinal()] = 4;
+        PRECEDENCE[MINUS.ordinal()] = PRECEDENCE[PLUS.ordinal()] = 5;
+        PRECEDENCE[SLASH.ordinal()] = PRECEDENCE[STAR.ordinal()] = 6;
+    }
+
+    /*
+     * How many statements may enclose one another, and how many parts of an
+     * expression may be open at once. The passes after parsing walk the tree
+     * recursively, so deeper trees are reported as errors rather than left
+     * to overflow their stacks; Lox.STACK_SIZE fits both limits at once.
+     */
+    static final int MAX_STATEMENT_NESTING = 4096;
+    static final int MAX_EXPRESSION_NESTING = 4096;
+
+    private final Tokens tokens;
+    private final boolean lazy;     // Whether top-level function bodies are left for LazyBody.
     private int current = 0;
+    private int depth = 0;      // Statements being parsed that enclose the current one.
+
+    // The stack of what is open in the expression being parsed.
+    private Pending[] pending = new Pending[16];
+    private Expr[] operands = new Expr[16];
+    private Token[] operators = new Token[16];
+    private int[] positions = new int[16];
+    private int top = 0;
+    private final List<Expr> arguments = new ArrayList<>();    // Of all open calls, in order.
 
-    Parser(List<Token> tokens) {
+    Parser(Tokens tokens) {
+        this(tokens, false);
+    }
+
+    Parser(Tokens tokens, boolean lazy) {
         this.tokens = tokens;
+        this.lazy = lazy;
     }
 
     /*
@@ -30,12 +79,111 @@ public class Parser {
         return statements;
     }
 
+    /* Parses a function body LazyBody put off, from the token after its '{'; null on an error. */
+    List<Stmt> body(int start) {
+        current = start;
+        depth = 1;
+        try {
+            return block();
+        } catch (ParseError error) {
+            return null;
+        }
+    }
+
     /*
-     * Equivalent to the production:
+     * Equivalent to the productions:
      * expression -> assignment ;
+     * assignment -> IDENTIFIER "=" assignment | logic_or ;
+     * logic_or   -> logic_and ( "or" logic_and )* ;
+     * logic_and  -> equality ( "and" equality )* ;
+     * equality   -> comparison ( ( "!=" | "==" ) comparison )* ;
+     * comparison -> term ( ( ">" | ">=" | "<" | "<=" ) term )* ;
+     * term       -> factor ( ( "-" | "+" ) factor )* ;
+     * factor     -> unary ( ( "/" | "*" ) unary )* ;
+     * unary      -> ( "!" | "-" ) unary | call ;
+     * call       -> primary ( "(" arguments? ")" )* ;
+     * arguments  -> expression ( "," expression )* ;
+     * with "(" expression ")" as a primary too.
+     *
+     * Rather than a method per level, binary operators are parsed by their
+     * precedence (Pratt's method), and what is still open around the
+     * current operand, such as an operator awaiting its right side or a
+     * parenthesis awaiting its close, is kept on the parser's own stack
+     * rather than Java's. Each operand is parsed after its prefix operators
+     * and opening parentheses, then closes whatever it completes.
      */
     private Expr expression() {
-        return assignment();
+        top = 0;
+        arguments.clear();
+
+        operand:
+        for (;;) {
+            while (true) {
+                if (match(BANG, MINUS)) {
+                    push(Pending.UNARY, null, previous(), 0);
+                } else if (match(LEFT_PAREN)) {
+                    push(Pending.GROUPING, null, null, 0);
+                } else {
+                    break;
+                }
+            }
+            Expr expr = primary();
+
+            for (;;) {
+                // Calls bind tightest, so they apply to the operand just completed.
+                while (match(LEFT_PAREN)) {
+                    if (!check(RIGHT_PAREN)) {
+                        push(Pending.CALL, expr, null, arguments.size());
+                        continue operand;
+                    }
+                    Token paren = consume(RIGHT_PAREN, "Expect ')' after arguments.");
+                    expr = new Expr.Call(expr, paren, new ArrayList<Expr>());
+                }
+
+                // Close the operators that bind at least as tightly as the next one.
+                int precedence = PRECEDENCE[tokens.type(current).ordinal()];
+                while (top > 0 && (pending[top - 1] == Pending.UNARY ||
+                        (pending[top - 1] == Pending.BINARY && precedence <= positions[top - 1]))) {
+                    expr = reduce(expr);
+                }
+                if (precedence > 0) {
+                    advance();
+                    push(Pending.BINARY, expr, previous(), precedence);
+                    continue operand;
+                }
+
+                if (match(EQUAL)) {
+                    push(Pending.ASSIGN, expr, null, current - 1);
+                    continue operand;
+                }
+                if (top == 0) return expr;
+
+                top--;
+                switch (pending[top]) {
+                    case ASSIGN:
+                        expr = assign(operands[top], positions[top], expr);
+                        break;
+                    case GROUPING:
+                        expect(RIGHT_PAREN, "Expect ')' after expression.");
+                        expr = new Expr.Grouping(expr);
+                        break;
+                    case CALL:
+                        arguments.add(expr);
+                        if (match(COMMA)) {
+                            if (arguments.size() - positions[top] >= 255) {
+                                error(peek(), "Can't have more than 255 arguments.");
+                            }
+                            top++;
+                            continue operand;
+                        }
+                        Token paren = consume(RIGHT_PAREN, "Expect ')' after arguments.");
+                        expr = new Expr.Call(operands[top], paren, arguments(positions[top]));
+                        break;
+                    default:
+                        throw new AssertionError(pending[top]);
+                }
+            }
+        }
     }
 
     /*
@@ -51,6 +199,7 @@ public class Parser {
 
             return statement();
         } catch (ParseError error) {
+            if (error instanceof NestingError && depth > 0) throw error;
             synchronize();
             return null;
         }
@@ -67,14 +216,34 @@ public class Parser {
      *            | block ;
      */
     private Stmt statement() {
-        if (match(FOR)) return forStatement();
-        if (match(IF)) return ifStatement();
-        if (match(PRINT)) return printStatement();
-        if (match(RETURN)) return returnStatement();
-        if (match(WHILE)) return whileStatement();
-        if (match(LEFT_BRACE)) return new Stmt.Block(block());
+        try {
+            nest();
+            if (match(FOR)) return forStatement();
+            if (match(IF)) return ifStatement();
+            if (match(PRINT)) return printStatement();
+            if (match(RETURN)) return returnStatement();
+            if (match(WHILE)) return whileStatement();
+            if (match(LEFT_BRACE)) return new Stmt.Block(block());
+
+            return expressionStatement();
+        } finally {
+            depth--;
+        }
+    }
 
-        return expressionStatement();
+    /* Enters a statement or function, unless that nests it too deeply. */
+    private void nest() {
+        if (++depth > MAX_STATEMENT_NESTING) throw tooDeep(peek());
+    }
+
+    /*
+     * Reports nesting past either limit once, and gives up on the rest of
+     * the source rather than report every level beyond it as well.
+     */
+    private ParseError tooDeep(Token token) {
+        Lox.error(token, "Too much nesting.");
+        current = tokens.size() - 1;
+        return new NestingError();
     }
 
     /*
@@ -84,7 +253,7 @@ public class Parser {
      *            expression? ")" statement ;
      */
     private Stmt forStatement() {
-        consume(LEFT_PAREN, "Expect '(' after 'for'.");
+        expect(LEFT_PAREN, "Expect '(' after 'for'.");
 
         // Initializer clause of for loop.
         Stmt initializer;
@@ -101,14 +270,14 @@ public class Parser {
         if (!check(SEMICOLON)) {
             condition = expression();
         }
-        consume(SEMICOLON, "Expect ';' after loop condition.");
+        expect(SEMICOLON, "Expect ';' after loop condition.");
 
         // Increment clause and body of for loop.
         Expr increment = null;
         if (!check(RIGHT_PAREN)) {
             increment = expression();
         }
-        consume(RIGHT_PAREN, "Expect ')' after for clauses.");
+        expect(RIGHT_PAREN, "Expect ')' after for clauses.");
         Stmt body = statement();
 
         // Desugaring increment clause.
@@ -137,9 +306,9 @@ public class Parser {
      *         ( "else" statement )? ;
      */
     private Stmt ifStatement() {
-        consume(LEFT_PAREN, "Expect '(' after 'if'.");
+        expect(LEFT_PAREN, "Expect '(' after 'if'.");
         Expr condition = expression();
-        consume(RIGHT_PAREN, "Expect ')' after if condition.");
+        expect(RIGHT_PAREN, "Expect ')' after if condition.");
 
         Stmt thenBranch = statement();
         Stmt elseBranch = null;
@@ -156,7 +325,7 @@ public class Parser {
      */
     private Stmt printStatement() {
         Expr value = expression();
-        consume(SEMICOLON, "Expect ';' after value.");
+        expect(SEMICOLON, "Expect ';' after value.");
         return new Stmt.Print(value);
     }
 
@@ -171,7 +340,7 @@ public class Parser {
             value = expression();
         }
 
-        consume(SEMICOLON, "Expect ';' after return value.");
+        expect(SEMICOLON, "Expect ';' after return value.");
         return new Stmt.Return(keyword, value);
     }
 
@@ -187,7 +356,7 @@ public class Parser {
             initializer = expression();
         }
 
-        consume(SEMICOLON, "Expect ';' after variable declaration.");
+        expect(SEMICOLON, "Expect ';' after variable declaration.");
         return new Stmt.Var(name, initializer);
     }
 
@@ -196,9 +365,9 @@ public class Parser {
      * whileStmt -> "while" "(" expression ")" statement ;
      */
     private Stmt whileStatement() {
-        consume(LEFT_PAREN, "Expect '(' after 'while'.");
+        expect(LEFT_PAREN, "Expect '(' after 'while'.");
         Expr condition = expression();
-        consume(RIGHT_PAREN, "Expect ')' after condition.");
+        expect(RIGHT_PAREN, "Expect ')' after condition.");
         Stmt body = statement();
 
         return new Stmt.While(condition, body);
@@ -210,7 +379,7 @@ public class Parser {
      */
     private Stmt expressionStatement() {
         Expr expr = expression();
-        consume(SEMICOLON, "Expect ';' after expression.");
+        expect(SEMICOLON, "Expect ';' after expression.");
         return new Stmt.Expression(expr);
     }
 
@@ -219,217 +388,133 @@ public class Parser {
      * function -> IDENTIFIER "(" parameters? ")" block ;
      */
     private Stmt.Function function(String kind) {
-        Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
-        consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
-        List<Token> parameters = new ArrayList<>();
-        if (!check(RIGHT_PAREN)) {
-            do {
-                if (parameters.size() >= 255) {
-                    error(peek(), "Can't have more than 255 parameters.");
-                }
-
-                parameters.add(
-                        consume(IDENTIFIER, "Expect parameter name."));
-            } while (match(COMMA));
-        }
-        consume(RIGHT_PAREN, "Expect ')' after parameters.");
-
-        consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
-        List<Stmt> body = block();
-        return new Stmt.Function(name, parameters, body);
-    }
-
-    /*
-     * Equivalent to the production:
-     * block -> "{" declaration* "}" ;
-     */
-    private List<Stmt> block() {
-        List<Stmt> statements = new ArrayList<>();
+        try {
+            nest();
+            Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
+            expect(LEFT_PAREN, "Expect '(' after " + kind + " name.");
+            List<Token> parameters = new ArrayList<>();
+            if (!check(RIGHT_PAREN)) {
+                do {
+                    if (parameters.size() >= 255) {
+                        error(peek(), "Can't have more than 255 parameters.");
+                    }
+
+                    parameters.add(
+                            consume(IDENTIFIER, "Expect parameter name."));
+                } while (match(COMMA));
+            }
+            expect(RIGHT_PAREN, "Expect ')' after parameters.");
 
-        while (!check(RIGHT_BRACE) && !isAtEnd()) {
-            statements.add(declaration());
+            expect(LEFT_BRACE, "Expect '{' before " + kind + " body.");
+            if (lazy && depth == 1) {
+                Stmt.Function function = skipBody(name, parameters);
+                if (function != null) return function;
+            }
+            List<Stmt> body = block();
+            return new Stmt.Function(name, parameters, body);
+        } finally {
+            depth--;
         }
-
-        consume(RIGHT_BRACE, "Expect '}' after block.");
-        return statements;
     }
 
     /*
-     * Equivalent to the production:
-     * assignment -> IDENTIFIER "=" assignment | equality ;
+     * Skips a top-level function's body by matching its braces, returning
+     * a function whose body is left to a LazyBody. Returns null, with
+     * nothing skipped, if the braces never match; parsing the body then
+     * reports that.
      */
-    private Expr assignment() {
-        Expr expr = or();
-
-        if (match(EQUAL)) {
-            Token equals = previous();
-            Expr value = assignment();
-
-            if (expr instanceof Expr.Variable) {
-                Token name = ((Expr.Variable)expr).name;
-                return new Expr.Assign(name, value);
+    private Stmt.Function skipBody(Token name, List<Token> parameters) {
+        int start = current;
+        Set<String> assigned = new HashSet<>();
+        int open = 1;
+        for (; !isAtEnd(); current++) {
+            TokenType type = tokens.type(current);
+            if (type == LEFT_BRACE) {
+                open++;
+            } else if (type == RIGHT_BRACE && --open == 0) {
+                break;
+            } else if (type == IDENTIFIER && tokens.type(current + 1) == EQUAL) {
+                assigned.add(tokens.lexeme(current));
             }
-
-            error(equals, "Invalid assignment target.");
         }
-
-        return expr;
-    }
-
-    /*
-     * Equivalent to the production:
-     * logic_or -> logic_and ( "or" logic_and )* ;
-     */
-    private Expr or() {
-        Expr expr = and();
-
-        while (match(OR)) {
-            Token operator = previous();
-            Expr right = and();
-            expr = new Expr.Logical(expr, operator, right);
+        if (isAtEnd()) {
+            current = start;
+            return null;
         }
+        current++;      // The closing '}'.
 
-        return expr;
+        Stmt.Function function = new Stmt.Function(name, parameters, new ArrayList<Stmt>());
+        function.lazy = new LazyBody(tokens, start, assigned);
+        return function;
     }
 
     /*
      * Equivalent to the production:
-     * logic_and -> equality ( "and" equality )* ;
+     * block -> "{" declaration* "}" ;
      */
-    private Expr and() {
-        Expr expr = equality();
+    private List<Stmt> block() {
+        List<Stmt> statements = new ArrayList<>();
 
-        while (match(AND)) {
-            Token operator = previous();
-            Expr right = equality();
-            expr = new Expr.Logical(expr, operator, right);
+        while (!check(RIGHT_BRACE) && !isAtEnd()) {
+            statements.add(declaration());
         }
 
-        return expr;
+        expect(RIGHT_BRACE, "Expect '}' after block.");
+        return statements;
     }
 
     /*
-     * Equivalent to the production
-     * equality -> comparison ( ( "!=" | "==" ) comparison )* ;
+     * Closes the innermost open unary or binary operator, giving its
+     * expression; and/or make Logical nodes, the rest Binary ones.
      */
-    private Expr equality() {
-        Expr expr = comparison();
-
-        while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            expr = new Expr.Binary(expr, operator, right);
+    private Expr reduce(Expr right) {
+        top--;
+        Token operator = operators[top];
+        if (pending[top] == Pending.UNARY) return new Expr.Unary(operator, right);
+        if (operator.type == OR || operator.type == AND) {
+            return new Expr.Logical(operands[top], operator, right);
         }
-
-        return expr;
+        return new Expr.Binary(operands[top], operator, right);
     }
 
-    /*
-     * Equivalent to the production
-     * comparison -> term ( ( ">" | ">=" | "<" | "<=" ) term )* ;
-     */
-    private Expr comparison() {
-        Expr expr = term();
-
-        while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-            Token operator = previous();
-            Expr right = term();
-            expr = new Expr.Binary(expr, operator, right);
+    /* Only a variable can be assigned; anything else is reported and kept as it is. */
+    private Expr assign(Expr target, int equals, Expr value) {
+        if (target instanceof Expr.Variable) {
+            Token name = ((Expr.Variable)target).name;
+            return new Expr.Assign(name, value);
         }
 
-        return expr;
+        error(tokens.token(equals), "Invalid assignment target.");
+        return target;
     }
 
-    /*
-     * Equivalent to the production
-     * term -> factor ( ( "-" | "+" ) factor )* ;
-     */
-    private Expr term() {
-        Expr expr = factor();
-
-        while (match(MINUS, PLUS)) {
-            Token operator = previous();
-            Expr right = factor();
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
+    /* Takes the arguments of the innermost open call off the argument stack. */
+    private List<Expr> arguments(int start) {
+        List<Expr> list = new ArrayList<>(arguments.subList(start, arguments.size()));
+        arguments.subList(start, arguments.size()).clear();
+        return list;
     }
 
-    /*
-     * Equivalent to the production
-     * factor -> unary ( ( "/" | "*" ) unary )* ;
-     */
-    private Expr factor() {
-        Expr expr = unary();
-
-        while(match(SLASH, STAR)) {
-            Token operator = previous();
-            Expr right = unary();
-            expr = new Expr.Binary(expr, operator, right);
+    /* Opens a construct whose operand is parsed next, unless that nests it too deeply. */
+    private void push(Pending kind, Expr operand, Token operator, int position) {
+        if (top == MAX_EXPRESSION_NESTING) throw tooDeep(previous());
+        if (top == pending.length) {
+            pending = Arrays.copyOf(pending, top * 2);
+            operands = Arrays.copyOf(operands, top * 2);
+            operators = Arrays.copyOf(operators, top * 2);
+            positions = Arrays.copyOf(positions, top * 2);
         }
-
-        return expr;
+        pending[top] = kind;
+        operands[top] = operand;
+        operators[top] = operator;
+        positions[top] = position;
+        top++;
     }
 
     /*
      * Equivalent to the production
-     * unary -> ( "!" | "-" ) unary | call ;
-     */
-    private Expr unary() {
-        if (match(BANG, MINUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
-        }
-        return call();
-    }
-
-    /*
-     * Parses the expressions contained within a function call, if any exist.
-     * Equivalent to the production:
-     * arguments -> expression ( "," expression )* ;
-     */
-    private Expr finishCall(Expr callee) {
-        List<Expr> arguments = new ArrayList<>();
-
-        // Found a list of arguments; parse them.
-        if (!check(RIGHT_PAREN)) {
-            do {
-                if (arguments.size() >= 255) {
-                    error(peek(), "Can't have more than 255 arguments.");
-                }
-                arguments.add(expression());
-            } while (match(COMMA));
-        }
-
-        Token paren = consume(RIGHT_PAREN,
-                       "Expect ')' after arguments.");
-
-        return new Expr.Call(callee, paren, arguments);
-    }
-
-    /*
-     * Equivalent to the production:
-     * call -> primary ( "(" arguments? ")" )* ;
-     */
-    private Expr call() {
-        Expr expr = primary();
-
-        while (true) {
-            if (match(LEFT_PAREN)) {
-                expr = finishCall(expr);
-            } else {
-                break;
-            }
-        }
-
-        return expr;
-    }
-
-    /*
-     * Equivalent to the production
-     * primary -> NUMBER | STRING | "true" | "false" | "nil" | "(" expression ")" | IDENTIFIER ;
+     * primary -> NUMBER | STRING | "true" | "false" | "nil" | IDENTIFIER ;
+     * A parenthesized expression is opened by expression() instead.
      */
     private Expr primary() {
         if (match(FALSE)) return new Expr.Literal(false);
@@ -437,19 +522,13 @@ public class Parser {
         if (match(NIL)) return new Expr.Literal(null);
 
         if (match(NUMBER, STRING)) {
-            return new Expr.Literal(previous().literal);
+            return new Expr.Literal(tokens.literal(current - 1));
         }
 
         if (match(IDENTIFIER)) {
             return new Expr.Variable(previous());
         }
 
-        if (match(LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
-        }
-
         throw error(peek(), "Expect expression.");
     }
 
@@ -466,7 +545,16 @@ public class Parser {
 
     /* Similar to match() but throws errors if it fails to find a match. */
     private Token consume(TokenType type, String message) {
-        if (check(type)) return advance();
+        expect(type, message);
+        return previous();
+    }
+
+    /* Like consume(), for a token that is not kept, so it is never made into a Token. */
+    private void expect(TokenType type, String message) {
+        if (check(type)) {
+            advance();
+            return;
+        }
 
         throw error(peek(), message);
     }
@@ -477,28 +565,27 @@ public class Parser {
      */
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().type == type;
+        return tokens.type(current) == type;
     }
 
-    /* Consumes and returns the current token. */
-    private Token advance() {
+    /* Consumes the current token. */
+    private void advance() {
         if (!isAtEnd()) current++;
-        return previous();
     }
 
     /* Checks if parser ran out of tokens. */
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return tokens.type(current) == EOF;
     }
 
     /* Returns current token yet to be consumed. */
     private Token peek() {
-        return tokens.get(current);
+        return tokens.token(current);
     }
 
     /* Returns the most recently consumed token. */
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 
     /* Reports an error at a given token by providing the token's location and the token itself. */
@@ -512,9 +599,9 @@ public class Parser {
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == SEMICOLON) return;
+            if (tokens.type(current - 1) == SEMICOLON) return;
 
-            switch (peek().type) {
+            switch (tokens.type(current)) {
                 case CLASS:
                 case FUN:
                 case VAR:
@@ -0,0 +1,242 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Finds the functions whose results may be memoized: each call's result
+ * depends only on its arguments, and making the call has no effect beyond
+ * returning it. A pure function
+ *
+ *   - prints nothing and declares no functions (each would be a new value);
+ *   - assigns only its own locals that no closure captures;
+ *   - reads only its own locals and variables that are never assigned
+ *     anywhere, globals among them only if declared once;
+ *   - calls only pure global functions, itself included.
+ *
+ * Names are matched conservatively: an assignment to any variable called
+ * `x` keeps every `x` from being treated as constant. Only run on a whole
+ * program, since the REPL may assign or declare a global again later.
+ */
+class Purity implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    /* What a function's own body does, gathered before purity is decided. */
+    private static class Facts {
+        final Stmt.Function function;
+        final Set<String> reads = new HashSet<>();      // Globals and upvalues read.
+        final Set<String> callees = new HashSet<>();    // Globals called.
+        boolean local = true;       // Whether the body alone could be pure.
+
+        Facts(Stmt.Function function) {
+            this.function = function;
+        }
+    }
+
+    private final Set<String> assigned = new HashSet<>();
+    private final Map<String, Integer> declarations = new HashMap<>();     // Top-level names.
+    private final Map<String, Facts> globalFunctions = new HashMap<>();
+    private final List<Facts> functions = new ArrayList<>();
+    private Facts current = null;   // Of the function whose body is being visited.
+
+    /* Marks the pure functions of a program. */
+    void analyze(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Var) declared(((Stmt.Var)statement).name);
+            if (statement instanceof Stmt.Function) declared(((Stmt.Function)statement).name);
+        }
+        scan(statements);
+
+        for (Facts facts : functions) {
+            String name = facts.function.name.lexeme;
+            if (facts.function.slot == -1 && declarations.get(name) == 1 && !assigned.contains(name)) {
+                globalFunctions.put(name, facts);
+            }
+            for (String read : facts.reads) {
+                if (assigned.contains(read)) facts.local = false;
+            }
+        }
+
+        // Start from every function whose body could be pure, then drop
+        // those calling anything else until none are left to drop.
+        Set<Facts> pure = new HashSet<>();
+        for (Facts facts : functions) {
+            if (facts.local) pure.add(facts);
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Facts facts : functions) {
+                if (pure.contains(facts) && !callsOnlyPure(facts, pure)) {
+                    pure.remove(facts);
+                    changed = true;
+                }
+            }
+        }
+
+        for (Facts facts : pure) {
+            facts.function.pure = true;
+        }
+    }
+
+    private boolean callsOnlyPure(Facts facts, Set<Facts> pure) {
+        for (String callee : facts.callees) {
+            if (!pure.contains(globalFunctions.get(callee))) return false;
+        }
+        return true;
+    }
+
+    private void declared(Token name) {
+        Integer count = declarations.get(name.lexeme);
+        declarations.put(name.lexeme, count == null ? 1 : count + 1);
+    }
+
+    private void scan(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            statement.accept(this);
+        }
+    }
+
+    private void scan(Expr expr) {
+        if (expr != null) expr.accept(this);
+    }
+
+    private void impure() {
+        if (current != null) current.local = false;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        scan(stmt.statements);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        scan(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        impure();
+
+        Facts enclosing = current;
+        current = new Facts(stmt);
+        functions.add(current);
+        if (stmt.lazy != null) {
+            // Its body is not parsed yet, so nothing can be shown about it.
+            assigned.addAll(stmt.lazy.assigned);
+            current.local = false;
+        }
+        scan(stmt.body);
+        current = enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        scan(stmt.condition);
+        stmt.thenBranch.accept(this);
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        impure();
+        scan(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        scan(stmt.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        scan(stmt.initializer);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        scan(stmt.condition);
+        stmt.body.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        assigned.add(expr.name.lexeme);
+        if (expr.upvalue != -1 || expr.depth == -1 || expr.captured) impure();
+        scan(expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        scan(expr.left);
+        scan(expr.right);
+        return null;
+    }
+
+    /* Only a call of a global by name can be shown to reach a pure function. */
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Variable && ((Expr.Variable)expr.callee).depth == -1 &&
+                ((Expr.Variable)expr.callee).upvalue == -1) {
+            if (current != null) current.callees.add(((Expr.Variable)expr.callee).name.lexeme);
+        } else {
+            impure();
+            scan(expr.callee);
+        }
+        for (Expr argument : expr.arguments) {
+            scan(argument);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        scan(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        scan(expr.left);
+        scan(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        scan(expr.right);
+        return null;
+    }
+
+    /* A global read must be of one declared once; natives such as clock() are not. */
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        if (current == null) return null;
+
+        if (expr.upvalue != -1) {
+            current.reads.add(expr.name.lexeme);
+        } else if (expr.depth == -1) {
+            Integer count = declarations.get(expr.name.lexeme);
+            if (count == null || count != 1) current.local = false;
+            current.reads.add(expr.name.lexeme);
+        }
+        return null;
+    }
+}
@@ -1,17 +1,55 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    private final Stack<Scope> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
+    private Closure closure = null;     // The innermost function being resolved.
+
+    /* Tracks a local variable's slot and whether it has been fully initialised. */
+    private static class Local {
+        final int slot;
+        final Stmt declaration;     // Null for a parameter.
+        final List<Expr> uses = new ArrayList<>();  // Accesses from its own function.
+        boolean defined = false;
+        boolean captured = false;   // Whether a closure uses it, so it must live in a Cell.
+
+        Local(int slot, Stmt declaration) {
+            this.slot = slot;
+            this.declaration = declaration;
+        }
+    }
+
+    /* A function being resolved, and the variables of enclosing scopes it captures. */
+    private static class Closure {
+        final Closure enclosing;
+        final int base;             // Index in `scopes` of the function's own scope.
+        final List<Cell.Capture> captures = new ArrayList<>();
+        final Map<Local, Integer> upvalues = new HashMap<>();  // Upvalue index of each capture.
+
+        Closure(Closure enclosing, int base) {
+            this.enclosing = enclosing;
+            this.base = base;
+        }
+    }
+
+    /*
+     * A scope's local names. Only scopes that own an Environment at run time
+     * are frames; an elided block's locals take slots in its enclosing frame.
+     */
+    private static class Scope {
+        final Map<String, Local> locals = new HashMap<>();
+        final Scope frame;      // This scope, unless it is an elided block.
+        int slots = 0;          // Slots handed out so far, counted on frames only.
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+        Scope(Scope frame) {
+            this.frame = frame != null ? frame : this;
+        }
     }
 
     /* Used to track where the code being visited is defined. */
@@ -27,10 +65,23 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         }
     }
 
-    /* Resolves blocks. */
+    /*
+     * Resolves blocks, deciding whether each needs an Environment of its own.
+     * One that declares nothing runs in the enclosing environment. So does one
+     * inside a function or block: its locals just take more slots of the
+     * frame. Closures capture Cells rather than environments, so a local
+     * declared again on each pass through a loop still gets a fresh Cell.
+     */
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        beginScope();
+        if (!declaresAny(stmt.statements)) {
+            stmt.scoped = false;
+            resolve(stmt.statements);
+            return null;
+        }
+
+        stmt.scoped = scopes.isEmpty();
+        scopes.push(new Scope(stmt.scoped ? null : scopes.peek().frame));
         resolve(stmt.statements);
         endScope();
         return null;
@@ -47,7 +98,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
         // Need to bind the function's name.
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name, stmt);
         define(stmt.name);
 
         resolveFunction(stmt, FunctionType.FUNCTION);
@@ -76,7 +127,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     /* Resolves variable declarations. */
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        stmt.slot = declare(stmt.name, stmt);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -106,6 +157,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolve(stmt.value);
         }
 
+        // Nothing is left to do after a call being returned, so it can reuse the frame.
+        stmt.tailCall = currentFunction != FunctionType.NONE && stmt.value instanceof Expr.Call;
         return null;
     }
 
@@ -113,7 +166,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        resolveLocal(expr);
         return null;
     }
 
@@ -171,13 +224,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     /* Resolves variable expressions. */
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() &&
-            scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
+        Local local = scopes.isEmpty() ? null : scopes.peek().locals.get(expr.name.lexeme);
+        if (local != null && !local.defined) {
             Lox.error(expr.name,
                     "Can't read local variable in its own initializer.");
         }
 
-        resolveLocal(expr, expr.name);
+        resolveLocal(expr);
         return null;
     }
 
@@ -195,54 +248,173 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private void resolveFunction(
             Stmt.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
+        Closure enclosingClosure = closure;
         currentFunction = type;
+        closure = new Closure(enclosingClosure, scopes.size());
 
         beginScope();
         for (Token param : function.params) {
-            declare(param);
+            declare(param, null);
             define(param);
         }
         resolve(function.body);
+
+        // Parameters are bound by the caller, then moved into Cells if captured.
+        List<Integer> cellParams = new ArrayList<>();
+        for (Token param : function.params) {
+            Local local = scopes.peek().locals.get(param.lexeme);
+            if (local.captured) cellParams.add(local.slot);
+        }
+        function.cellParams = new int[cellParams.size()];
+        for (int i = 0; i < cellParams.size(); i++) {
+            function.cellParams[i] = cellParams.get(i);
+        }
+        function.captures = closure.captures.toArray(new Cell.Capture[closure.captures.size()]);
+        function.frameSize = scopes.peek().slots;
+
         endScope();
+        closure = enclosingClosure;
         currentFunction = enclosingFunction;
     }
 
-    /* Enters a scope. */
+    /* Enters a scope with an Environment of its own. */
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        scopes.push(new Scope(null));
     }
 
-    /* Exits a scope. */
+    /*
+     * Exits a scope. Whether a local is captured is only known once its
+     * scope has been resolved, so that is when its declaration and every
+     * access from its own function are marked.
+     */
     private void endScope() {
-        scopes.pop();
+        for (Local local : scopes.pop().locals.values()) {
+            if (!local.captured) continue;
+
+            if (local.declaration instanceof Stmt.Var) {
+                ((Stmt.Var)local.declaration).captured = true;
+            } else if (local.declaration instanceof Stmt.Function) {
+                ((Stmt.Function)local.declaration).captured = true;
+            }
+            for (Expr use : local.uses) {
+                if (use instanceof Expr.Variable) {
+                    ((Expr.Variable)use).captured = true;
+                } else {
+                    ((Expr.Assign)use).captured = true;
+                }
+            }
+        }
     }
 
-    /* Adds a new variable declaration to the innermost scope. */
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
+    /*
+     * Adds a new variable declaration to the innermost scope.
+     * Returns the slot it is given in its frame, or -1 for a global.
+     */
+    private int declare(Token name, Stmt declaration) {
+        if (scopes.isEmpty()) return -1;
 
-        Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
+        Scope scope = scopes.peek();
+        if (scope.locals.containsKey(name.lexeme)) {
             Lox.error(name,
                     "Already variable with this name in this scope.");
         }
-        scope.put(name.lexeme, false);  // Variable is still undefined.
+        int slot = scope.frame.slots++;
+        scope.locals.put(name.lexeme, new Local(slot, declaration));  // Variable is still undefined.
+        return slot;
     }
 
     /* Declares a variable as fully initialised. */
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);   // Variable is now defined.
+        scopes.peek().locals.get(name.lexeme).defined = true;   // Variable is now defined.
+    }
+
+    /*
+     * Stores where the variable lives on the expression itself: a slot in an
+     * environment of its own function, or one of the function's upvalues.
+     */
+    private void resolveLocal(Expr.Variable expr) {
+        int scope = findScope(expr.name);
+        if (scope == -1) return;    // Global.
+
+        Local local = scopes.get(scope).locals.get(expr.name.lexeme);
+        if (closure != null && scope < closure.base) {
+            expr.upvalue = upvalue(closure, local, scope);
+        } else {
+            expr.depth = depth(scope, scopes.size() - 1);
+            expr.slot = local.slot;
+            local.uses.add(expr);
+        }
     }
 
-    /* Helper method for resolving variables. */
-    private void resolveLocal(Expr expr, Token name) {
-        // Starts at innermost scope and works outward.
+    /* Stores where the assignment target lives on the expression itself. */
+    private void resolveLocal(Expr.Assign expr) {
+        int scope = findScope(expr.name);
+        if (scope == -1) return;    // Global.
+
+        Local local = scopes.get(scope).locals.get(expr.name.lexeme);
+        if (closure != null && scope < closure.base) {
+            expr.upvalue = upvalue(closure, local, scope);
+        } else {
+            expr.depth = depth(scope, scopes.size() - 1);
+            expr.slot = local.slot;
+            local.uses.add(expr);
+        }
+    }
+
+    /* Returns the index of the innermost scope declaring a name, or -1 if it is global. */
+    private int findScope(Token name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+            if (scopes.get(i).locals.containsKey(name.lexeme)) return i;
+        }
+
+        return -1;
+    }
+
+    /*
+     * Returns the number of environments between scope `to` and the one
+     * holding scope `from`'s locals. Elided blocks have no environment, so
+     * they are not counted.
+     */
+    private int depth(int from, int to) {
+        int depth = 0;
+        for (int i = to; i > from; i--) {
+            if (scopes.get(i).frame == scopes.get(i)) depth++;
+        }
+        return depth;
+    }
+
+    /*
+     * Returns the upvalue through which a function reaches a local declared
+     * in scope `scope`, outside it. The function captures it from the scope
+     * it is declared in or, failing that, from its enclosing function's
+     * upvalues, adding it to each function on the way.
+     */
+    private int upvalue(Closure function, Local local, int scope) {
+        Integer index = function.upvalues.get(local);
+        if (index != null) return index;
+
+        local.captured = true;
+        if (function.enclosing != null && scope < function.enclosing.base) {
+            function.captures.add(Cell.Capture.upvalue(
+                    upvalue(function.enclosing, local, scope)));
+        } else {
+            function.captures.add(Cell.Capture.slot(
+                    depth(scope, function.base - 1), local.slot));
+        }
+
+        index = function.captures.size() - 1;
+        function.upvalues.put(local, index);
+        return index;
+    }
+
+    /* Whether a block declares a variable or function directly. */
+    private static boolean declaresAny(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            if (statement instanceof Stmt.Var || statement instanceof Stmt.Function) {
+                return true;
             }
         }
+        return false;
     }
 }
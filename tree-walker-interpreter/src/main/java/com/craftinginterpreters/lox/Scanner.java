@@ -1,55 +1,52 @@
 package com.craftinginterpreters.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.CharBuffer;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
+/*
+ * Turns source into tokens, working on the characters in place. A token is
+ * recorded as where its lexeme lies in the source (see Tokens), so
+ * scanning copies nothing out of it.
+ */
 class Scanner {
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and",    AND);
-        keywords.put("class",  CLASS);
-        keywords.put("else",   ELSE);
-        keywords.put("false",  FALSE);
-        keywords.put("for",    FOR);
-        keywords.put("fun",    FUN);
-        keywords.put("if",     IF);
-        keywords.put("nil",    NIL);
-        keywords.put("or",     OR);
-        keywords.put("print",  PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super",  SUPER);
-        keywords.put("this",   THIS);
-        keywords.put("true",   TRUE);
-        keywords.put("var",    VAR);
-        keywords.put("while",  WHILE);
-    }
-
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final char[] source;
+    private final int end;              // Index just past the last character.
+    private Tokens tokens;
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
     /* Raw source code stored as a single string. */
     Scanner(String source) {
-        this.source = source;
+        this.source = source.toCharArray();
+        this.end = this.source.length;
+    }
+
+    /* Source decoded into a buffer, such as a mapped file's; used in place when it has an array. */
+    Scanner(CharBuffer source) {
+        if (source.hasArray()) {
+            this.source = source.array();
+            this.start = source.arrayOffset() + source.position();
+            this.end = source.arrayOffset() + source.limit();
+        } else {
+            this.source = new char[source.remaining()];
+            source.duplicate().get(this.source);
+            this.end = this.source.length;
+        }
+        this.current = this.start;
     }
 
     /* Goes through the source code and extracts lexemes. */
-    List<Token> scanTokens() {
+    Tokens scanTokens() {
+        tokens = new Tokens(source, end - start);
         while (!isAtEnd()) {
             // We are at the beginning of the next lexeme.
             start = current;
             scanToken();
         }
 
-        tokens.add(new Token(EOF, "", null, line));
+        tokens.add(EOF, current, 0, line);
         return tokens;
     }
 
@@ -68,16 +65,16 @@ class Scanner {
             case ';': addToken(SEMICOLON); break;
             case '*': addToken(STAR); break;
             case '!':
-                addToken(match('=') ? BANG_EQUAL : BANG);
+                if (match('=')) addToken(BANG_EQUAL); else addToken(BANG);
                 break;
             case '=':
-                addToken(match('=') ? EQUAL_EQUAL : EQUAL);
+                if (match('=')) addToken(EQUAL_EQUAL); else addToken(EQUAL);
                 break;
             case '<':
-                addToken(match('=') ? LESS_EQUAL : LESS);
+                if (match('=')) addToken(LESS_EQUAL); else addToken(LESS);
                 break;
             case '>':
-                addToken(match('=') ? GREATER_EQUAL : GREATER);
+                if (match('=')) addToken(GREATER_EQUAL); else addToken(GREATER);
                 break;
             case '/':
                 if (match('/')) {
@@ -112,10 +109,55 @@ class Scanner {
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER;
-        addToken(type);
+        addToken(keyword());
+    }
+
+    /*
+     * Returns the keyword the current lexeme spells, or IDENTIFIER. Like a
+     * trie: the first letter, and sometimes the second, leave at most one
+     * keyword to compare the rest with.
+     */
+    private TokenType keyword() {
+        switch (source[start]) {
+            case 'a': return rest(1, "nd", AND);
+            case 'c': return rest(1, "lass", CLASS);
+            case 'e': return rest(1, "lse", ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (source[start + 1]) {
+                        case 'a': return rest(2, "lse", FALSE);
+                        case 'o': return rest(2, "r", FOR);
+                        case 'u': return rest(2, "n", FUN);
+                    }
+                }
+                break;
+            case 'i': return rest(1, "f", IF);
+            case 'n': return rest(1, "il", NIL);
+            case 'o': return rest(1, "r", OR);
+            case 'p': return rest(1, "rint", PRINT);
+            case 'r': return rest(1, "eturn", RETURN);
+            case 's': return rest(1, "uper", SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (source[start + 1]) {
+                        case 'h': return rest(2, "is", THIS);
+                        case 'r': return rest(2, "ue", TRUE);
+                    }
+                }
+                break;
+            case 'v': return rest(1, "ar", VAR);
+            case 'w': return rest(1, "hile", WHILE);
+        }
+        return IDENTIFIER;
+    }
+
+    /* Returns `type` if the lexeme continues from `offset` with exactly `rest`. */
+    private TokenType rest(int offset, String rest, TokenType type) {
+        if (current - start != offset + rest.length()) return IDENTIFIER;
+        for (int i = 0; i < rest.length(); i++) {
+            if (source[start + offset + i] != rest.charAt(i)) return IDENTIFIER;
+        }
+        return type;
     }
 
     /* Creates a number token. */
@@ -130,11 +172,10 @@ class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        addToken(NUMBER,
-            Double.parseDouble(source.substring(start, current)));
+        addToken(NUMBER);
     }
 
-    /* Creates a string token (stripping off the surrounding quotes in the process). */
+    /* Creates a string token; Tokens strips the surrounding quotes off its value. */
     private void string() {
         while (peek() != '"' && !isAtEnd()) {
             if (peek() == '\n') line++;
@@ -149,15 +190,13 @@ class Scanner {
         // The closing ".
         advance();
 
-        // Trim the surrounding quotes.
-        String value = source.substring(start + 1, current - 1);
-        addToken(STRING, value);
+        addToken(STRING);
     }
 
     /* Essentially a conditional advance(). */
     private boolean match(char expected) {
         if (isAtEnd()) return false;
-        if (source.charAt(current) != expected) return false;
+        if (source[current] != expected) return false;
 
         current++;
         return true;
@@ -166,13 +205,13 @@ class Scanner {
     /* Performs lookahead, not consuming the current character. */
     private char peek() {
         if (isAtEnd()) return '\0';
-        return source.charAt(current);
+        return source[current];
     }
 
     /* Same as peek(), but looks two characters ahead. */
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
-        return source.charAt(current + 1);
+        if (current + 1 >= end) return '\0';
+        return source[current + 1];
     }
 
     private boolean isAlpha(char c) {
@@ -190,23 +229,16 @@ class Scanner {
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= end;
     }
 
     /* Returns the next character in the source. */
     private char advance() {
-        current++;
-        return source.charAt(current - 1);
+        return source[current++];
     }
 
-    /* Grabs current lexeme's text and creates a token for it. */
+    /* Records the current lexeme as a token. */
     private void addToken(TokenType type) {
-        addToken(type, null);
-    }
-
-    /* Handles tokens with literal values. */
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        tokens.add(type, start, current - start, line);
     }
 }
@@ -0,0 +1,675 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Keeps resolved and optimized programs on disk, for --cache, so that
+ * running an unchanged script again skips scanning, parsing, resolving and
+ * optimizing it. Each program is a .loxc file in one directory, named by a
+ * hash of the script's bytes together with a fingerprint of the classes
+ * that build the tree: editing the script or changing the interpreter
+ * gives a new name, and the old file is simply never read again. Once the
+ * files take more than `limit` bytes, the least recently used are deleted.
+ *
+ * Only the tree and what the Resolver and Optimizer fill in are stored;
+ * Purity is run again on loading under --memo, and everything learned at
+ * run time starts afresh. The cache never stops a script from running: an
+ * unreadable or damaged file is parsed again, and one that can't be
+ * written is left out.
+ */
+class ScriptCache {
+    static final String EXTENSION = ".loxc";
+    static final long DEFAULT_LIMIT = 64L << 20;
+
+    private static final int MAGIC = 0x4C4F5843;    // "LOXC"
+    private static final int FORMAT = 1;            // Bump on any change to the encoding.
+
+    /*
+     * The classes whose code, with their nested classes', decides what tree
+     * a script becomes. Interpreter is among them for the truthiness and
+     * equality the Optimizer folds constants with.
+     */
+    private static final Class<?>[] FRONT_END = {
+        Lox.class, Scanner.class, Tokens.class, Token.class, TokenType.class,
+        Parser.class, Resolver.class, Optimizer.class, Inliner.class,
+        Interpreter.class, Expr.class, Stmt.class, Cell.class, ScriptCache.class
+    };
+    private static byte[] fingerprint = null;
+
+    private final Path directory;
+    private final long limit;
+
+    ScriptCache(Path directory, long limit) {
+        this.directory = directory;
+        this.limit = limit;
+    }
+
+    /* $XDG_CACHE_HOME/jlox, or ~/.cache/jlox. */
+    static Path defaultDirectory() {
+        String home = System.getenv("XDG_CACHE_HOME");
+        if (home == null || home.isEmpty()) {
+            return Paths.get(System.getProperty("user.home"), ".cache", "jlox");
+        }
+        return Paths.get(home, "jlox");
+    }
+
+    /* Like Lox.parse(Lox.read(path)), but from the cache when it holds the script. */
+    List<Stmt> parse(String path) throws IOException {
+        ByteBuffer source = Lox.map(path);
+        Path entry;
+        try {
+            entry = directory.resolve(key(source) + EXTENSION);
+        } catch (IOException error) {
+            return Lox.parse(Charset.defaultCharset().decode(source));
+        }
+
+        List<Stmt> statements = load(entry);
+        if (statements != null) {
+            if (Memo.enabled()) new Purity().analyze(statements);
+            return statements;
+        }
+
+        statements = Lox.parse(Charset.defaultCharset().decode(source));
+        if (statements != null) store(entry, statements);
+        return statements;
+    }
+
+    /* Returns the program stored at `entry`, or null if there is none to use. */
+    private List<Stmt> load(Path entry) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(entry);
+        } catch (IOException error) {
+            return null;
+        }
+
+        try {
+            List<Stmt> statements = new Reader(bytes).program();
+            // Mark it as recently used, for eviction.
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return statements;
+        } catch (IOException | RuntimeException error) {
+            return null;
+        }
+    }
+
+    /* Writes `statements` to `entry` whole, through a file renamed into place. */
+    private void store(Path entry, List<Stmt> statements) {
+        Path temporary = null;
+        try {
+            Files.createDirectories(directory);
+            byte[] program = new Writer().program(statements);
+            temporary = Files.createTempFile(directory, entry.getFileName().toString(), ".part");
+            Files.write(temporary, program);
+            Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            temporary = null;
+            evict();
+        } catch (IOException | RuntimeException error) {
+            // Run without caching this script.
+        } finally {
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException error) {
+                    // Left behind; it is never read.
+                }
+            }
+        }
+    }
+
+    /* Deletes the least recently used programs until the rest fit in `limit`. */
+    private void evict() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        Map<Path, Long> used = new HashMap<>();
+        long total = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for (Path file : files) {
+                if (!Files.isRegularFile(file)) continue;
+                entries.add(file);
+                used.put(file, Files.getLastModifiedTime(file).toMillis());
+                total += Files.size(file);
+            }
+        }
+        if (total <= limit) return;
+
+        entries.sort((a, b) -> Long.compare(used.get(a), used.get(b)));
+        for (Path file : entries) {
+            if (total <= limit) break;
+            long size = Files.size(file);
+            if (Files.deleteIfExists(file)) total -= size;
+        }
+    }
+
+    /* A hex SHA-256 of the interpreter's fingerprint, the charset scripts are read in and `source`. */
+    private static String key(ByteBuffer source) throws IOException {
+        MessageDigest digest = sha256();
+        digest.update(fingerprint());
+        digest.update(Charset.defaultCharset().name().getBytes(StandardCharsets.UTF_8));
+        digest.update(source.duplicate());
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(Character.forDigit((b >> 4) & 0xf, 16));
+            key.append(Character.forDigit(b & 0xf, 16));
+        }
+        return key.toString();
+    }
+
+    /* A SHA-256 of the format and the front end's class files, read once. */
+    private static byte[] fingerprint() throws IOException {
+        if (fingerprint != null) return fingerprint;
+
+        MessageDigest digest = sha256();
+        digest.update((byte)FORMAT);
+        for (Class<?> type : FRONT_END) digest(digest, type);
+        fingerprint = digest.digest();
+        return fingerprint;
+    }
+
+    private static void digest(MessageDigest digest, Class<?> type) throws IOException {
+        String name = type.getName().substring(type.getName().lastIndexOf('.') + 1);
+        byte[] buffer = new byte[8192];
+        try (InputStream input = type.getResourceAsStream(name + ".class")) {
+            if (input == null) throw new IOException("No class file for " + name + ".");
+            for (int count; (count = input.read(buffer)) != -1; ) {
+                digest.update(buffer, 0, count);
+            }
+        }
+        for (Class<?> nested : type.getDeclaredClasses()) digest(digest, nested);
+    }
+
+    private static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException error) {
+            throw new IOException(error);
+        }
+    }
+
+    // Tags for each kind of node; 0 is a missing one.
+    private static final int ASSIGN = 1, BINARY = 2, CALL = 3, GROUPING = 4,
+            LITERAL = 5, LOGICAL = 6, UNARY = 7, VARIABLE = 8;
+    private static final int BLOCK = 1, EXPRESSION = 2, FUNCTION = 3, IF = 4,
+            PRINT = 5, RETURN = 6, VAR = 7, WHILE = 8;
+
+    // Tags for each kind of value.
+    private static final int NIL = 0, FALSE = 1, TRUE = 2, NUMBER = 3, STRING = 4;
+
+    /*
+     * Writes a program as a header and its nodes in prefix order. Counts,
+     * slots and the change in line from one token to the next are
+     * variable-length integers, and each distinct string is written once,
+     * the first time it is used, and after that referred to by its number.
+     */
+    private static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private final Map<String, Integer> strings = new HashMap<>();
+        private int line = 0;       // Of the last token written.
+
+        byte[] program(List<Stmt> statements) {
+            integer(MAGIC);
+            integer(FORMAT);
+            statements(statements);
+            return output.toByteArray();
+        }
+
+        private void statements(List<Stmt> statements) {
+            count(statements.size());
+            for (Stmt statement : statements) statement(statement);
+        }
+
+        private void statement(Stmt statement) {
+            if (statement == null) {
+                tag(0);
+            } else {
+                statement.accept(this);
+            }
+        }
+
+        private void expressions(List<Expr> expressions) {
+            count(expressions.size());
+            for (Expr expression : expressions) expression(expression);
+        }
+
+        private void expression(Expr expression) {
+            if (expression == null) {
+                tag(0);
+            } else {
+                expression.accept(this);
+            }
+        }
+
+        private void token(Token token) {
+            tag(token.type.ordinal());
+            string(token.lexeme);
+            // Most tokens are on the same line as the one before, or the next.
+            int delta = token.line - line;
+            count((delta << 1) ^ (delta >> 31));
+            line = token.line;
+            // Only a number or string has a literal.
+            if (token.type == TokenType.NUMBER || token.type == TokenType.STRING) {
+                value(token.literal);
+            } else if (token.literal != null) {
+                throw new IllegalArgumentException("Can't store " + token + ".");
+            }
+        }
+
+        private void value(Object value) {
+            if (value == null) {
+                tag(NIL);
+            } else if (value instanceof Boolean) {
+                tag((Boolean)value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                tag(NUMBER);
+                long bits = Double.doubleToRawLongBits((Double)value);
+                integer((int)(bits >>> 32));
+                integer((int)bits);
+            } else if (value instanceof String) {
+                tag(STRING);
+                string((String)value);
+            } else {
+                throw new IllegalArgumentException("Can't store " + value + ".");
+            }
+        }
+
+        private void string(String string) {
+            Integer index = strings.get(string);
+            if (index != null) {
+                count(index);
+                return;
+            }
+
+            count(strings.size());
+            strings.put(string, strings.size());
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            count(bytes.length);
+            output.write(bytes, 0, bytes.length);
+        }
+
+        /* A slot, depth or index that may be -1. */
+        private void signed(int value) {
+            count(value + 1);
+        }
+
+        private void flag(boolean value) {
+            tag(value ? 1 : 0);
+        }
+
+        private void tag(int tag) {
+            output.write(tag);
+        }
+
+        /* A non-negative int, seven bits to a byte, the last with its top bit clear. */
+        private void count(int value) {
+            while ((value & ~0x7f) != 0) {
+                output.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            output.write(value);
+        }
+
+        /* Big-endian, as DataOutputStream would write it. */
+        private void integer(int value) {
+            output.write(value >>> 24);
+            output.write(value >>> 16);
+            output.write(value >>> 8);
+            output.write(value);
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            tag(ASSIGN);
+            token(expr.name);
+            expression(expr.value);
+            signed(expr.depth);
+            signed(expr.slot);
+            signed(expr.upvalue);
+            flag(expr.captured);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            tag(BINARY);
+            expression(expr.left);
+            token(expr.operator);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            tag(CALL);
+            expression(expr.callee);
+            token(expr.paren);
+            expressions(expr.arguments);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            tag(GROUPING);
+            expression(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            tag(LITERAL);
+            value(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            tag(LOGICAL);
+            expression(expr.left);
+            token(expr.operator);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            tag(UNARY);
+            token(expr.operator);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            tag(VARIABLE);
+            token(expr.name);
+            signed(expr.depth);
+            signed(expr.slot);
+            signed(expr.upvalue);
+            flag(expr.captured);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            tag(BLOCK);
+            statements(stmt.statements);
+            flag(stmt.scoped);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            tag(EXPRESSION);
+            expression(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            if (stmt.lazy != null) throw new IllegalStateException("Can't store an unparsed body.");
+
+            tag(FUNCTION);
+            token(stmt.name);
+            count(stmt.params.size());
+            for (Token param : stmt.params) token(param);
+            statements(stmt.body);
+            signed(stmt.slot);
+            flag(stmt.captured);
+            count(stmt.frameSize);
+            count(stmt.cellParams.length);
+            for (int slot : stmt.cellParams) count(slot);
+            count(stmt.captures.length);
+            for (Cell.Capture capture : stmt.captures) {
+                flag(capture.local);
+                count(capture.depth);
+                count(capture.index);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            tag(IF);
+            expression(stmt.condition);
+            statement(stmt.thenBranch);
+            statement(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            tag(PRINT);
+            expression(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            tag(RETURN);
+            token(stmt.keyword);
+            expression(stmt.value);
+            flag(stmt.tailCall);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            tag(VAR);
+            token(stmt.name);
+            expression(stmt.initializer);
+            signed(stmt.slot);
+            flag(stmt.captured);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            tag(WHILE);
+            expression(stmt.condition);
+            statement(stmt.body);
+            return null;
+        }
+    }
+
+    /* Rebuilds what Writer wrote, throwing IOException if it is not that. */
+    private static class Reader {
+        private static final TokenType[] TYPES = TokenType.values();
+
+        private final byte[] bytes;
+        private int current = 0;
+        private final List<String> strings = new ArrayList<>();
+        private int line = 0;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        List<Stmt> program() throws IOException {
+            if (bytes.length < 8 || integer() != MAGIC || integer() != FORMAT) {
+                throw new IOException("Not a program in this format.");
+            }
+            List<Stmt> statements = statements();
+            if (current != bytes.length) throw new IOException("Trailing bytes.");
+            return statements;
+        }
+
+        private List<Stmt> statements() throws IOException {
+            int count = count();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) statements.add(statement());
+            return statements;
+        }
+
+        private Stmt statement() throws IOException {
+            switch (tag()) {
+                case 0: return null;
+                case BLOCK: {
+                    Stmt.Block block = new Stmt.Block(statements());
+                    block.scoped = flag();
+                    return block;
+                }
+                case EXPRESSION: return new Stmt.Expression(expression());
+                case FUNCTION: return function();
+                case IF: return new Stmt.If(expression(), statement(), statement());
+                case PRINT: return new Stmt.Print(expression());
+                case RETURN: {
+                    Stmt.Return stmt = new Stmt.Return(token(), expression());
+                    stmt.tailCall = flag();
+                    return stmt;
+                }
+                case VAR: {
+                    Stmt.Var stmt = new Stmt.Var(token(), expression());
+                    stmt.slot = signed();
+                    stmt.captured = flag();
+                    return stmt;
+                }
+                case WHILE: return new Stmt.While(expression(), statement());
+                default: throw new IOException("Bad statement.");
+            }
+        }
+
+        private Stmt.Function function() throws IOException {
+            Token name = token();
+            int arity = count();
+            List<Token> params = new ArrayList<>(arity);
+            for (int i = 0; i < arity; i++) params.add(token());
+
+            Stmt.Function function = new Stmt.Function(name, params, statements());
+            function.slot = signed();
+            function.captured = flag();
+            function.frameSize = count();
+            function.cellParams = new int[count()];
+            for (int i = 0; i < function.cellParams.length; i++) {
+                function.cellParams[i] = count();
+            }
+            int captures = count();
+            if (captures > 0) {
+                function.captures = new Cell.Capture[captures];
+                for (int i = 0; i < captures; i++) {
+                    boolean local = flag();
+                    int depth = count();
+                    int index = count();
+                    function.captures[i] = local ? Cell.Capture.slot(depth, index)
+                            : Cell.Capture.upvalue(index);
+                }
+            }
+            return function;
+        }
+
+        private List<Expr> expressions() throws IOException {
+            int count = count();
+            List<Expr> expressions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) expressions.add(expression());
+            return expressions;
+        }
+
+        private Expr expression() throws IOException {
+            switch (tag()) {
+                case 0: return null;
+                case ASSIGN: {
+                    Expr.Assign expr = new Expr.Assign(token(), expression());
+                    expr.depth = signed();
+                    expr.slot = signed();
+                    expr.upvalue = signed();
+                    expr.captured = flag();
+                    return expr;
+                }
+                case BINARY: return new Expr.Binary(expression(), token(), expression());
+                case CALL: return new Expr.Call(expression(), token(), expressions());
+                case GROUPING: return new Expr.Grouping(expression());
+                case LITERAL: return new Expr.Literal(value());
+                case LOGICAL: return new Expr.Logical(expression(), token(), expression());
+                case UNARY: return new Expr.Unary(token(), expression());
+                case VARIABLE: {
+                    Expr.Variable expr = new Expr.Variable(token());
+                    expr.depth = signed();
+                    expr.slot = signed();
+                    expr.upvalue = signed();
+                    expr.captured = flag();
+                    return expr;
+                }
+                default: throw new IOException("Bad expression.");
+            }
+        }
+
+        private Token token() throws IOException {
+            int type = tag();
+            if (type >= TYPES.length) throw new IOException("Bad token.");
+            String lexeme = string();
+            int delta = count();
+            line += (delta >>> 1) ^ -(delta & 1);
+            boolean literal = TYPES[type] == TokenType.NUMBER || TYPES[type] == TokenType.STRING;
+            return new Token(TYPES[type], lexeme, literal ? value() : null, line);
+        }
+
+        private Object value() throws IOException {
+            switch (tag()) {
+                case NIL: return null;
+                case FALSE: return false;
+                case TRUE: return true;
+                case NUMBER: return Double.longBitsToDouble(
+                        ((long)integer() << 32) | (integer() & 0xffffffffL));
+                case STRING: return string();
+                default: throw new IOException("Bad value.");
+            }
+        }
+
+        private String string() throws IOException {
+            int index = count();
+            if (index < strings.size()) return strings.get(index);
+            if (index > strings.size()) throw new IOException("Bad string.");
+
+            int length = count();
+            if (length > bytes.length - current) throw new IOException("Bad string.");
+            String string = new String(bytes, current, length, StandardCharsets.UTF_8);
+            current += length;
+            strings.add(string);
+            return string;
+        }
+
+        private int signed() throws IOException {
+            return count() - 1;
+        }
+
+        private boolean flag() throws IOException {
+            return tag() != 0;
+        }
+
+        private int tag() throws IOException {
+            if (current == bytes.length) throw new IOException("Truncated.");
+            return bytes[current++] & 0xff;
+        }
+
+        private int count() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = tag();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IOException("Bad count.");
+        }
+
+        /* A big-endian int. */
+        private int integer() throws IOException {
+            return (tag() << 24) | (tag() << 16) | (tag() << 8) | tag();
+        }
+    }
+}
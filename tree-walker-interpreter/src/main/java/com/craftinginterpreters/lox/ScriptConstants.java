@@ -0,0 +1,131 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+/*
+ * The constants of a script compiled by loxc, kept in a resource next to
+ * its class rather than in its code. A class's constant pool, its static
+ * initializer and each string in it are limited to 64 KB, which a large
+ * script or one long string literal would outgrow.
+ */
+final class ScriptConstants {
+    private static final byte NUMBER = 0;
+    private static final byte STRING = 1;
+
+    final Token[] tokens;
+    final Object[] values;              // Numbers and strings.
+    final int[][] cellParams;
+    final Cell.Capture[][] captures;
+
+    ScriptConstants(Token[] tokens, Object[] values,
+                    int[][] cellParams, Cell.Capture[][] captures) {
+        this.tokens = tokens;
+        this.values = values;
+        this.cellParams = cellParams;
+        this.captures = captures;
+    }
+
+    /* Reads the constants of a compiled script from its resource. */
+    static ScriptConstants load(Class<?> script) {
+        String name = script.getSimpleName() + ".constants";
+        try (InputStream resource = script.getResourceAsStream(name)) {
+            if (resource == null) throw new IllegalStateException("Missing resource " + name + ".");
+            return read(new DataInputStream(resource));
+        } catch (IOException error) {
+            throw new UncheckedIOException(error);
+        }
+    }
+
+    byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(tokens.length);
+            for (Token token : tokens) {
+                out.writeUTF(token.type.name());
+                writeString(out, token.lexeme);
+                out.writeInt(token.line);
+            }
+
+            out.writeInt(values.length);
+            for (Object value : values) {
+                if (value instanceof Double) {
+                    out.writeByte(NUMBER);
+                    out.writeDouble((double)value);
+                } else {
+                    out.writeByte(STRING);
+                    writeString(out, (String)value);
+                }
+            }
+
+            out.writeInt(cellParams.length);
+            for (int[] slots : cellParams) {
+                out.writeInt(slots.length);
+                for (int slot : slots) out.writeInt(slot);
+            }
+
+            out.writeInt(captures.length);
+            for (Cell.Capture[] function : captures) {
+                out.writeInt(function.length);
+                for (Cell.Capture capture : function) {
+                    out.writeBoolean(capture.local);
+                    out.writeInt(capture.depth);
+                    out.writeInt(capture.index);
+                }
+            }
+        } catch (IOException error) {
+            throw new UncheckedIOException(error);  // Never thrown by a ByteArrayOutputStream.
+        }
+        return bytes.toByteArray();
+    }
+
+    private static ScriptConstants read(DataInputStream in) throws IOException {
+        Token[] tokens = new Token[in.readInt()];
+        for (int i = 0; i < tokens.length; i++) {
+            TokenType type = TokenType.valueOf(in.readUTF());
+            String lexeme = readString(in);
+            tokens[i] = new Token(type, lexeme, null, in.readInt());
+        }
+
+        Object[] values = new Object[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readByte() == NUMBER ? (Object)in.readDouble() : readString(in);
+        }
+
+        int[][] cellParams = new int[in.readInt()][];
+        for (int i = 0; i < cellParams.length; i++) {
+            cellParams[i] = new int[in.readInt()];
+            for (int j = 0; j < cellParams[i].length; j++) cellParams[i][j] = in.readInt();
+        }
+
+        Cell.Capture[][] captures = new Cell.Capture[in.readInt()][];
+        for (int i = 0; i < captures.length; i++) {
+            captures[i] = new Cell.Capture[in.readInt()];
+            for (int j = 0; j < captures[i].length; j++) {
+                boolean local = in.readBoolean();
+                int depth = in.readInt();
+                int index = in.readInt();
+                captures[i][j] = local ? Cell.Capture.slot(depth, index) : Cell.Capture.upvalue(index);
+            }
+        }
+
+        return new ScriptConstants(tokens, values, cellParams, captures);
+    }
+
+    /* Written char by char, as writeUTF() is limited to 64 KB. */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeInt(value.length());
+        out.writeChars(value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        char[] chars = new char[in.readInt()];
+        for (int i = 0; i < chars.length; i++) chars[i] = in.readChar();
+        return new String(chars);
+    }
+}
@@ -32,6 +32,7 @@ abstract class Stmt {
         }
 
         final List<Stmt> statements;
+        boolean scoped = true;
     }
     static class Expression extends Stmt {
         Expression(Expr expression) {
@@ -60,6 +61,14 @@ abstract class Stmt {
         final Token name;
         final List<Token> params;
         final List<Stmt> body;
+        int slot;
+        boolean captured;
+        int frameSize;
+        int[] cellParams = new int[0];
+        Cell.Capture[] captures = Cell.Capture.NONE;
+        Jit.Profile profile = new Jit.Profile();
+        boolean pure;
+        LazyBody lazy;
     }
     static class If extends Stmt {
         If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
@@ -102,6 +111,7 @@ abstract class Stmt {
 
         final Token keyword;
         final Expr value;
+        boolean tailCall;
     }
     static class Var extends Stmt {
         Var(Token name, Expr initializer) {
@@ -116,6 +126,8 @@ abstract class Stmt {
 
         final Token name;
         final Expr initializer;
+        int slot;
+        boolean captured;
     }
     static class While extends Stmt {
         While(Expr condition, Stmt body) {
@@ -0,0 +1,225 @@
+package com.craftinginterpreters.lox;
+
+/* Executable statement nodes. */
+abstract class StmtNode extends Node {
+    abstract void execute(Environment environment);
+
+    static class Block extends StmtNode {
+        private final StmtNode[] statements;
+
+        Block(StmtNode[] statements) {
+            this.statements = statements;
+            for (StmtNode statement : statements) adopt(statement);
+        }
+
+        @Override
+        void execute(Environment environment) {
+            executeAll(statements, new Environment(environment));
+        }
+    }
+
+    /* A block that runs in the enclosing environment, having no scope of its own. */
+    static class Sequence extends StmtNode {
+        private final StmtNode[] statements;
+
+        Sequence(StmtNode[] statements) {
+            this.statements = statements;
+            for (StmtNode statement : statements) adopt(statement);
+        }
+
+        @Override
+        void execute(Environment environment) {
+            executeAll(statements, environment);
+        }
+    }
+
+    static class Expression extends StmtNode {
+        private ExprNode expression;
+
+        Expression(ExprNode expression) {
+            this.expression = adopt(expression);
+        }
+
+        @Override
+        void execute(Environment environment) {
+            expression.executeVoid(environment);
+        }
+
+        @Override
+        void replaceChild(ExprNode child, ExprNode replacement) {
+            if (expression == child) expression = replacement;
+        }
+    }
+
+    /* Declares a function, capturing the environment it is declared in. */
+    static class Function extends StmtNode {
+        private final Environment globals;  // Null for a local declaration.
+        private final Stmt.Function declaration;
+        private final StmtNode[] body;
+
+        Function(Environment globals, Stmt.Function declaration, StmtNode[] body) {
+            this.globals = globals;
+            this.declaration = declaration;
+            this.body = body;
+            for (StmtNode statement : body) adopt(statement);
+        }
+
+        @Override
+        void execute(Environment environment) {
+            if (declaration.captured) {
+                // The function may capture itself, so its Cell must exist first.
+                Cell cell = new Cell(null);
+                environment.define(declaration.slot, cell);
+                cell.value = create(environment);
+            } else if (globals != null) {
+                globals.define(declaration.name.lexeme, create(environment));
+            } else {
+                environment.define(declaration.slot, create(environment));
+            }
+        }
+
+        private NodeFunction create(Environment environment) {
+            return new NodeFunction(declaration.name, declaration.params.size(),
+                    declaration.cellParams, body, environment.capture(declaration.captures));
+        }
+    }
+
+    static class If extends StmtNode {
+        private ExprNode condition;
+        private final StmtNode thenBranch;
+        private final StmtNode elseBranch;
+
+        If(ExprNode condition, StmtNode thenBranch, StmtNode elseBranch) {
+            this.condition = adopt(condition);
+            this.thenBranch = adopt(thenBranch);
+            this.elseBranch = adopt(elseBranch);
+        }
+
+        @Override
+        void execute(Environment environment) {
+            if (condition.executeCondition(environment)) {
+                thenBranch.execute(environment);
+            } else if (elseBranch != null) {
+                elseBranch.execute(environment);
+            }
+        }
+
+        @Override
+        void replaceChild(ExprNode child, ExprNode replacement) {
+            if (condition == child) condition = replacement;
+        }
+    }
+
+    static class Print extends StmtNode {
+        private ExprNode expression;
+
+        Print(ExprNode expression) {
+            this.expression = adopt(expression);
+        }
+
+        @Override
+        void execute(Environment environment) {
+            System.out.println(Interpreter.stringify(expression.execute(environment)));
+        }
+
+        @Override
+        void replaceChild(ExprNode child, ExprNode replacement) {
+            if (expression == child) expression = replacement;
+        }
+    }
+
+    static class Return extends StmtNode {
+        private ExprNode value;     // Null for a bare `return;`.
+
+        Return(ExprNode value) {
+            this.value = adopt(value);
+        }
+
+        @Override
+        void execute(Environment environment) {
+            throw new com.craftinginterpreters.lox.Return(
+                    value == null ? null : value.execute(environment));
+        }
+
+        @Override
+        void replaceChild(ExprNode child, ExprNode replacement) {
+            if (value == child) value = replacement;
+        }
+    }
+
+    /*
+     * Declares a variable, by slot for locals or by name for globals.
+     * Locals initialized with numbers go in the environment's unboxed lane.
+     */
+    static class Var extends StmtNode {
+        private final Environment globals;  // Null for a local declaration.
+        private final Token name;
+        private final int slot;
+        private final boolean captured;     // Whether it is held in a Cell.
+        private ExprNode initializer;       // Null when there is none.
+        private boolean numbers;            // Whether every initial value so far was a number.
+
+        Var(Environment globals, Token name, int slot, boolean captured, ExprNode initializer) {
+            this.globals = globals;
+            this.name = name;
+            this.slot = slot;
+            this.captured = captured;
+            this.numbers = !captured;
+            this.initializer = adopt(initializer);
+        }
+
+        @Override
+        void execute(Environment environment) {
+            if (globals == null && initializer != null && numbers) {
+                try {
+                    environment.defineNumber(slot, initializer.executeNumber(environment));
+                } catch (ExprNode.UnexpectedResult result) {
+                    numbers = false;
+                    environment.define(slot, result.value);
+                }
+                return;
+            }
+
+            Object value = initializer == null ? null : initializer.execute(environment);
+            if (globals != null) {
+                globals.define(name.lexeme, value);
+            } else {
+                environment.define(slot, captured ? new Cell(value) : value);
+            }
+        }
+
+        @Override
+        void replaceChild(ExprNode child, ExprNode replacement) {
+            if (initializer == child) initializer = replacement;
+        }
+    }
+
+    static class While extends StmtNode {
+        private ExprNode condition;
+        private final StmtNode body;
+
+        While(ExprNode condition, StmtNode body) {
+            this.condition = adopt(condition);
+            this.body = adopt(body);
+        }
+
+        @Override
+        void execute(Environment environment) {
+            while (condition.executeCondition(environment)) {
+                body.execute(environment);
+            }
+        }
+
+        @Override
+        void replaceChild(ExprNode child, ExprNode replacement) {
+            if (condition == child) condition = replacement;
+        }
+    }
+
+    /* Runs statements in order within the given environment. */
+    static void executeAll(StmtNode[] statements, Environment environment) {
+        for (StmtNode statement : statements) {
+            statement.execute(environment);
+        }
+    }
+}
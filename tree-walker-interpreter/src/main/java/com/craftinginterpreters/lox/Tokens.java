@@ -0,0 +1,219 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+import static com.craftinginterpreters.lox.TokenType.*;
+
+/*
+ * The tokens of one source, as parallel arrays of their types, offsets,
+ * lengths and lines rather than a list of Token objects. Lexemes and
+ * literals stay in the source until asked for: a keyword's or operator's
+ * lexeme is a constant, and an identifier, number or string is copied out
+ * once per distinct spelling, which later occurrences share together with
+ * its value (see Lexemes). token() builds a Token for the parser to keep
+ * in the tree or report an error at.
+ */
+class Tokens {
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final String[] FIXED = new String[TYPES.length];    // Lexemes of all but literals.
+
+    static {
+        fix(LEFT_PAREN, "(");  fix(RIGHT_PAREN, ")");  fix(LEFT_BRACE, "{");  fix(RIGHT_BRACE, "}");
+        fix(COMMA, ",");  fix(DOT, ".");  fix(MINUS, "-");  fix(PLUS, "+");
+        fix(SEMICOLON, ";");  fix(SLASH, "/");  fix(STAR, "*");
+        fix(BANG, "!");  fix(BANG_EQUAL, "!=");  fix(EQUAL, "=");  fix(EQUAL_EQUAL, "==");
+        fix(GREATER, ">");  fix(GREATER_EQUAL, ">=");  fix(LESS, "<");  fix(LESS_EQUAL, "<=");
+        fix(AND, "and");  fix(CLASS, "class");  fix(ELSE, "else");  fix(FALSE, "false");
+        fix(FUN, "fun");  fix(FOR, "for");  fix(IF, "if");  fix(NIL, "nil");
+        fix(OR, "or");  fix(PRINT, "print");  fix(RETURN, "return");  fix(SUPER, "super");
+        fix(THIS, "this");  fix(TRUE, "true");  fix(VAR, "var");  fix(WHILE, "while");
+        fix(EOF, "");
+    }
+
+    private static void fix(TokenType type, String lexeme) {
+        FIXED[type.ordinal()] = lexeme;
+    }
+
+    private final char[] source;
+    private final Lexemes lexemes = new Lexemes();
+    private byte[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    private int count = 0;
+
+    /* Room for a guess at how many tokens `length` characters hold; grown as needed. */
+    Tokens(char[] source, int length) {
+        this.source = source;
+        int capacity = length / 6 + 16;
+        types = new byte[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        lines = new int[capacity];
+    }
+
+    /* Appends a token spelled by source[start, start + length). */
+    void add(TokenType type, int start, int length, int line) {
+        if (count == types.length) grow();
+        types[count] = (byte)type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        lines[count] = line;
+        count++;
+    }
+
+    int size() {
+        return count;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    int line(int index) {
+        return lines[index];
+    }
+
+    String lexeme(int index) {
+        String fixed = FIXED[types[index]];
+        return fixed != null ? fixed : lexemes.of(this, index).lexeme;
+    }
+
+    /* The value of a number or string token; null for any other. */
+    Object literal(int index) {
+        TokenType type = type(index);
+        if (type != NUMBER && type != STRING) return null;
+        return lexemes.of(this, index).literal;
+    }
+
+    Token token(int index) {
+        String fixed = FIXED[types[index]];
+        if (fixed != null) return new Token(type(index), fixed, null, lines[index]);
+
+        Lexemes.Entry entry = lexemes.of(this, index);
+        return new Token(type(index), entry.lexeme, entry.literal, lines[index]);
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+    }
+
+    /*
+     * Parses the digits, with perhaps a fraction, in source[from, to). With
+     * at most 15 digits, all of them make an exact long, and the power of
+     * ten to divide by is an exact double, so one division rounds the
+     * result correctly, just as Double.parseDouble() would. Longer numbers
+     * are left to that.
+     */
+    private static double parseNumber(char[] source, int from, int to) {
+        long digits = 0;
+        int count = 0;
+        int fraction = -1;      // Digits after the point, once one is seen.
+        for (int i = from; i < to; i++) {
+            char c = source[i];
+            if (c == '.') {
+                fraction = 0;
+                continue;
+            }
+            digits = digits * 10 + (c - '0');
+            count++;
+            if (fraction != -1) fraction++;
+        }
+
+        if (count > 15) return Double.parseDouble(new String(source, from, to - from));
+        return fraction <= 0 ? (double)digits : digits / POWERS_OF_TEN[fraction];
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15
+    };
+
+    /*
+     * The distinct identifiers, numbers and strings of one source, found by
+     * their characters without copying them. A hash table chained through
+     * its entries, which are never removed.
+     */
+    private static final class Lexemes {
+        static final class Entry {
+            final String lexeme;
+            final Object literal;   // The value of a number or string.
+            final int hash;
+            Entry next;
+
+            Entry(String lexeme, Object literal, int hash, Entry next) {
+                this.lexeme = lexeme;
+                this.literal = literal;
+                this.hash = hash;
+                this.next = next;
+            }
+        }
+
+        private Entry[] table = new Entry[256];     // Always a power of two long.
+        private int count = 0;
+
+        /* Returns the entry for an identifier, number or string token, adding it the first time. */
+        Entry of(Tokens tokens, int index) {
+            char[] source = tokens.source;
+            int from = tokens.starts[index];
+            int to = from + tokens.lengths[index];
+            int hash = hash(source, from, to);
+            for (Entry entry = table[hash & (table.length - 1)]; entry != null; entry = entry.next) {
+                if (entry.hash == hash && equals(entry.lexeme, source, from, to)) return entry;
+            }
+
+            String lexeme = new String(source, from, to - from);
+            Object literal = null;
+            switch (tokens.type(index)) {
+                case NUMBER: literal = parseNumber(source, from, to); break;
+                // Trim the surrounding quotes.
+                case STRING: literal = lexeme.substring(1, lexeme.length() - 1); break;
+                default: break;
+            }
+            return add(lexeme, literal, hash);
+        }
+
+        private Entry add(String lexeme, Object literal, int hash) {
+            if (count >= table.length * 3 / 4) grow();
+
+            int index = hash & (table.length - 1);
+            Entry entry = new Entry(lexeme, literal, hash, table[index]);
+            table[index] = entry;
+            count++;
+            return entry;
+        }
+
+        private void grow() {
+            Entry[] old = table;
+            table = new Entry[old.length * 2];
+            for (Entry head : old) {
+                for (Entry entry = head; entry != null; ) {
+                    Entry next = entry.next;
+                    int index = entry.hash & (table.length - 1);
+                    entry.next = table[index];
+                    table[index] = entry;
+                    entry = next;
+                }
+            }
+        }
+
+        private static int hash(char[] source, int from, int to) {
+            int hash = 0;
+            for (int i = from; i < to; i++) {
+                hash = 31 * hash + source[i];
+            }
+            return hash;
+        }
+
+        private static boolean equals(String lexeme, char[] source, int from, int to) {
+            if (lexeme.length() != to - from) return false;
+            for (int i = 0; i < lexeme.length(); i++) {
+                if (lexeme.charAt(i) != source[from + i]) return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,514 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+/*
+ * Stack-based virtual machine executing the output of the BytecodeCompiler.
+ * All call frames share one contiguous value stack.
+ */
+class VM {
+    private static final int FRAMES_MAX = 65536;
+    private static final Object UNDEFINED = new Object();  // Marks a global slot not yet defined.
+
+    private static class VMError extends RuntimeException {} // Sentinel class used to unwind the VM.
+
+    /* An ongoing function call. */
+    private static class CallFrame {
+        VMClosure closure;
+        int ip;
+        int base;   // Stack index of the frame's slot zero.
+    }
+
+    private Object[] stack = new Object[256];
+    private int stackTop = 0;
+    private CallFrame[] frames = new CallFrame[16];
+    private int frameCount = 0;
+    private VMUpvalue openUpvalues = null;  // Sorted by stack location, highest first.
+
+    private final Map<String, Integer> globalSlots = new HashMap<>();
+    private String[] globalNames = new String[16];
+    private Object[] globals = new Object[16];
+
+    VM() {
+        defineNative("clock", new VMNative(0) {
+            @Override
+            Object call(Object[] stack, int args) {
+                return (double)System.currentTimeMillis() / 1000.0;
+            }
+        });
+    }
+
+    /* Compiles and runs a program. Globals persist between calls. */
+    void interpret(List<Stmt> statements) {
+        VMFunction script = new BytecodeCompiler(this).compile(statements);
+
+        // Stop if there was a compile error.
+        if (Lox.hadError) return;
+
+        VMClosure closure = new VMClosure(script);
+        try {
+            stack[stackTop++] = closure;
+            callClosure(closure, 0);
+            run();
+        } catch (VMError error) {
+            // Already reported; discard the aborted frames.
+            closeUpvalues(0);
+            Arrays.fill(stack, null);
+            stackTop = 0;
+            frameCount = 0;
+        }
+    }
+
+    /*
+     * Returns the slot holding the named global, allocating one if needed.
+     * Globals are resolved by name once, at compile time.
+     */
+    int globalSlot(String name) {
+        Integer slot = globalSlots.get(name);
+        if (slot != null) return slot;
+
+        int index = globalSlots.size();
+        if (index == globals.length) {
+            globals = Arrays.copyOf(globals, index * 2);
+            globalNames = Arrays.copyOf(globalNames, index * 2);
+        }
+        globals[index] = UNDEFINED;
+        globalNames[index] = name;
+        globalSlots.put(name, index);
+        return index;
+    }
+
+    private void defineNative(String name, VMNative function) {
+        globals[globalSlot(name)] = function;
+    }
+
+    /* The dispatch loop. */
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        int[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        Object[] stack = this.stack;
+        Object[] globals = this.globals;
+        int ip = frame.ip;
+        int base = frame.base;
+        int sp = stackTop;
+
+        for (;;) {
+            int instruction = code[ip++];
+            switch (instruction & 0xff) {
+                case CONSTANT: {
+                    stack[sp++] = constants[instruction >>> 8];
+                    break;
+                }
+                case NIL: stack[sp++] = null; break;
+                case TRUE: stack[sp++] = true; break;
+                case FALSE: stack[sp++] = false; break;
+                case POP: sp--; break;
+                case GET_LOCAL: {
+                    stack[sp++] = stack[base + (instruction >>> 8)];
+                    break;
+                }
+                case SET_LOCAL: {
+                    stack[base + (instruction >>> 8)] = stack[sp - 1];
+                    break;
+                }
+                case STORE_LOCAL: {
+                    stack[base + (instruction >>> 8)] = stack[--sp];
+                    break;
+                }
+                case GET_GLOBAL: {
+                    int slot = instruction >>> 8;
+                    Object value = globals[slot];
+                    if (value == UNDEFINED) {
+                        frame.ip = ip;
+                        throw runtimeError("Undefined variable '" + globalNames[slot] + "'.");
+                    }
+                    stack[sp++] = value;
+                    break;
+                }
+                case DEFINE_GLOBAL: {
+                    globals[instruction >>> 8] = stack[--sp];
+                    break;
+                }
+                case SET_GLOBAL: {
+                    int slot = instruction >>> 8;
+                    if (globals[slot] == UNDEFINED) {
+                        frame.ip = ip;
+                        throw runtimeError("Undefined variable '" + globalNames[slot] + "'.");
+                    }
+                    globals[slot] = stack[sp - 1];
+                    break;
+                }
+                case STORE_GLOBAL: {
+                    int slot = instruction >>> 8;
+                    if (globals[slot] == UNDEFINED) {
+                        frame.ip = ip;
+                        throw runtimeError("Undefined variable '" + globalNames[slot] + "'.");
+                    }
+                    globals[slot] = stack[--sp];
+                    break;
+                }
+                case GET_UPVALUE: {
+                    VMUpvalue upvalue = frame.closure.upvalues[instruction >>> 8];
+                    stack[sp++] = upvalue.location >= 0 ? stack[upvalue.location] : upvalue.closed;
+                    break;
+                }
+                case SET_UPVALUE: {
+                    VMUpvalue upvalue = frame.closure.upvalues[instruction >>> 8];
+                    if (upvalue.location >= 0) {
+                        stack[upvalue.location] = stack[sp - 1];
+                    } else {
+                        upvalue.closed = stack[sp - 1];
+                    }
+                    break;
+                }
+                case STORE_UPVALUE: {
+                    VMUpvalue upvalue = frame.closure.upvalues[instruction >>> 8];
+                    if (upvalue.location >= 0) {
+                        stack[upvalue.location] = stack[--sp];
+                    } else {
+                        upvalue.closed = stack[--sp];
+                    }
+                    break;
+                }
+                case EQUAL: {
+                    Object b = stack[--sp];
+                    stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case NOT_EQUAL: {
+                    Object b = stack[--sp];
+                    stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], b);
+                    break;
+                }
+                case GREATER: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double)) {
+                        frame.ip = ip;
+                        throw runtimeError("Operands must be numbers.");
+                    }
+                    stack[sp - 1] = (double)a > (double)b;
+                    break;
+                }
+                case GREATER_EQUAL: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double)) {
+                        frame.ip = ip;
+                        throw runtimeError("Operands must be numbers.");
+                    }
+                    stack[sp - 1] = (double)a >= (double)b;
+                    break;
+                }
+                case LESS: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double)) {
+                        frame.ip = ip;
+                        throw runtimeError("Operands must be numbers.");
+                    }
+                    stack[sp - 1] = (double)a < (double)b;
+                    break;
+                }
+                case LESS_EQUAL: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double)) {
+                        frame.ip = ip;
+                        throw runtimeError("Operands must be numbers.");
+                    }
+                    stack[sp - 1] = (double)a <= (double)b;
+                    break;
+                }
+                case ADD: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (a instanceof Double && b instanceof Double) {
+                        stack[sp - 1] = (double)a + (double)b;
+                    } else if (a instanceof String && b instanceof String) {
+                        stack[sp - 1] = (String)a + (String)b;
+                    } else {
+                        frame.ip = ip;
+                        throw runtimeError("Operands must be two numbers or two strings.");
+                    }
+                    break;
+                }
+                case SUBTRACT: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double)) {
+                        frame.ip = ip;
+                        throw runtimeError("Operands must be numbers.");
+                    }
+                    stack[sp - 1] = (double)a - (double)b;
+                    break;
+                }
+                case MULTIPLY: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double)) {
+                        frame.ip = ip;
+                        throw runtimeError("Operands must be numbers.");
+                    }
+                    stack[sp - 1] = (double)a * (double)b;
+                    break;
+                }
+                case DIVIDE: {
+                    Object b = stack[--sp];
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double && b instanceof Double)) {
+                        frame.ip = ip;
+                        throw runtimeError("Operands must be numbers.");
+                    }
+                    stack[sp - 1] = (double)a / (double)b;
+                    break;
+                }
+                case ADD_CONSTANT: {
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double)) {
+                        frame.ip = ip;
+                        throw runtimeError("Operands must be two numbers or two strings.");
+                    }
+                    stack[sp - 1] = (double)a + (double)constants[instruction >>> 8];
+                    break;
+                }
+                case SUBTRACT_CONSTANT: {
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double)) {
+                        frame.ip = ip;
+                        throw runtimeError("Operands must be numbers.");
+                    }
+                    stack[sp - 1] = (double)a - (double)constants[instruction >>> 8];
+                    break;
+                }
+                case MULTIPLY_CONSTANT: {
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double)) {
+                        frame.ip = ip;
+                        throw runtimeError("Operands must be numbers.");
+                    }
+                    stack[sp - 1] = (double)a * (double)constants[instruction >>> 8];
+                    break;
+                }
+                case DIVIDE_CONSTANT: {
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double)) {
+                        frame.ip = ip;
+                        throw runtimeError("Operands must be numbers.");
+                    }
+                    stack[sp - 1] = (double)a / (double)constants[instruction >>> 8];
+                    break;
+                }
+                case GREATER_CONSTANT: {
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double)) {
+                        frame.ip = ip;
+                        throw runtimeError("Operands must be numbers.");
+                    }
+                    stack[sp - 1] = (double)a > (double)constants[instruction >>> 8];
+                    break;
+                }
+                case GREATER_EQUAL_CONSTANT: {
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double)) {
+                        frame.ip = ip;
+                        throw runtimeError("Operands must be numbers.");
+                    }
+                    stack[sp - 1] = (double)a >= (double)constants[instruction >>> 8];
+                    break;
+                }
+                case LESS_CONSTANT: {
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double)) {
+                        frame.ip = ip;
+                        throw runtimeError("Operands must be numbers.");
+                    }
+                    stack[sp - 1] = (double)a < (double)constants[instruction >>> 8];
+                    break;
+                }
+                case LESS_EQUAL_CONSTANT: {
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double)) {
+                        frame.ip = ip;
+                        throw runtimeError("Operands must be numbers.");
+                    }
+                    stack[sp - 1] = (double)a <= (double)constants[instruction >>> 8];
+                    break;
+                }
+                case NOT:
+                    // Same result as Interpreter.visitUnaryExpr gives for `!`.
+                    stack[sp - 1] = Interpreter.isTruthy(stack[sp - 1]);
+                    break;
+                case NEGATE: {
+                    Object a = stack[sp - 1];
+                    if (!(a instanceof Double)) {
+                        frame.ip = ip;
+                        throw runtimeError("Operand must be a number.");
+                    }
+                    stack[sp - 1] = -(double)a;
+                    break;
+                }
+                case PRINT: {
+                    System.out.println(Interpreter.stringify(stack[--sp]));
+                    break;
+                }
+                case JUMP: {
+                    ip += instruction >>> 8;
+                    break;
+                }
+                case JUMP_IF_FALSE: {
+                    if (!Interpreter.isTruthy(stack[sp - 1])) ip += instruction >>> 8;
+                    break;
+                }
+                case POP_JUMP_IF_FALSE: {
+                    if (!Interpreter.isTruthy(stack[--sp])) ip += instruction >>> 8;
+                    break;
+                }
+                case LOOP: {
+                    ip -= instruction >>> 8;
+                    break;
+                }
+                case CALL: {
+                    int argCount = instruction >>> 8;
+                    frame.ip = ip;
+                    stackTop = sp;
+
+                    Object callee = stack[sp - 1 - argCount];
+                    if (callee instanceof VMClosure) {
+                        frame = callClosure((VMClosure)callee, argCount);
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        stack = this.stack;
+                        ip = frame.ip;
+                        base = frame.base;
+                    } else if (callee instanceof VMNative) {
+                        VMNative function = (VMNative)callee;
+                        checkArity(function.arity, argCount);
+                        Object result = function.call(stack, sp - argCount);
+                        sp -= argCount + 1;
+                        Arrays.fill(stack, sp, stackTop, null);
+                        stack[sp++] = result;
+                    } else {
+                        throw runtimeError("Can only call functions and classes.");
+                    }
+                    break;
+                }
+                case CLOSURE: {
+                    VMFunction function = (VMFunction)constants[instruction >>> 8];
+                    VMClosure closure = new VMClosure(function);
+                    for (int i = 0; i < closure.upvalues.length; i++) {
+                        int upvalue = code[ip++];
+                        int index = upvalue >>> 1;
+                        if ((upvalue & 1) == 1) {
+                            closure.upvalues[i] = captureUpvalue(base + index);
+                        } else {
+                            closure.upvalues[i] = frame.closure.upvalues[index];
+                        }
+                    }
+                    stack[sp++] = closure;
+                    break;
+                }
+                case CLOSE_UPVALUE: {
+                    closeUpvalues(sp - 1);
+                    sp--;
+                    break;
+                }
+                case RETURN: {
+                    Object result = stack[--sp];
+                    closeUpvalues(base);
+                    frameCount--;
+                    Arrays.fill(stack, base, sp, null);
+
+                    if (frameCount == 0) {
+                        // Finished the top-level script.
+                        stackTop = 0;
+                        return;
+                    }
+
+                    sp = base;
+                    stack[sp++] = result;
+                    frame = frames[frameCount - 1];
+                    code = frame.closure.function.chunk.code;
+                    constants = frame.closure.function.chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+            }
+        }
+    }
+
+    /* Pushes a call frame whose window starts at the callee already on the stack. */
+    private CallFrame callClosure(VMClosure closure, int argCount) {
+        checkArity(closure.function.arity, argCount);
+
+        if (frameCount == frames.length) {
+            if (frameCount == FRAMES_MAX) throw runtimeError("Stack overflow.");
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        CallFrame frame = frames[frameCount];
+        if (frame == null) frame = frames[frameCount] = new CallFrame();
+        frameCount++;
+
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = stackTop - argCount - 1;
+
+        int needed = frame.base + closure.function.maxSlots;
+        if (needed > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(needed, stack.length * 2));
+        }
+        return frame;
+    }
+
+    private void checkArity(int arity, int argCount) {
+        if (argCount != arity) {
+            throw runtimeError("Expected " + arity +
+                    " arguments but got " + argCount + ".");
+        }
+    }
+
+    /* Returns the open upvalue for a stack slot, creating it if necessary. */
+    private VMUpvalue captureUpvalue(int location) {
+        VMUpvalue previous = null;
+        VMUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.location > location) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.location == location) return upvalue;
+
+        VMUpvalue created = new VMUpvalue(location);
+        created.next = upvalue;
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    /* Moves every open upvalue at or above `last` off the stack. */
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.location >= last) {
+            VMUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.location];
+            upvalue.location = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    /* Reports an error at the current instruction and returns the sentinel used to unwind. */
+    private VMError runtimeError(String message) {
+        CallFrame frame = frames[frameCount - 1];
+        Lox.runtimeError(frame.closure.function.chunk.lines[frame.ip - 1], message);
+        return new VMError();
+    }
+}
@@ -0,0 +1,17 @@
+package com.craftinginterpreters.lox;
+
+/* A function paired with the variables it captured from enclosing functions. */
+class VMClosure {
+    final VMFunction function;
+    final VMUpvalue[] upvalues;
+
+    VMClosure(VMFunction function) {
+        this.function = function;
+        this.upvalues = new VMUpvalue[function.upvalueCount];
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+}
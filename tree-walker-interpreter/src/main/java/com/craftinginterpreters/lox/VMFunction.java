@@ -0,0 +1,21 @@
+package com.craftinginterpreters.lox;
+
+/* A compiled Lox function: its bytecode plus what the VM needs to call it. */
+class VMFunction {
+    final String name;      // Null for the top-level script.
+    final int arity;
+    final Chunk chunk = new Chunk();
+    int upvalueCount = 0;
+    int maxSlots = 0;       // Deepest the function ever grows its stack window.
+
+    VMFunction(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) return "<script>";
+        return "<fn " + name + ">";
+    }
+}
@@ -0,0 +1,18 @@
+package com.craftinginterpreters.lox;
+
+/* A function implemented in Java and callable from the VM. */
+abstract class VMNative {
+    final int arity;
+
+    VMNative(int arity) {
+        this.arity = arity;
+    }
+
+    /* Arguments occupy `stack[args]` onwards. */
+    abstract Object call(Object[] stack, int args);
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
@@ -0,0 +1,16 @@
+package com.craftinginterpreters.lox;
+
+/*
+ * A captured variable.
+ * While open it refers to a slot on the VM stack; once that slot goes out of
+ * scope the value is moved into the upvalue itself.
+ */
+class VMUpvalue {
+    int location;           // Stack index while open, -1 once closed.
+    Object closed;
+    VMUpvalue next;         // Next open upvalue further down the stack.
+
+    VMUpvalue(int location) {
+        this.location = location;
+    }
+}
@@ -12,27 +12,34 @@ public class GenerateAst {
             System.exit(64);
         }
         String outputDir = args[0];
+
+        // An optional third section lists mutable fields filled in after parsing.
         defineAst(outputDir, "Expr", Arrays.asList(
-            "Assign   : Token name, Expr value",
+            "Assign   : Token name, Expr value :" +
+                      " int depth = -1, int slot, int upvalue = -1, boolean captured",
             "Binary   : Expr left, Token operator, Expr right",
-            "Call     : Expr callee, Token paren, List<Expr> arguments",
+            "Call     : Expr callee, Token paren, List<Expr> arguments :" +
+                      " LoxCallable callable",
             "Grouping : Expr expression",
             "Literal  : Object value",
             "Logical  : Expr left, Token operator, Expr right",
             "Unary    : Token operator, Expr right",
-            "Variable : Token name"
+            "Variable : Token name :" +
+                      " int depth = -1, int slot, int upvalue = -1, boolean captured"
         ));
 
         defineAst(outputDir, "Stmt", Arrays.asList(
-            "Block      : List<Stmt> statements",
+            "Block      : List<Stmt> statements : boolean scoped = true",
             "Expression : Expr expression",
             "Function   : Token name, List<Token> params," +
-                        " List<Stmt> body",
+                        " List<Stmt> body : int slot, boolean captured, int frameSize," +
+                        " int[] cellParams = new int[0], Cell.Capture[] captures = Cell.Capture.NONE," +
+                        " Jit.Profile profile = new Jit.Profile(), boolean pure, LazyBody lazy",
             "If         : Expr condition, Stmt thenBranch," +
                         " Stmt elseBranch",
             "Print      : Expr expression",
-            "Return     : Token keyword, Expr value",
-            "Var        : Token name, Expr initializer",
+            "Return     : Token keyword, Expr value : boolean tailCall",
+            "Var        : Token name, Expr initializer : int slot, boolean captured",
             "While      : Expr condition, Stmt body"
         ));
     }
@@ -54,9 +61,11 @@ public class GenerateAst {
 
         // The AST classes.
         for (String type : types) {
-            String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] parts = type.split(":");
+            String className = parts[0].trim();
+            String fields = parts[1].trim();
+            String resolvedFields = parts.length > 2 ? parts[2].trim() : null;
+            defineType(writer, baseName, className, fields, resolvedFields);
         }
 
         // The base accept() method.
@@ -86,7 +95,7 @@ public class GenerateAst {
     /* Defines the concrete subclasses of the base AST class. */
     private static void defineType(
             PrintWriter writer, String baseName,
-            String className, String fieldList) {
+            String className, String fieldList, String resolvedFieldList) {
         writer.println("    static class " + className + " extends " +
             baseName + " {");
 
@@ -116,6 +125,13 @@ public class GenerateAst {
             writer.println("        final " + field + ";");
         }
 
+        // Mutable fields, which are not part of the constructor.
+        if (resolvedFieldList != null) {
+            for (String field : resolvedFieldList.split(", ")) {
+                writer.println("        " + field + ";");
+            }
+        }
+
         writer.println("    }");
     }
 }